@@ -0,0 +1,311 @@
+package grondag.pyroclasm.harness;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import grondag.pyroclasm.Configurator;
+import grondag.pyroclasm.fluidsim.AbstractLavaConnections;
+import grondag.pyroclasm.fluidsim.LavaCell;
+import grondag.pyroclasm.fluidsim.LavaSimulator;
+import net.minecraft.Bootstrap;
+
+/**
+ * Runs {@link LavaSimulator} without a server against one or more
+ * {@link TerrainScript scripted terrains} and prints throughput and simulation
+ * totals.
+ * <p>
+ *
+ * At each progress line and at the end of each run, {@link SimulationChecks}
+ * confirm that fluid is conserved and that cells and connections are
+ * consistent. Problems are printed, and the harness exits with status 1 if
+ * any run had any.
+ * <p>
+ *
+ * Arguments are key=value pairs or bare flags, in any order:
+ * <ul>
+ * <li>scenario=slope|basin|tube|cliff|all (default all)</li>
+ * <li>ticks=N - ticks to run (default 600)</li>
+ * <li>pour=N - ticks during which lava is added (default half of ticks)</li>
+ * <li>lava=N - fluid units added each pour tick (default one block)</li>
+ * <li>chunks=N - width of the square world in chunks (default 8)</li>
+ * <li>report=N - ticks between progress lines (default 100)</li>
+ * <li>sleep=N - setups a column stays awake after a change, 0 to keep every
+ * column awake (default as configured)</li>
+ * <li>packed, parity, islands - enable the matching performance options</li>
+ * <li>allmodes - run each scenario once per flow mode: default, packed,
+ * parity and islands</li>
+ * <li>onthread - fully validate chunks on tick instead of from off-tick
+ * snapshots. Compare the on-tick "Chunk snapshot" and "Chunk validation"
+ * counters against a default run.</li>
+ * <li>surface - measure bytes per tick sent to a client for lava surface
+ * changes, with and without {@link SurfaceLoopback lava surface deltas}</li>
+ * </ul>
+ *
+ * The fermion simulator is not running here, so {@code Simulator.currentTick()}
+ * does not advance. Column sleep counts cell setups instead of ticks, so
+ * columns sleep as they would on a server. Block updates and cooling are
+ * skipped when headless, so cooling never triggers, which is what we want for
+ * flow benchmarks.
+ */
+public class HeadlessHarness {
+    private static class Settings {
+        List<TerrainScript> scenarios = new ArrayList<>();
+        int ticks = 600;
+        int pourTicks = -1;
+        int lavaPerTick = LavaSimulator.FLUID_UNITS_PER_BLOCK;
+        int chunks = 8;
+        int reportInterval = 100;
+        boolean surface = false;
+        boolean allModes = false;
+    }
+
+    /**
+     * Ticks after the last pour before all pour events have been handled, or
+     * dropped after their retries ran out
+     */
+    private static final int SETTLE_TICKS = 12;
+
+    /** Flow options for each pass of an allmodes run */
+    private enum Mode {
+        DEFAULT(false, false, false), PACKED(true, false, false), PARITY(false, true, false), ISLANDS(false, false, true);
+
+        private final boolean packed;
+        private final boolean parity;
+        private final boolean islands;
+
+        private Mode(boolean packed, boolean parity, boolean islands) {
+            this.packed = packed;
+            this.parity = parity;
+            this.islands = islands;
+        }
+
+        void apply() {
+            Configurator.PERFORMANCE.enablePackedCellStorage = this.packed;
+            Configurator.PERFORMANCE.enableChunkParityFlow = this.parity;
+            Configurator.PERFORMANCE.enableIslandFlow = this.islands;
+        }
+    }
+
+    /** Cell, connection and fluid counts at a point in time */
+    private static class Tally {
+        int cells;
+        /** each connection is held by both of its cells */
+        int connectionRefs;
+        long fluidUnits;
+
+        void add(LavaCell cell) {
+            this.cells++;
+            this.connectionRefs += cell.connections.size();
+            this.fluidUnits += cell.fluidUnits();
+        }
+
+        int connections() {
+            return this.connectionRefs / 2;
+        }
+
+        static Tally of(LavaSimulator sim) {
+            final Tally result = new Tally();
+            sim.cells.forEach(result::add);
+            return result;
+        }
+    }
+
+    public static void main(String[] args) {
+        final Settings settings = parse(args);
+
+        Bootstrap.initialize();
+        Configurator.recalcDerived();
+        Configurator.recalcBlocks();
+
+        Configurator.DEBUG.enableFlowTracking = true;
+
+        int failedRuns = 0;
+
+        for (TerrainScript script : settings.scenarios) {
+            if (settings.allModes) {
+                for (Mode mode : Mode.values()) {
+                    mode.apply();
+                    System.out.println("=== mode " + mode);
+                    if (!run(script, settings))
+                        failedRuns++;
+                }
+            } else if (!run(script, settings)) {
+                failedRuns++;
+            }
+        }
+
+        if (failedRuns > 0) {
+            System.out.println("=== FAILED: " + failedRuns + " run(s) had problems");
+            System.exit(1);
+        }
+
+        System.exit(0);
+    }
+
+    private static Settings parse(String[] args) {
+        final Settings result = new Settings();
+
+        for (String arg : args) {
+            final int eq = arg.indexOf('=');
+            final String key = (eq < 0 ? arg : arg.substring(0, eq)).toLowerCase(Locale.ROOT);
+            final String value = eq < 0 ? "" : arg.substring(eq + 1);
+
+            switch (key) {
+            case "scenario":
+                if (!value.equalsIgnoreCase("all"))
+                    result.scenarios.add(TerrainScript.valueOf(value.toUpperCase(Locale.ROOT)));
+                break;
+            case "ticks":
+                result.ticks = Integer.parseInt(value);
+                break;
+            case "pour":
+                result.pourTicks = Integer.parseInt(value);
+                break;
+            case "lava":
+                result.lavaPerTick = Integer.parseInt(value);
+                break;
+            case "chunks":
+                result.chunks = Integer.parseInt(value);
+                break;
+            case "report":
+                result.reportInterval = Math.max(1, Integer.parseInt(value));
+                break;
+            case "sleep":
+                Configurator.PERFORMANCE.cellSleepTicks = Math.max(0, Integer.parseInt(value));
+                break;
+            case "packed":
+                Configurator.PERFORMANCE.enablePackedCellStorage = true;
+                break;
+            case "parity":
+                Configurator.PERFORMANCE.enableChunkParityFlow = true;
+                break;
+            case "islands":
+                Configurator.PERFORMANCE.enableIslandFlow = true;
+                break;
+            case "onthread":
+                Configurator.PERFORMANCE.alwaysSetupTerrainOffThread = false;
+                break;
+            case "surface":
+                result.surface = true;
+                break;
+            case "allmodes":
+                result.allModes = true;
+                break;
+            default:
+                throw new IllegalArgumentException("Unrecognized harness argument: " + arg);
+            }
+        }
+
+        if (result.scenarios.isEmpty()) {
+            for (TerrainScript script : TerrainScript.values())
+                result.scenarios.add(script);
+        }
+
+        if (result.pourTicks < 0)
+            result.pourTicks = result.ticks / 2;
+
+        return result;
+    }
+
+    /** Returns false if any check found a problem. */
+    private static boolean run(TerrainScript script, Settings settings) {
+        final StandInWorld world = new StandInWorld(settings.chunks, settings.chunks);
+        final long source = script.build(world);
+        final LavaSimulator sim = LavaSimulator.createHeadless(world);
+        final AbstractLavaConnections connections = sim.connections;
+        final SurfaceLoopback loopback = settings.surface ? new SurfaceLoopback() : null;
+
+        System.out.println(String.format("=== %s: %d ticks, %dx%d chunks, pouring %,d units/tick for %d ticks, sleep after %d", script, settings.ticks,
+                settings.chunks, settings.chunks, settings.lavaPerTick, settings.pourTicks, Configurator.PERFORMANCE.cellSleepTicks));
+
+        long totalNanos = 0;
+        long intervalNanos = 0;
+        long totalFlow = 0;
+        long intervalFlow = 0;
+        long poured = 0;
+        long totalVanillaBytes = 0;
+        long totalDeltaBytes = 0;
+        int problemCount = 0;
+
+        for (int tick = 1; tick <= settings.ticks; tick++) {
+            if (tick <= settings.pourTicks) {
+                sim.addLava(source, settings.lavaPerTick);
+                poured += settings.lavaPerTick;
+            }
+
+            final long start = System.nanoTime();
+            sim.doOnTick();
+            sim.doOffTick();
+            final long elapsed = System.nanoTime() - start;
+            totalNanos += elapsed;
+            intervalNanos += elapsed;
+
+            // not timed
+            if (loopback != null)
+                loopback.tick(sim);
+
+            for (int step = 0; step < AbstractLavaConnections.STEPS_PER_TICK; step++) {
+                intervalFlow += connections.flowTotal(step);
+            }
+            connections.clearFlowTracking();
+
+            if (tick % settings.reportInterval == 0 || tick == settings.ticks) {
+                final Tally tally = Tally.of(sim);
+                final int intervalTicks = tick % settings.reportInterval == 0 ? settings.reportInterval : tick % settings.reportInterval;
+                System.out.println(String.format("tick %5d  %8.1f ticks/s  chunks %4d  cells %7d  connections %7d  fluid %,14d  flow %,14d", tick,
+                        intervalTicks * 1e9 / Math.max(1, intervalNanos), sim.cells.chunkCount(), tally.cells, tally.connections(), tally.fluidUnits,
+                        intervalFlow));
+                totalFlow += intervalFlow;
+                intervalFlow = 0;
+                intervalNanos = 0;
+
+                problemCount += check(sim, poured, tick > settings.pourTicks + SETTLE_TICKS, tick);
+
+                if (loopback != null) {
+                    System.out.println(String.format("           surface sync %,10.0f bytes/tick vanilla  %,10.0f bytes/tick with deltas", (double) loopback.vanillaOnlyBytes / intervalTicks,
+                            (double) loopback.withDeltasBytes / intervalTicks));
+                    totalVanillaBytes += loopback.vanillaOnlyBytes;
+                    totalDeltaBytes += loopback.withDeltasBytes;
+                    loopback.clearTotals();
+                }
+            }
+        }
+
+        final Tally tally = Tally.of(sim);
+        System.out.println(String.format("=== %s done: %.1f ticks/s avg (%.3f ms/tick), cells %d, connections %d, poured %,d, in cells %,d, total flow %,d",
+                script, settings.ticks * 1e9 / Math.max(1, totalNanos), totalNanos / 1e6 / settings.ticks, tally.cells, tally.connections(), poured,
+                tally.fluidUnits, totalFlow));
+
+        if (loopback != null) {
+            System.out.println(String.format("=== %s surface sync: %,.0f bytes/tick vanilla, %,.0f bytes/tick with deltas, client mismatched on %d ticks", script,
+                    (double) totalVanillaBytes / settings.ticks, (double) totalDeltaBytes / settings.ticks, loopback.mismatchTicks));
+        }
+
+        if (Configurator.DEBUG.enablePerformanceLogging) {
+            sim.perfCollectorOnTick.outputStats();
+            sim.perfCollectorOffTick.outputStats();
+        }
+
+        if (problemCount > 0) {
+            System.out.println(String.format("=== %s FAILED: %d problem(s)", script, problemCount));
+            return false;
+        }
+
+        System.out.println(String.format("=== %s checks passed", script));
+        return true;
+    }
+
+    /** Runs {@link SimulationChecks} and prints any problems. Returns the number found. */
+    private static int check(LavaSimulator sim, long poured, boolean isSettled, int tick) {
+        final List<String> problems = new ArrayList<>();
+        problems.addAll(SimulationChecks.checkFluid(sim, poured, isSettled));
+        problems.addAll(SimulationChecks.checkCells(sim));
+
+        for (String p : problems) {
+            System.out.println(String.format("tick %5d  PROBLEM: %s", tick, p));
+        }
+
+        return problems.size();
+    }
+}
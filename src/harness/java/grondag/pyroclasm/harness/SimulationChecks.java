@@ -0,0 +1,99 @@
+package grondag.pyroclasm.harness;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import grondag.fermion.sc.unordered.SimpleUnorderedArrayList;
+import grondag.pyroclasm.fluidsim.LavaCell;
+import grondag.pyroclasm.fluidsim.LavaConnection;
+import grondag.pyroclasm.fluidsim.LavaSimulator;
+
+/**
+ * Checks run by {@link HeadlessHarness} between ticks. Each returns problems
+ * found, at most {@link #MAX_PROBLEMS} of them, or an empty list if none.
+ * <p>
+ *
+ * Terrain doesn't change during a harness run, and nothing cools while
+ * {@code Simulator.currentTick()} is behind the cooling delay, so all lava
+ * poured must still be in cells or waiting as particles.
+ */
+final class SimulationChecks {
+    private static final int MAX_PROBLEMS = 10;
+
+    private SimulationChecks() {
+    }
+
+    /**
+     * Fluid in cells and particles must never exceed what was poured and, once
+     * every pour event has been handled, must equal it.
+     */
+    static List<String> checkFluid(LavaSimulator sim, long poured, boolean isSettled) {
+        final List<String> result = new ArrayList<>();
+        final long[] inCells = new long[1];
+        sim.cells.forEach(cell -> inCells[0] += cell.fluidUnits());
+        final long total = inCells[0] + sim.particleManager.fluidUnits();
+
+        if (total > poured || (isSettled && total != poured))
+            result.add(String.format("fluid not conserved: poured %,d, in cells %,d, in particles %,d, difference %,d", poured, inCells[0],
+                    total - inCells[0], total - poured));
+
+        return result;
+    }
+
+    /**
+     * Cells must not hold negative fluid, and every connection must join its
+     * cell to a live, horizontally adjacent cell that holds the same connection.
+     */
+    static List<String> checkCells(LavaSimulator sim) {
+        final List<String> result = new ArrayList<>();
+
+        sim.cells.forEach(cell -> {
+            if (result.size() >= MAX_PROBLEMS)
+                return;
+
+            if (cell.isDeleted())
+                result.add("deleted cell still in chunk: " + describe(cell));
+
+            if (cell.fluidUnits() < 0)
+                result.add("negative fluid " + cell.fluidUnits() + ": " + describe(cell));
+
+            final SimpleUnorderedArrayList<LavaConnection> connections = cell.connections;
+            final int size = connections.size();
+
+            for (int i = 0; i < size; i++) {
+                final LavaConnection c = connections.get(i);
+
+                if (c.firstCell != cell && c.secondCell != cell) {
+                    result.add("connection held by a cell it doesn't join: " + describe(cell));
+                    continue;
+                }
+
+                final LavaCell other = c.getOther(cell);
+
+                if (other.isDeleted()) {
+                    result.add("connection to deleted cell: " + describe(cell) + " to " + describe(other));
+                } else if (!holds(other, c)) {
+                    result.add("connection not held by both cells: " + describe(cell) + " to " + describe(other));
+                } else if (Math.abs(other.x() - cell.x()) + Math.abs(other.z() - cell.z()) != 1) {
+                    result.add("connection to cell that isn't adjacent: " + describe(cell) + " to " + describe(other));
+                }
+            }
+        });
+
+        return result.size() > MAX_PROBLEMS ? result.subList(0, MAX_PROBLEMS) : result;
+    }
+
+    private static boolean holds(LavaCell cell, LavaConnection connection) {
+        final SimpleUnorderedArrayList<LavaConnection> connections = cell.connections;
+        final int size = connections.size();
+        for (int i = 0; i < size; i++) {
+            if (connections.get(i) == connection)
+                return true;
+        }
+        return false;
+    }
+
+    private static String describe(LavaCell cell) {
+        return String.format("(%d, %d-%d, %d)", cell.x(), cell.floorY(), cell.ceilingY(), cell.z());
+    }
+}
@@ -0,0 +1,139 @@
+package grondag.pyroclasm.harness;
+
+import java.util.Arrays;
+
+import javax.annotation.Nullable;
+
+import grondag.pyroclasm.fluidsim.TerrainSource;
+import net.minecraft.block.BlockState;
+import net.minecraft.block.Blocks;
+import net.minecraft.block.entity.BlockEntity;
+import net.minecraft.fluid.FluidState;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.world.BlockView;
+
+/**
+ * In-memory stand-in for the server world. Covers a rectangle of chunks with
+ * corner at block 0, 0. Everything outside that rectangle reads as solid stone
+ * so lava can't leave the scripted area.
+ * <p>
+ *
+ * Not thread-safe for writes - terrain is meant to be scripted before the
+ * simulation starts and then left alone.
+ */
+public class StandInWorld implements TerrainSource, BlockView {
+    private static final BlockState OUTSIDE = Blocks.STONE.getDefaultState();
+
+    public final int chunksX;
+    public final int chunksZ;
+
+    private final StandInChunk[] chunks;
+
+    private final StandInChunk outsideChunk = new StandInChunk(OUTSIDE);
+
+    public StandInWorld(int chunksX, int chunksZ) {
+        this.chunksX = chunksX;
+        this.chunksZ = chunksZ;
+        this.chunks = new StandInChunk[chunksX * chunksZ];
+        final BlockState air = Blocks.AIR.getDefaultState();
+        for (int i = 0; i < this.chunks.length; i++) {
+            this.chunks[i] = new StandInChunk(air);
+        }
+    }
+
+    public int blockWidthX() {
+        return this.chunksX * 16;
+    }
+
+    public int blockWidthZ() {
+        return this.chunksZ * 16;
+    }
+
+    public boolean contains(int x, int z) {
+        return x >= 0 && z >= 0 && x < this.blockWidthX() && z < this.blockWidthZ();
+    }
+
+    private StandInChunk chunk(int chunkX, int chunkZ) {
+        if (chunkX < 0 || chunkZ < 0 || chunkX >= this.chunksX || chunkZ >= this.chunksZ)
+            return this.outsideChunk;
+        return this.chunks[chunkX * this.chunksZ + chunkZ];
+    }
+
+    public void setBlockState(int x, int y, int z, BlockState state) {
+        if (y < 0 || y > 255 || !this.contains(x, z))
+            return;
+        this.chunk(x >> 4, z >> 4).set(x, y, z, state);
+    }
+
+    /** fills blocks in the given column from minY up to but not including maxY */
+    public void fillColumn(int x, int z, int minY, int maxY, BlockState state) {
+        minY = Math.max(0, minY);
+        maxY = Math.min(256, maxY);
+        for (int y = minY; y < maxY; y++) {
+            this.setBlockState(x, y, z, state);
+        }
+    }
+
+    @Override
+    public BlockView chunkView(int chunkX, int chunkZ) {
+        return this.chunk(chunkX, chunkZ);
+    }
+
+    @Override
+    public BlockView blockView() {
+        return this;
+    }
+
+    @Override
+    public BlockState getBlockState(BlockPos pos) {
+        final int y = pos.getY();
+        if (y < 0 || y > 255)
+            return Blocks.AIR.getDefaultState();
+        return this.chunk(pos.getX() >> 4, pos.getZ() >> 4).getBlockState(pos);
+    }
+
+    @Override
+    public @Nullable BlockEntity getBlockEntity(BlockPos pos) {
+        return null;
+    }
+
+    @Override
+    public FluidState getFluidState(BlockPos pos) {
+        return this.getBlockState(pos).getFluidState();
+    }
+
+    /** Block states for one chunk, indexed like chunk sections: y, then z, then x */
+    private static class StandInChunk implements BlockView {
+        private final BlockState[] states = new BlockState[16 * 16 * 256];
+
+        private StandInChunk(BlockState fill) {
+            Arrays.fill(this.states, fill);
+        }
+
+        private static int index(int x, int y, int z) {
+            return (y << 8) | ((z & 15) << 4) | (x & 15);
+        }
+
+        private void set(int x, int y, int z, BlockState state) {
+            this.states[index(x, y, z)] = state;
+        }
+
+        @Override
+        public BlockState getBlockState(BlockPos pos) {
+            final int y = pos.getY();
+            if (y < 0 || y > 255)
+                return Blocks.AIR.getDefaultState();
+            return this.states[index(pos.getX(), y, pos.getZ())];
+        }
+
+        @Override
+        public @Nullable BlockEntity getBlockEntity(BlockPos pos) {
+            return null;
+        }
+
+        @Override
+        public FluidState getFluidState(BlockPos pos) {
+            return this.getBlockState(pos).getFluidState();
+        }
+    }
+}
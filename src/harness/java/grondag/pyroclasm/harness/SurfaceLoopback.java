@@ -0,0 +1,141 @@
+package grondag.pyroclasm.harness;
+
+import grondag.fermion.position.PackedBlockPos;
+import grondag.fermion.position.PackedChunkPos;
+import grondag.pyroclasm.fluidsim.LavaSimulator;
+import grondag.pyroclasm.world.LavaSurfaceDeltas;
+import io.netty.buffer.Unpooled;
+import it.unimi.dsi.fastutil.longs.Long2ByteMap;
+import it.unimi.dsi.fastutil.longs.Long2ByteOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import net.minecraft.util.PacketByteBuf;
+
+/**
+ * Loopback stand-in for one client watching every chunk, for measuring
+ * {@link LavaSurfaceDeltas} against vanilla block updates without a server.
+ * <p>
+ *
+ * Each tick, lava blocks implied by the simulation's cells are compared with
+ * the previous tick. Height changes go through an encoded delta packet that is
+ * read back into the client's copy. Lava appearing or disappearing is copied
+ * directly, as vanilla would send it. The client copy is then checked against
+ * the server. Vanilla bytes are estimates - see
+ * {@link LavaSurfaceDeltas#vanillaBytes(int, int)}
+ */
+class SurfaceLoopback {
+    /** Height of each lava block as of the last tick */
+    private Long2ByteOpenHashMap server = new Long2ByteOpenHashMap();
+
+    /** Same as the client stand-in sees it */
+    private final Long2ByteOpenHashMap client = new Long2ByteOpenHashMap();
+
+    private final LavaSurfaceDeltas deltas = new LavaSurfaceDeltas();
+    private final PacketByteBuf buffer = new PacketByteBuf(Unpooled.buffer());
+
+    /** Changes that vanilla still sends with deltas enabled */
+    private final LongArrayList vanillaPositions = new LongArrayList();
+
+    /**
+     * Change count and section mask for each chunk, by packed chunk position. For
+     * all changes, and for changes vanilla still sends.
+     */
+    private final Long2ObjectOpenHashMap<int[]> allChanges = new Long2ObjectOpenHashMap<>();
+    private final Long2ObjectOpenHashMap<int[]> vanillaChanges = new Long2ObjectOpenHashMap<>();
+
+    /** Bytes since last {@link #clearTotals()} */
+    long vanillaOnlyBytes;
+    long withDeltasBytes;
+
+    /** Ticks on which the client copy didn't match */
+    int mismatchTicks;
+
+    void tick(LavaSimulator sim) {
+        final Long2ByteOpenHashMap current = new Long2ByteOpenHashMap(this.server.size());
+
+        sim.cells.forEach(cell -> {
+            final int height = cell.worldSurfaceFlowHeight();
+            if (height == 0)
+                return;
+
+            final int top = cell.worldSurfaceY();
+            for (int y = cell.floorY(); y < top; y++) {
+                current.put(PackedBlockPos.pack(cell.x(), y, cell.z()), (byte) LavaSimulator.LEVELS_PER_BLOCK);
+            }
+            current.put(PackedBlockPos.pack(cell.x(), top, cell.z()), (byte) height);
+        });
+
+        for (Long2ByteMap.Entry e : current.long2ByteEntrySet()) {
+            final long pos = e.getLongKey();
+            final byte height = e.getByteValue();
+
+            if (!this.server.containsKey(pos)) {
+                this.vanillaChange(pos);
+            } else if (this.server.get(pos) != height) {
+                this.deltas.add(pos, height);
+                count(this.allChanges, pos);
+            }
+        }
+
+        LongIterator it = this.server.keySet().iterator();
+        while (it.hasNext()) {
+            final long pos = it.nextLong();
+            if (!current.containsKey(pos))
+                this.vanillaChange(pos);
+        }
+
+        if (!this.deltas.isEmpty()) {
+            final PacketByteBuf buffer = this.buffer;
+            buffer.clear();
+            this.deltas.writeAll(buffer);
+            this.withDeltasBytes += buffer.readableBytes() + LavaSurfaceDeltas.PAYLOAD_OVERHEAD;
+            LavaSurfaceDeltas.read(buffer, (x, y, z, height) -> this.client.put(PackedBlockPos.pack(x, y, z), (byte) height));
+        }
+
+        final int size = this.vanillaPositions.size();
+        for (int i = 0; i < size; i++) {
+            final long pos = this.vanillaPositions.getLong(i);
+            if (current.containsKey(pos))
+                this.client.put(pos, current.get(pos));
+            else
+                this.client.remove(pos);
+        }
+
+        this.vanillaOnlyBytes += vanillaBytes(this.allChanges);
+        this.withDeltasBytes += vanillaBytes(this.vanillaChanges);
+
+        if (!this.client.equals(current))
+            this.mismatchTicks++;
+
+        this.server = current;
+        this.vanillaPositions.clear();
+        this.allChanges.clear();
+        this.vanillaChanges.clear();
+    }
+
+    private void vanillaChange(long pos) {
+        this.vanillaPositions.add(pos);
+        count(this.allChanges, pos);
+        count(this.vanillaChanges, pos);
+    }
+
+    private static void count(Long2ObjectOpenHashMap<int[]> changes, long pos) {
+        final int[] c = changes.computeIfAbsent(PackedChunkPos.getPackedChunkPos(pos), k -> new int[2]);
+        c[0]++;
+        c[1] |= 1 << (PackedBlockPos.getY(pos) >> 4);
+    }
+
+    private static long vanillaBytes(Long2ObjectOpenHashMap<int[]> changes) {
+        long result = 0;
+        for (int[] c : changes.values()) {
+            result += LavaSurfaceDeltas.vanillaBytes(c[0], c[1]);
+        }
+        return result;
+    }
+
+    void clearTotals() {
+        this.vanillaOnlyBytes = 0;
+        this.withDeltasBytes = 0;
+    }
+}
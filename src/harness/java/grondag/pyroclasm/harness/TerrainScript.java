@@ -0,0 +1,101 @@
+package grondag.pyroclasm.harness;
+
+import grondag.fermion.position.PackedBlockPos;
+import net.minecraft.block.BlockState;
+import net.minecraft.block.Blocks;
+
+/**
+ * Scripted terrain for the headless harness. Each script fills a
+ * {@link StandInWorld} and returns the packed block position where lava should
+ * be poured. Positions are chosen so lava reaches the edges of chunks and
+ * exercises cross-chunk connections.
+ */
+public enum TerrainScript {
+    /** Even grade falling along X - a wide thin sheet flow. */
+    SLOPE {
+        @Override
+        public long build(StandInWorld world) {
+            final int width = world.blockWidthX();
+            for (int x = 0; x < width; x++) {
+                final int height = 120 - (x * 56) / width;
+                for (int z = 0; z < world.blockWidthZ(); z++) {
+                    world.fillColumn(x, z, 0, height, STONE);
+                }
+            }
+            final int z = world.blockWidthZ() / 2;
+            return PackedBlockPos.pack(2, 120, z);
+        }
+    },
+
+    /** Round bowl in flat ground - fills into a deep pressurized pool. */
+    BASIN {
+        @Override
+        public long build(StandInWorld world) {
+            final int cx = world.blockWidthX() / 2;
+            final int cz = world.blockWidthZ() / 2;
+            final int radius = Math.min(cx, cz) - 4;
+            final int depth = 24;
+            for (int x = 0; x < world.blockWidthX(); x++) {
+                for (int z = 0; z < world.blockWidthZ(); z++) {
+                    final int dx = x - cx;
+                    final int dz = z - cz;
+                    final int distSq = dx * dx + dz * dz;
+                    final int height = distSq >= radius * radius ? 80 : 80 - depth + (depth * distSq) / (radius * radius);
+                    world.fillColumn(x, z, 0, height, STONE);
+                }
+            }
+            return PackedBlockPos.pack(cx, 80 - depth, cz);
+        }
+    },
+
+    /**
+     * Solid rock with a narrow enclosed tunnel that descends along X, fed by a
+     * vertical vent. Cells have low ceilings and long single-file chains.
+     */
+    TUBE {
+        @Override
+        public long build(StandInWorld world) {
+            final int width = world.blockWidthX();
+            for (int x = 0; x < width; x++) {
+                for (int z = 0; z < world.blockWidthZ(); z++) {
+                    world.fillColumn(x, z, 0, 110, STONE);
+                }
+            }
+            final int cz = world.blockWidthZ() / 2;
+            // tunnel 3 wide and 3 high, losing one block of height every 8 blocks
+            for (int x = 2; x < width - 2; x++) {
+                final int floor = 90 - x / 8;
+                for (int z = cz - 1; z <= cz + 1; z++) {
+                    world.fillColumn(x, z, floor, floor + 3, AIR);
+                }
+            }
+            // vent from surface into the head of the tunnel
+            world.fillColumn(2, cz, 90, 110, AIR);
+            return PackedBlockPos.pack(2, 105, cz);
+        }
+    },
+
+    /**
+     * High plateau ending in a sheer drop to a low plain. Lava spreads, falls
+     * over the edge and spreads again - a cascade.
+     */
+    CLIFF {
+        @Override
+        public long build(StandInWorld world) {
+            final int edge = world.blockWidthX() / 3;
+            for (int x = 0; x < world.blockWidthX(); x++) {
+                final int height = x < edge ? 110 : 64;
+                for (int z = 0; z < world.blockWidthZ(); z++) {
+                    world.fillColumn(x, z, 0, height, STONE);
+                }
+            }
+            return PackedBlockPos.pack(edge / 2, 110, world.blockWidthZ() / 2);
+        }
+    };
+
+    private static final BlockState STONE = Blocks.STONE.getDefaultState();
+    private static final BlockState AIR = Blocks.AIR.getDefaultState();
+
+    /** Scripts terrain into the given world and returns packed position for lava. */
+    public abstract long build(StandInWorld world);
+}
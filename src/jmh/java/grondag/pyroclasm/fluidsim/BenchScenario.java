@@ -0,0 +1,80 @@
+package grondag.pyroclasm.fluidsim;
+
+import grondag.fermion.position.PackedBlockPos;
+import grondag.pyroclasm.harness.StandInWorld;
+import net.minecraft.block.BlockState;
+import net.minecraft.block.Blocks;
+
+/**
+ * Terrain and pour patterns for benchmarks. Each produces a distinct flow
+ * shape after warm-up. Terrain has soil over stone so block classification
+ * sees more than one kind of block.
+ */
+public enum BenchScenario {
+    /** Flat plain with a slow pour - wide, shallow sheet with many low-drop connections. */
+    SHEET(LavaSimulator.FLUID_UNITS_PER_QUARTER_BLOCK, 300) {
+        @Override
+        long build(StandInWorld world) {
+            for (int x = 0; x < world.blockWidthX(); x++) {
+                for (int z = 0; z < world.blockWidthZ(); z++) {
+                    ground(world, x, z, 64);
+                }
+            }
+            return PackedBlockPos.pack(world.blockWidthX() / 2, 64, world.blockWidthZ() / 2);
+        }
+    },
+
+    /** Square pit filled by a heavy pour - deep, pressurized cells. */
+    POOL(LavaSimulator.FLUID_UNITS_PER_BLOCK * 4, 300) {
+        @Override
+        long build(StandInWorld world) {
+            final int margin = 16;
+            for (int x = 0; x < world.blockWidthX(); x++) {
+                for (int z = 0; z < world.blockWidthZ(); z++) {
+                    final boolean isPit = x >= margin && z >= margin && x < world.blockWidthX() - margin && z < world.blockWidthZ() - margin;
+                    ground(world, x, z, isPit ? 60 : 84);
+                }
+            }
+            return PackedBlockPos.pack(world.blockWidthX() / 2, 60, world.blockWidthZ() / 2);
+        }
+    },
+
+    /** Steps falling three blocks every eight along X - lava cascades from one to the next. */
+    TERRACES(LavaSimulator.FLUID_UNITS_PER_BLOCK, 300) {
+        @Override
+        long build(StandInWorld world) {
+            for (int x = 0; x < world.blockWidthX(); x++) {
+                final int height = 100 - (x / 8) * 3;
+                for (int z = 0; z < world.blockWidthZ(); z++) {
+                    ground(world, x, z, height);
+                }
+            }
+            return PackedBlockPos.pack(2, 100, world.blockWidthZ() / 2);
+        }
+    };
+
+    private static final BlockState STONE = Blocks.STONE.getDefaultState();
+    private static final BlockState DIRT = Blocks.DIRT.getDefaultState();
+    private static final BlockState GRASS = Blocks.GRASS_BLOCK.getDefaultState();
+
+    /** fluid units poured at the source each tick */
+    public final int lavaPerTick;
+
+    /** ticks run before measurement so flow reaches a representative state */
+    public final int warmupTicks;
+
+    private BenchScenario(int lavaPerTick, int warmupTicks) {
+        this.lavaPerTick = lavaPerTick;
+        this.warmupTicks = warmupTicks;
+    }
+
+    /** Scripts terrain into the given world and returns packed position for lava. */
+    abstract long build(StandInWorld world);
+
+    /** stone with three blocks of dirt and grass on top, surface at height - 1 */
+    private static void ground(StandInWorld world, int x, int z, int height) {
+        world.fillColumn(x, z, 0, height - 3, STONE);
+        world.fillColumn(x, z, height - 3, height - 1, DIRT);
+        world.fillColumn(x, z, height - 1, height, GRASS);
+    }
+}
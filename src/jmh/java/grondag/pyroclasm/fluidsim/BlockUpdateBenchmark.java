@@ -0,0 +1,67 @@
+package grondag.pyroclasm.fluidsim;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+
+/**
+ * {@link LavaCell#provideBlockUpdateIfNeeded(LavaSimulator)} for every cell
+ * with fluid, each set up with a one-level change from its last visible level.
+ * <p>
+ *
+ * Changes that generate block updates go through the adjustment tracker, which
+ * writes to a live world, so this measures the path taken by small changes: the
+ * check and deferral that most cells take on most ticks. Cells too shallow to
+ * defer are left out.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class BlockUpdateBenchmark {
+    private LavaSimulator sim;
+    private LavaCell[] cells;
+
+    @Setup(Level.Iteration)
+    public void setup(SimulationState state) {
+        this.sim = state.sim;
+
+        final ObjectArrayList<LavaCell> deferrable = new ObjectArrayList<>();
+        for (LavaCell c : state.cellsWithFluid()) {
+            if (c.worldSurfaceLevel() - 1 > c.floorLevel())
+                deferrable.add(c);
+        }
+        this.cells = deferrable.toArray(new LavaCell[deferrable.size()]);
+    }
+
+    @Setup(Level.Invocation)
+    public void prepare() {
+        for (LavaCell c : this.cells) {
+            c.clearRefreshRange();
+            c.storeDeferredChangeDelta(0);
+            c.storeLastVisibleLevel(c.worldSurfaceLevel() - 1);
+        }
+    }
+
+    @Benchmark
+    public void provideBlockUpdateIfNeeded() {
+        final LavaSimulator sim = this.sim;
+        for (LavaCell c : this.cells) {
+            c.provideBlockUpdateIfNeeded(sim);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package grondag.pyroclasm.fluidsim;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import grondag.fermion.position.PackedBlockPos;
+import net.minecraft.block.BlockState;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.world.BlockView;
+
+/**
+ * Validation scans: {@link CellStackBuilder#updateCellStack} over the full 256
+ * block height of each column in the chunk where lava is poured, and
+ * {@link BlockType#getBlockTypeFromBlockState(BlockState)} for every block in
+ * that chunk. Scores are per column and per block state.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ColumnScanBenchmark {
+    private static final int COLUMNS = 256;
+    private static final int BLOCKS = COLUMNS * 256;
+
+    private final CellStackBuilder builder = new CellStackBuilder();
+
+    private LavaCells cells;
+    private BlockView chunkView;
+    private final int[] columnX = new int[COLUMNS];
+    private final int[] columnZ = new int[COLUMNS];
+    private final LavaCell[] entryCells = new LavaCell[COLUMNS];
+
+    private final BlockState[] states = new BlockState[BLOCKS];
+
+    @Setup(Level.Iteration)
+    public void setup(SimulationState state) {
+        this.cells = state.sim.cells;
+
+        final int sourceX = PackedBlockPos.getX(state.source);
+        final int sourceZ = PackedBlockPos.getZ(state.source);
+        this.chunkView = state.world.chunkView(sourceX >> 4, sourceZ >> 4);
+
+        final int x0 = sourceX & ~15;
+        final int z0 = sourceZ & ~15;
+        final BlockPos.Mutable pos = new BlockPos.Mutable();
+
+        for (int i = 0; i < COLUMNS; i++) {
+            final int x = x0 + (i & 15);
+            final int z = z0 + (i >> 4);
+            this.columnX[i] = x;
+            this.columnZ[i] = z;
+            this.entryCells[i] = this.cells.getEntryCell(x, z);
+
+            for (int y = 0; y < 256; y++) {
+                this.states[(i << 8) | y] = this.chunkView.getBlockState(pos.set(x, y, z));
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COLUMNS)
+    public void updateCellStack(Blackhole bh) {
+        final LavaCell[] entryCells = this.entryCells;
+        for (int i = 0; i < COLUMNS; i++) {
+            final LavaCell result = this.builder.updateCellStack(this.cells, this.chunkView, entryCells[i], this.columnX[i], this.columnZ[i]);
+            entryCells[i] = result;
+            bh.consume(result);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCKS)
+    public void getBlockTypeFromBlockState(Blackhole bh) {
+        final BlockState[] states = this.states;
+        for (int i = 0; i < BLOCKS; i++) {
+            bh.consume(BlockType.getBlockTypeFromBlockState(states[i]));
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package grondag.pyroclasm.fluidsim;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import grondag.pyroclasm.fluidsim.LavaConnection.Flowable;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+
+/**
+ * Per-tick flow setup: {@link LavaCell#getFlowChain()},
+ * {@link LavaConnection#setupTick(LavaCell)} and the drop ordering done by
+ * {@link LavaCell#addToFlowChain(Flowable, Flowable)}. Each operation covers
+ * every cell with fluid in the scenario.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class FlowChainBenchmark {
+    private LavaCell[] cells;
+
+    /** connection and source cell for each setupTick call */
+    private LavaConnection[] setupConnections;
+    private LavaCell[] setupSources;
+
+    /** flowables for each cell in connection order - the order getFlowChain sees them */
+    private Flowable[][] chainMembers;
+
+    @Setup(Level.Iteration)
+    public void setup(SimulationState state) {
+        this.cells = state.cellsWithFluid();
+
+        final ObjectArrayList<LavaConnection> connections = new ObjectArrayList<>();
+        final ObjectArrayList<LavaCell> sources = new ObjectArrayList<>();
+        final ObjectArrayList<Flowable> members = new ObjectArrayList<>();
+        this.chainMembers = new Flowable[this.cells.length][];
+
+        for (int i = 0; i < this.cells.length; i++) {
+            final LavaCell cell = this.cells[i];
+
+            // sets per-step output limit needed by setupTick
+            cell.getFlowChain();
+
+            members.clear();
+            for (LavaConnection c : cell.connections) {
+                connections.add(c);
+                sources.add(cell);
+
+                final Flowable f = c.setupTick(cell);
+                if (f != null)
+                    members.add(f);
+            }
+            this.chainMembers[i] = members.toArray(new Flowable[members.size()]);
+        }
+
+        this.setupConnections = connections.toArray(new LavaConnection[connections.size()]);
+        this.setupSources = sources.toArray(new LavaCell[sources.size()]);
+    }
+
+    @Benchmark
+    public void getFlowChain(Blackhole bh) {
+        for (LavaCell cell : this.cells) {
+            bh.consume(cell.getFlowChain());
+        }
+    }
+
+    @Benchmark
+    public void setupTick(Blackhole bh) {
+        final LavaConnection[] connections = this.setupConnections;
+        final LavaCell[] sources = this.setupSources;
+        for (int i = 0; i < connections.length; i++) {
+            bh.consume(connections[i].setupTick(sources[i]));
+        }
+    }
+
+    @Benchmark
+    public void addToFlowChain(Blackhole bh) {
+        final LavaCell[] cells = this.cells;
+        for (int i = 0; i < cells.length; i++) {
+            final Flowable[] members = this.chainMembers[i];
+            if (members.length == 0)
+                continue;
+
+            Flowable keeper = members[0];
+            keeper.nextToFlow = null;
+            for (int j = 1; j < members.length; j++) {
+                keeper = cells[i].addToFlowChain(keeper, members[j]);
+            }
+            bh.consume(keeper);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package grondag.pyroclasm.fluidsim;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import grondag.pyroclasm.fluidsim.LavaConnection.Flowable;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+
+/**
+ * Flow execution: {@link Flowable#doStep()} over every flow chain, and
+ * {@link LavaConnections#processRound} rounds run to completion for each step.
+ * Flow moves fluid, so before each invocation the simulation advances one tick
+ * and chains are rebuilt - that work is not measured.
+ * <p>
+ *
+ * Each invocation runs all {@link AbstractLavaConnections#STEPS_PER_TICK}
+ * steps of a tick on the same chains, as
+ * {@link AbstractLavaConnections#processConnections()} does, so that setup per
+ * invocation is small next to what is measured. Scores are per step.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class FlowStepBenchmark {
+    private static final Consumer<Flowable> STEP = f -> f.doStep();
+
+    private Flowable[] heads = new Flowable[0];
+    private int headCount;
+
+    /** processRound mutates its input, so each step starts from a copy of heads */
+    private Flowable[] work = new Flowable[0];
+
+    @Setup(Level.Invocation)
+    public void prepare(SimulationState state) {
+        state.tick();
+
+        final ObjectArrayList<Flowable> heads = new ObjectArrayList<>();
+        state.sim.cells.forEach(c -> {
+            final Flowable f = c.getFlowChain();
+            if (f != null)
+                heads.add(f);
+        });
+
+        this.headCount = heads.size();
+        this.heads = heads.toArray(this.heads);
+
+        if (this.work.length < this.heads.length)
+            this.work = new Flowable[this.heads.length];
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(AbstractLavaConnections.STEPS_PER_TICK)
+    public int doStep() {
+        int total = 0;
+        final Flowable[] heads = this.heads;
+        for (int step = 0; step < AbstractLavaConnections.STEPS_PER_TICK; step++) {
+            for (int i = 0; i < this.headCount; i++) {
+                Flowable f = heads[i];
+                while (f != null) {
+                    total += f.doStep();
+                    f = f.nextToFlow;
+                }
+            }
+        }
+        return total;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(AbstractLavaConnections.STEPS_PER_TICK)
+    public int processRound() {
+        final Flowable[] work = this.work;
+        int rounds = 0;
+        for (int step = 0; step < AbstractLavaConnections.STEPS_PER_TICK; step++) {
+            System.arraycopy(this.heads, 0, work, 0, this.headCount);
+            int size = this.headCount;
+            while (size > 0) {
+                size = LavaConnections.processRound(work, 0, size, step, STEP);
+                rounds++;
+            }
+        }
+        return rounds;
+    }
+}
@@ -0,0 +1,95 @@
+package grondag.pyroclasm.fluidsim;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import grondag.pyroclasm.Configurator;
+import grondag.pyroclasm.harness.StandInWorld;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import net.minecraft.Bootstrap;
+
+/**
+ * Headless simulation warmed up on a {@link BenchScenario}. Rebuilt for each
+ * iteration so that drift from earlier iterations (pools filling, sheets
+ * spreading) doesn't change what later iterations measure.
+ * <p>
+ *
+ * Storage and scheduling options are parameters so alternatives can be compared
+ * in one run, for example {@code -p packed=false,true}.
+ */
+@State(Scope.Benchmark)
+public class SimulationState {
+    static final int CHUNKS = 4;
+
+    @Param({ "SHEET", "POOL", "TERRACES" })
+    public BenchScenario scenario;
+
+    @Param({ "false" })
+    public boolean packed;
+
+    @Param({ "false" })
+    public boolean parity;
+
+    @Param({ "false" })
+    public boolean islands;
+
+    /** {@link Configurator.Performance#cellSleepTicks}, 0 to keep every column awake */
+    @Param({ "0", "20" })
+    public int sleep;
+
+    StandInWorld world;
+    LavaSimulator sim;
+    long source;
+
+    private static boolean isBootstrapped = false;
+
+    static synchronized void bootstrap() {
+        if (!isBootstrapped) {
+            Bootstrap.initialize();
+            Configurator.recalcDerived();
+            Configurator.recalcBlocks();
+            isBootstrapped = true;
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        bootstrap();
+
+        // captured when simulator is created
+        Configurator.PERFORMANCE.enablePackedCellStorage = this.packed;
+        Configurator.PERFORMANCE.enableChunkParityFlow = this.parity;
+        Configurator.PERFORMANCE.enableIslandFlow = this.islands;
+
+        // sleep counts cell setups, not ticks, so works as on a server
+        Configurator.PERFORMANCE.cellSleepTicks = this.sleep;
+
+        this.world = new StandInWorld(CHUNKS, CHUNKS);
+        this.source = this.scenario.build(this.world);
+        this.sim = LavaSimulator.createHeadless(this.world);
+
+        for (int i = 0; i < this.scenario.warmupTicks; i++) {
+            this.tick();
+        }
+    }
+
+    /** pours lava at the scenario source and runs one complete simulation tick */
+    void tick() {
+        this.sim.addLava(this.source, this.scenario.lavaPerTick);
+        this.sim.doOnTick();
+        this.sim.doOffTick();
+    }
+
+    /** all live cells that currently hold fluid */
+    LavaCell[] cellsWithFluid() {
+        final ObjectArrayList<LavaCell> result = new ObjectArrayList<>();
+        this.sim.cells.forEach(c -> {
+            if (c.fluidUnits() > 0)
+                result.add(c);
+        });
+        return result.toArray(new LavaCell[result.size()]);
+    }
+}
@@ -2,6 +2,7 @@ package grondag.pyroclasm;
 
 import java.util.IdentityHashMap;
 
+import grondag.pyroclasm.fluidsim.BlockType;
 import grondag.pyroclasm.fluidsim.LavaCell;
 import grondag.xm.relics.BlockHarvestTool;
 import grondag.xm.relics.SubstanceConfig;
@@ -19,6 +20,7 @@ public class Configurator {
 
     public static void recalcBlocks() {
         Volcano.recalcBlocks();
+        BlockType.rebuildLookup();
     }
 
     ////////////////////////////////////////////////////
@@ -597,6 +599,24 @@ public class Configurator {
 //        @RangeInt(min = 1, max = 10)
         public int maxChunkUpdatesPerTick = 1;
 
+//        @LangKey("pyroclasm.config.prioritized_chunk_updates")
+//        @Comment({"When true, chunk updates are applied to world in order of closeness to players,",
+//        "lava activity and time since last update, until the time budget below is spent,",
+//        "instead of a fixed number of chunks in turn. Server-side only"})
+        public boolean enablePrioritizedChunkUpdates = false;
+
+//        @LangKey("pyroclasm.config.chunk_update_budget_nanos")
+//        @Comment({"Nanoseconds each tick may spend applying chunk updates to world when prioritized",
+//        "chunk updates are enabled. At least one chunk is always updated. Server-side only"})
+//        @RangeInt(min = 100000, max = 20000000)
+        public int chunkUpdateBudgetNanos = 2000000;
+
+//        @LangKey("pyroclasm.config.chunk_update_player_radius")
+//        @Comment({"Chunks within this many chunks of a player are updated sooner, the closer the sooner,",
+//        "when prioritized chunk updates are enabled. Zero to ignore players. Server-side only"})
+//        @RangeInt(min = 0, max = 32)
+        public int chunkUpdatePlayerRadius = 8;
+
 //        @LangKey("pyroclasm.config.cooldown_target_load_factor")
 //        @Comment({"Fraction of alloted CPU usage must be drop below this before volcano in cooldown mode starts to flow again.",
 //            "Server-side only"})
@@ -676,10 +696,89 @@ public class Configurator {
 //        "generate so many block updates, so frequently, it can cause low frame rates. ",
 //        "This settting is identical to the Forge setting of the same name, and even uses the Forge ",
 //        "implementation internally to avoid creating a redundant hook, except it is enabled by default.",
-//        "*** Strongly recommended you leave this on. ***",
-//        "Client-side only."})
+//        "On the server, full lava cell validation of newly loaded or changed chunks also moves",
+//        "off the server thread: packed section data is copied during the tick and cells are",
+//        "rebuilt from it in parallel. Checks of single changed blocks stay on the server thread.",
+//        "*** Strongly recommended you leave this on. ***"})
         public boolean alwaysSetupTerrainOffThread = true;
 
+//        @LangKey("pyroclasm.config.packed_cell_storage")
+//        @RequiresMcRestart
+//        @Comment({"When true, lava cell state is kept in packed arrays owned by each simulated chunk",
+//        "instead of in individual cell objects. Reduces object count and garbage collection load",
+//        "for large lava flows. Takes effect when the simulator is next created.",
+//        "Server-side only"})
+        public boolean enablePackedCellStorage = false;
+
+//        @LangKey("pyroclasm.config.chunk_parity_flow")
+//        @RequiresMcRestart
+//        @Comment({"When true, multi-threaded lava flow processes chunks in four checkerboard phases",
+//        "so that no two threads can touch the same cell, instead of locking cells for each flow.",
+//        "Reduces lock contention for large flows on machines with many cores.",
+//        "Takes effect when the simulator is next created. Server-side only"})
+        public boolean enableChunkParityFlow = false;
+
+//        @LangKey("pyroclasm.config.cell_sleep_ticks")
+//        @Comment({"Lava cell columns are skipped during flow setup after this many ticks",
+//        "with no change in the column or its neighbors. They wake up when lava",
+//        "or terrain near them changes. Lower values save more CPU on large, settled lava fields.",
+//        "Set to 0 to process every cell every tick. Server-side only"})
+//        @RangeInt(min = 0, max = 100)
+        public int cellSleepTicks = 20;
+
+//        @LangKey("pyroclasm.config.island_flow")
+//        @RequiresMcRestart
+//        @Comment({"When true, lava cells are grouped into islands of connected cells and each island",
+//        "flows as a unit on a single thread, without locking cells. Takes precedence over",
+//        "chunk parity flow. Takes effect when the simulator is next created. Server-side only"})
+        public boolean enableIslandFlow = false;
+
+//        @LangKey("pyroclasm.config.island_sleep_flow_units")
+//        @Comment({"With island flow enabled, islands whose total flow in a tick is below this many",
+//        "fluid units stop flowing until something outside the island changes one of their cells.",
+//        "1000 units is a single level of lava. Set to 0 to keep all islands flowing. Server-side only"})
+//        @RangeInt(min = 0, max = 12000)
+        public int islandSleepFlowUnits = 40;
+
+//        @LangKey("pyroclasm.config.validation_budget_micros")
+//        @Comment({"Time in microseconds the server thread may spend each tick checking lava cells",
+//        "against terrain, or capturing terrain snapshots when that check happens off thread.",
+//        "At least one chunk is handled each tick if any need it. Newly loaded chunks go first,",
+//        "but may wait for later ticks when many load at once. Server-side only"})
+//        @RangeInt(min = 100, max = 50000)
+        public int validationBudgetMicros = 2000;
+
+//        @LangKey("pyroclasm.config.async_cell_save")
+//        @Comment({"When true, lava cells are saved to their own file and encoded and compressed",
+//        "on a background thread. The server thread only copies cell state. When false,",
+//        "cells are saved with the rest of the simulation on the server thread. Server-side only"})
+        public boolean asyncCellSave = true;
+
+//        @LangKey("pyroclasm.config.per_chunk_state")
+//        @Comment({"When true, lava cells and cooling basalt are saved with each chunk and read when",
+//        "the chunk loads, instead of all at once with the rest of the simulation. Makes load",
+//        "time depend on loaded chunks instead of everywhere lava has ever been. Server-side only"})
+        public boolean perChunkSimulatorState = false;
+
+//        @LangKey("pyroclasm.config.section_batched_writes")
+//        @Comment({"When true, lava block changes are written to the world grouped by chunk section,",
+//        "with one combined pass of neighbor updates, instead of one vanilla block update at a time.",
+//        "Much faster when large flows change many blocks in the same tick. Server-side only"})
+        public boolean enableSectionBatchedWrites = false;
+
+//        @LangKey("pyroclasm.config.parallel_terrain_updates")
+//        @Comment({"When true, lava and basalt terrain shapes, fillers and conversions for large updates",
+//        "are worked out on multiple threads, one chunk per task, and only the resulting block changes",
+//        "are made on the server thread. Server-side only"})
+        public boolean enableParallelTerrainUpdates = false;
+
+//        @LangKey("pyroclasm.config.surface_delta_packets")
+//        @Comment({"When true, changes in lava height are sent to clients in one compact packet per tick",
+//        "instead of vanilla block updates. Uses less bandwidth when many lava surfaces change at once,",
+//        "but can use slightly more than vanilla when only a few do. Clients must have this mod",
+//        "installed, which Pyroclasm requires anyway. Server-side only"})
+        public boolean enableSurfaceDeltaPackets = false;
+
     }
 
     ////////////////////////////////////////////////////
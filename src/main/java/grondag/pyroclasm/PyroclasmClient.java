@@ -4,16 +4,26 @@ import grondag.frex.FrexInitializer;
 import grondag.frex.api.Renderer;
 import grondag.frex.api.material.MaterialShader;
 import grondag.frex.api.material.UniformRefreshFrequency;
+import grondag.fermion.position.PackedBlockPos;
+import grondag.pyroclasm.init.ModBlocks;
 import grondag.pyroclasm.init.PyroclasmTextures;
 import grondag.pyroclasm.projectile.EntityLavaBlob;
 import grondag.pyroclasm.projectile.FXLavaBlob;
 import grondag.pyroclasm.projectile.RenderLavaBlob;
+import grondag.pyroclasm.world.LavaSurfaceDeltas;
+import grondag.xm.terrain.TerrainBlockHelper;
+import it.unimi.dsi.fastutil.bytes.ByteArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
 import net.fabricmc.api.ClientModInitializer;
 import net.fabricmc.fabric.api.client.render.EntityRendererRegistry;
+import net.fabricmc.fabric.api.network.ClientSidePacketRegistry;
 import net.fabricmc.fabric.api.renderer.v1.material.RenderMaterial;
+import net.minecraft.block.BlockState;
 import net.minecraft.client.MinecraftClient;
 import net.minecraft.client.texture.Sprite;
+import net.minecraft.client.world.ClientWorld;
 import net.minecraft.util.Identifier;
+import net.minecraft.util.math.BlockPos;
 import net.minecraft.world.World;
 
 public class PyroclasmClient implements ClientModInitializer, FrexInitializer {
@@ -25,6 +35,37 @@ public class PyroclasmClient implements ClientModInitializer, FrexInitializer {
         // PacketUpdateVolcanoMarks.class, Side.CLIENT);
         
         EntityRendererRegistry.INSTANCE.register(EntityLavaBlob.class, RenderLavaBlob::new);
+
+        ClientSidePacketRegistry.INSTANCE.register(LavaSurfaceDeltas.CHANNEL, (context, buf) -> {
+            // read here, buffer is released once this returns
+            final LongArrayList positions = new LongArrayList();
+            final ByteArrayList heights = new ByteArrayList();
+            LavaSurfaceDeltas.read(buf, (x, y, z, height) -> {
+                positions.add(PackedBlockPos.pack(x, y, z));
+                heights.add((byte) height);
+            });
+            context.getTaskQueue().execute(() -> applyLavaSurfaceDeltas(positions, heights));
+        });
+    }
+
+    /** Sets lava heights sent by {@link LavaSurfaceDeltas} in the client world. */
+    private static void applyLavaSurfaceDeltas(LongArrayList positions, ByteArrayList heights) {
+        final ClientWorld world = MinecraftClient.getInstance().world;
+        if (world == null)
+            return;
+
+        final BlockState lava = ModBlocks.lava_dynamic_height.getDefaultState();
+        final BlockPos.Mutable pos = new BlockPos.Mutable();
+        final int size = positions.size();
+
+        for (int i = 0; i < size; i++) {
+            PackedBlockPos.unpackTo(positions.getLong(i), pos);
+            if (!world.isChunkLoaded(pos.getX() >> 4, pos.getZ() >> 4))
+                continue;
+
+            // same flags vanilla uses for block updates from the server
+            world.setBlockState(pos, TerrainBlockHelper.stateWithDiscreteFlowHeight(lava, heights.getByte(i)), 19);
+        }
     }
 
     private static RenderMaterial lavaPipeline = null;
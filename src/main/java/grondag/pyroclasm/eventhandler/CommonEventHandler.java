@@ -2,6 +2,7 @@ package grondag.pyroclasm.eventhandler;
 
 import grondag.fermion.simulator.Simulator;
 import grondag.pyroclasm.Configurator;
+import grondag.pyroclasm.fluidsim.LavaSimulator;
 import grondag.pyroclasm.volcano.VolcanoManager;
 import net.minecraft.world.World;
 import net.minecraft.world.chunk.Chunk;
@@ -24,6 +25,10 @@ public class CommonEventHandler {
         VolcanoManager vm = Simulator.instance().getNode(VolcanoManager.class);
         if (vm != null)
             vm.handleChunkLoad(world, chunk);
+
+        LavaSimulator sim = Simulator.instance().getNode(LavaSimulator.class);
+        if (sim != null)
+            sim.handleChunkLoad(world, chunk);
     }
 
     public static void onChunkUnload(World world, Chunk chunk) { 
@@ -9,61 +9,56 @@ public abstract class AbstractLavaCell {
     public static final int PRESSURE_FACTOR_MINUS = PRESSURE_FACTOR - 1;
     public static final int PRESSURE_FACTOR_X2 = PRESSURE_FACTOR * 2;
 
+    /******************************************************
+     * STORAGE
+     * 
+     * Values of record are held by subclasses so that they
+     * can live either in object fields or in packed arrays
+     * owned by the cell chunk. See {@link HeapLavaCell} and
+     * {@link PackedLavaCell}.
+     ******************************************************/
+
     /**
      * True if this cell is new or has expanded. Used to determine if
      * updateConnectionsIfNeeded should do anything.
      */
-    private boolean isConnectionUpdateNeeded = true;
+    public abstract boolean isConnectionUpdateNeeded();
 
-    public final void invalidateConnections() {
-        if (!this.isConnectionUpdateNeeded)
-            this.isConnectionUpdateNeeded = true;
-    }
+    protected abstract void storeConnectionUpdateNeeded(boolean isNeeded);
 
-    public final boolean isConnectionUpdateNeeded() {
-        return this.isConnectionUpdateNeeded;
+    public final void invalidateConnections() {
+        if (!this.isConnectionUpdateNeeded())
+            this.storeConnectionUpdateNeeded(true);
     }
 
     public final void clearConnectionUpdate() {
-        if (this.isConnectionUpdateNeeded)
-            this.isConnectionUpdateNeeded = false;
+        if (this.isConnectionUpdateNeeded())
+            this.storeConnectionUpdateNeeded(false);
     }
 
+    /**
+     * Called when fluid or shape of this cell changes so that cell setup will
+     * visit this cell and its neighbors even if they had been at rest.
+     */
+    public abstract void wake();
+
     /******************************************************
      * FLOOR STUFF
      ******************************************************/
 
-    /** authoritative value - all others are derived from this */
-    private int floorLevel;
-
-    /** see {@link #isBottomFlow()} */
-    private boolean isBottomFlow;
-
     /**
-     * Floor as fluid units instead of levels - derived from floor each time floor
-     * is set. Here to avoid multiplying floor each connection pass.
+     * Saves floor level of record and anything derived from it. Called only when
+     * floor has actually changed.
      */
-    private int floorUnits;
-
-    /**
-     * Floor of cell as Y level instead of levels - derived from floor each time
-     * floor is set. Is the lowest level of cell that can contain lava.
-     * <p>
-     * 
-     * If the change is caused by lava cooling, will not affect the retention level
-     * of neighboring cells that still contain lava.
-     */
-    private short floorY;
+    protected abstract void storeFloorLevel(int newFloorLevel, boolean isFlowFloor);
 
     /** See {@link #floorLevel()} */
     public final void setFloorLevel(int newFloorLevel, boolean isFlowFloor) {
-        if (newFloorLevel != this.floorLevel || isFlowFloor != this.isBottomFlow) {
+        if (newFloorLevel != this.floorLevel() || isFlowFloor != this.isBottomFlow()) {
             this.invalidateConnections();
 
-            this.floorLevel = newFloorLevel;
-            this.floorUnits = newFloorLevel * LavaSimulator.FLUID_UNITS_PER_LEVEL;
-            this.isBottomFlow = isFlowFloor;
-            this.floorY = (short) getYFromFloor(this.floorLevel);
+            this.storeFloorLevel(newFloorLevel, isFlowFloor);
+            this.wake();
 
             // force retention recalc
             this.invalidateLocalFloorDependencies();
@@ -75,19 +70,16 @@ public abstract class AbstractLavaCell {
      * from 0 to (256 * LEVELS_PER_BLOCK) - 1 Levels in Y=0 for example, are 0 thru
      * 11. ALWAYS USE setFloor() instead of floor to maintain bottomY.
      */
-    public final int floorLevel() {
-        return this.floorLevel;
-    }
+    public abstract int floorLevel();
 
-    /** floor as units instead of block levels */
-    public final int floorUnits() {
-        return this.floorUnits;
-    }
+    /**
+     * Floor as fluid units instead of levels. Implementations may cache this to
+     * avoid multiplying floor each connection pass.
+     */
+    public abstract int floorUnits();
 
     /** Y of start (lowest) block that could contain lava */
-    public final int floorY() {
-        return this.floorY;
-    }
+    public abstract int floorY();
 
     /**
      * Y of the block that forms the floor of this cell. Will be same as
@@ -111,21 +103,19 @@ public abstract class AbstractLavaCell {
         // 13 -> 1
         // 23 -> 11
         // 24 -> 0
-        return this.floorLevel % TerrainState.BLOCK_LEVELS_INT;
+        return this.floorLevel() % TerrainState.BLOCK_LEVELS_INT;
     }
 
     /**
      * True if the solid block under this columns is a flow block. Note that it must
      * be true if bottomFlowHeight > 0;
      */
-    public final boolean isBottomFlow() {
-        return this.isBottomFlow;
-    }
+    public abstract boolean isBottomFlow();
 
     /**
      * calculates the block y from a bottom bound (exclusive) given as a fluid level
      */
-    private static final int getYFromFloor(int floorIn) {
+    protected static final int getYFromFloor(int floorIn) {
         return floorIn / LavaSimulator.LEVELS_PER_BLOCK;
     }
 
@@ -138,22 +128,18 @@ public abstract class AbstractLavaCell {
      * CEILING STUFF
      ******************************************************/
 
-    /** Value of record - all others derived from this one. */
-    private int ceilingLevel;
-
-    /** see {@link #ceilingUnits()} */
-    private int ceilingUnits;
-
-    /** see {@link #ceilingY()} */
-    private short ceilingY;
+    /**
+     * Saves ceiling level of record and anything derived from it. Called only when
+     * ceiling has actually changed.
+     */
+    protected abstract void storeCeilingLevel(int newCeilingLevel);
 
     /** See {@link #ceilingLevel()} */
     public final void setCeilingLevel(int newCeilingLevel) {
-        if (newCeilingLevel != this.ceilingLevel) {
+        if (newCeilingLevel != this.ceilingLevel()) {
             this.invalidateConnections();
-            this.ceilingLevel = newCeilingLevel;
-            this.ceilingUnits = newCeilingLevel * LavaSimulator.FLUID_UNITS_PER_LEVEL;
-            this.ceilingY = (short) getYFromCeilingLevel(this.ceilingLevel);
+            this.storeCeilingLevel(newCeilingLevel);
+            this.wake();
         }
     }
 
@@ -162,22 +148,16 @@ public abstract class AbstractLavaCell {
      * from 1 to (256 * LEVELS_PER_BLOCK) Levels in Y=0, for example are 1 thru 12.
      * ALWAYS USE setCeiling() to maintain topY.
      */
-    public final int ceilingLevel() {
-        return this.ceilingLevel;
-    }
+    public abstract int ceilingLevel();
 
     /* Ceiling as fluid units */
-    public final int ceilingUnits() {
-        return this.ceilingUnits;
-    }
+    public abstract int ceilingUnits();
 
     /** Y of last (top) block that could contain lava */
-    public final int ceilingY() {
-        return this.ceilingY;
-    }
+    public abstract int ceilingY();
 
     public final boolean isOpenToSky() {
-        return this.ceilingY == 255;
+        return this.ceilingY() == 255;
     }
 
     /**
@@ -206,7 +186,7 @@ public abstract class AbstractLavaCell {
 
     /** volume of space in this cell, in fluid units */
     public final int volumeUnits() {
-        return this.ceilingUnits - this.floorUnits;
+        return this.ceilingUnits() - this.floorUnits();
     }
 
     /******************************************************
@@ -216,15 +196,17 @@ public abstract class AbstractLavaCell {
     /**
      * Amount of fluid currently in the cell as measured in fluid units.
      */
-    private int fluidUnits;
+    public abstract int fluidUnits();
+
+    protected abstract void storeFluidUnits(int newUnits);
 
     public void changeFluidUnits(int deltaUnits) {
-        this.fluidUnits += deltaUnits;
-        if (this.fluidUnits < 0) {
-            this.fluidUnits = 0;
+        int newUnits = this.fluidUnits() + deltaUnits;
+        if (newUnits < 0) {
+            newUnits = 0;
 //            assert false : String.format("Negative fluid units detected.  NewAmount=%1$d Delta=%2$d cellID=%3$d", this.fluidUnits.get(), deltaUnits, this.id);
         }
-
+        this.storeFluidUnits(newUnits);
     }
 
     public final void setFluidUnits(int newUnits) {
@@ -232,7 +214,8 @@ public abstract class AbstractLavaCell {
             assert false : String.format("Negative fluid units detected.  NewAmount=%d cell ID=%s", newUnits, this.hashCode());
             newUnits = 0;
         }
-        this.fluidUnits = newUnits;
+        this.storeFluidUnits(newUnits);
+        this.wake();
     }
 
     /**
@@ -241,24 +224,20 @@ public abstract class AbstractLavaCell {
      */
     protected abstract void invalidateLocalFloorDependencies();
 
-    public final int fluidUnits() {
-        return this.fluidUnits;
-    }
-
     /**
      * Returns at least 1 if cell has any fluid, even if less than one full level.
      */
     public final int fluidLevels() {
-        int units = this.fluidUnits;
+        int units = this.fluidUnits();
         return units == 0 ? 0 : Math.max(1, units / LavaSimulator.FLUID_UNITS_PER_LEVEL);
     }
 
     public final boolean isEmpty() {
-        return this.fluidUnits == 0;
+        return this.fluidUnits() == 0;
     }
 
     protected final void emptyCell() {
-        this.fluidUnits = 0;
+        this.storeFluidUnits(0);
     }
 
     /******************************************************
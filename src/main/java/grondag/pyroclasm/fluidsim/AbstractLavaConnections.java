@@ -1,5 +1,7 @@
 package grondag.pyroclasm.fluidsim;
 
+import java.util.concurrent.atomic.LongAdder;
+
 import grondag.pyroclasm.Pyroclasm;
 import grondag.pyroclasm.fluidsim.LavaConnection.Flowable;
 import grondag.fermion.sc.concurrency.PerformanceCounter;
@@ -10,13 +12,32 @@ public abstract class AbstractLavaConnections {
     protected final LavaSimulator sim;
     /** incremented each step, multiple times per tick */
     protected int stepIndex;
-    protected int[] flowTotals = new int[5];
-    protected int[] flowCounts = new int[5];
+    /** number of times {@link #processConnections()} steps flow each tick */
+    public static final int STEPS_PER_TICK = 5;
+
+    protected int[] flowTotals = new int[STEPS_PER_TICK];
+    protected int[] flowCounts = new int[STEPS_PER_TICK];
     public final PerformanceCounter setupCounter;
     public final PerformanceCounter stepCounter;
     public final PerformanceCounter parallelStepCounter;
+    public final PerformanceCounter parityStepCounter;
+    public final PerformanceCounter islandStepCounter;
     final SimpleConcurrentList<Flowable> toProcess;
 
+    /**
+     * Counts connections and flowables allocated during cell setup when
+     * performance logging is enabled. Should stay at zero once flow reaches a
+     * steady state, because both are reused.
+     */
+    private static final LongAdder allocationCount = new LongAdder();
+
+    /**
+     * Changes just before and just after each {@link #doCellSetup()}, which is
+     * when columns woken since the last setup are read and cleared. See
+     * {@link LavaCell#wake()}
+     */
+    private volatile int setupGeneration = 0;
+
     protected AbstractLavaConnections(LavaSimulator sim) {
         super();
         this.sim = sim;
@@ -25,18 +46,23 @@ public abstract class AbstractLavaConnections {
 
         parallelStepCounter = PerformanceCounter.create(Configurator.DEBUG.enablePerformanceLogging, "Flow Step - Multi-threaded", sim.perfCollectorOffTick);
 
+        parityStepCounter = PerformanceCounter.create(Configurator.DEBUG.enablePerformanceLogging, "Flow Step - Chunk Parity", sim.perfCollectorOffTick);
+
+        islandStepCounter = PerformanceCounter.create(Configurator.DEBUG.enablePerformanceLogging, "Flow Step - Islands", sim.perfCollectorOffTick);
+
         this.toProcess = SimpleConcurrentList.create(Flowable.class, Configurator.DEBUG.enablePerformanceLogging, "Connection Processing",
                 sim.perfCollectorOffTick);
     }
 
-    @SuppressWarnings("unused")
     public final void createConnectionIfNotPresent(LavaCell first, LavaCell second) {
         boolean isIncomplete = true;
+        long retryStart = 0;
         do {
             if (first.tryLock()) {
                 if (second.tryLock()) {
-                    if (!first.isConnectedTo(second)) {
-                        new LavaConnection(first, second);
+                    final LavaConnection connection = ConnectionArena.of(first, second).createIfAbsent(first, second);
+                    if (connection != null) {
+                        this.onConnectionCreated(connection);
                     }
 
                     isIncomplete = false;
@@ -44,16 +70,82 @@ public abstract class AbstractLavaConnections {
                 }
                 first.unlock();
             }
+
+            if (isIncomplete && Configurator.DEBUG.enablePerformanceLogging) {
+                if (retryStart == 0)
+                    retryStart = System.nanoTime();
+                LavaConnection.lockRetryCount.increment();
+            }
         } while (isIncomplete);
+
+        if (retryStart != 0)
+            LavaConnection.lockRetryNanos.add(System.nanoTime() - retryStart);
+    }
+
+    /**
+     * Outputs and resets counts of time spent retrying cell locks. Flow with
+     * {@link Configurator.Performance#enableChunkParityFlow} does not lock cells,
+     * so any retries reported in that mode are from connection setup.
+     */
+    public final void reportLockRetriesIfEnabled() {
+        if (Configurator.DEBUG.enablePerformanceLogging) {
+            Pyroclasm.LOG.info(String.format("Cell lock retries = %1$,d taking %2$,dms", LavaConnection.lockRetryCount.sumThenReset(),
+                    LavaConnection.lockRetryNanos.sumThenReset() / 1000000));
+        }
+    }
+
+    /** Call when cell setup allocates a connection or flowable. */
+    static void countAllocation() {
+        if (Configurator.DEBUG.enablePerformanceLogging)
+            allocationCount.increment();
+    }
+
+    /**
+     * Connections and flowables allocated since allocations were last reported.
+     * Always zero unless {@link Configurator.Debug#enablePerformanceLogging} is
+     * true.
+     */
+    public final long allocationCount() {
+        return allocationCount.sum();
+    }
+
+    /** Outputs and resets count of connections and flowables allocated. */
+    public final void reportAllocationsIfEnabled() {
+        if (Configurator.DEBUG.enablePerformanceLogging) {
+            Pyroclasm.LOG.info(String.format("Connection allocations = %1$,d", allocationCount.sumThenReset()));
+        }
     }
 
     public final void reportFlowTrackingIfEnabled() {
         if (Configurator.DEBUG.enableFlowTracking) {
-            for (int i = 0; i < 8; i++) {
+            for (int i = 0; i < STEPS_PER_TICK; i++) {
                 Pyroclasm.LOG.info(String.format("Flow total for step %1$d = %2$,d with %3$,d connections", i, this.flowTotals[i], this.flowCounts[i]));
-                this.flowTotals[i] = 0;
-                this.flowCounts[i] = 0;
             }
+            this.clearFlowTracking();
+        }
+    }
+
+    /**
+     * Fluid units flowed in the given step since flow tracking was last cleared.
+     * Always zero unless {@link Configurator.Debug#enableFlowTracking} is true.
+     */
+    public final int flowTotal(int step) {
+        return this.flowTotals[step];
+    }
+
+    /**
+     * Connections processed in the given step since flow tracking was last
+     * cleared. Always zero unless {@link Configurator.Debug#enableFlowTracking} is
+     * true.
+     */
+    public final int flowCount(int step) {
+        return this.flowCounts[step];
+    }
+
+    public final void clearFlowTracking() {
+        for (int i = 0; i < STEPS_PER_TICK; i++) {
+            this.flowTotals[i] = 0;
+            this.flowCounts[i] = 0;
         }
     }
 
@@ -63,6 +155,22 @@ public abstract class AbstractLavaConnections {
      */
     public abstract void doCellSetup();
 
+    /** See {@link #setupGeneration} */
+    final int setupGeneration() {
+        return this.setupGeneration;
+    }
+
+    /** Call before and after cell setup. Server thread only. */
+    protected final void advanceSetupGeneration() {
+        this.setupGeneration++;
+    }
+
+    /** Called during cell setup, possibly concurrently, for each new connection */
+    protected abstract void onConnectionCreated(LavaConnection connection);
+
+    /** Called after all steps in {@link #processConnections()} */
+    protected abstract void onFlowComplete();
+
     protected abstract void doStepInner();
 
     /**
@@ -76,6 +184,7 @@ public abstract class AbstractLavaConnections {
         this.doStep();
         this.doStep();
         this.doStep();
+        this.onFlowComplete();
         this.toProcess.clear();
     }
 
@@ -6,6 +6,7 @@ import grondag.xm.terrain.TerrainBlockHelper;
 import net.minecraft.block.Block;
 import net.minecraft.block.BlockState;
 import net.minecraft.block.Blocks;
+import net.minecraft.util.IdList;
 
 // possible cell content
 public enum BlockType {
@@ -52,7 +53,47 @@ public enum BlockType {
         this.isBarrier = isBarrier;
     }
 
+    /**
+     * Block type for each block state, indexed by raw state id. Null entries and
+     * ids past the end (states registered after the last rebuild) fall back to
+     * {@link #classify(BlockState)}. Getting the id is itself an identity hash
+     * lookup, so callers that scan many blocks skip it for repeated states.
+     * Storing the type on each state would need a mixin. Not volatile - a thread that sees a stale
+     * table or a missing entry just takes the slow path and gets the same answer.
+     */
+    private static BlockType[] typesByStateId = new BlockType[0];
+
+    /**
+     * Classifies every registered block state. Call once registries are final and
+     * again whenever configured block lists change, because those affect which
+     * blocks lava can displace.
+     */
+    public static void rebuildLookup() {
+        final IdList<BlockState> ids = Block.STATE_IDS;
+        int maxId = -1;
+        for (BlockState state : ids) {
+            maxId = Math.max(maxId, ids.getId(state));
+        }
+
+        final BlockType[] types = new BlockType[maxId + 1];
+        for (BlockState state : ids) {
+            types[ids.getId(state)] = classify(state);
+        }
+        typesByStateId = types;
+    }
+
     public static BlockType getBlockTypeFromBlockState(BlockState state) {
+        final int id = Block.STATE_IDS.getId(state);
+        final BlockType[] types = typesByStateId;
+        if (id >= 0 && id < types.length) {
+            final BlockType result = types[id];
+            if (result != null)
+                return result;
+        }
+        return classify(state);
+    }
+
+    private static BlockType classify(BlockState state) {
         Block block = state.getBlock();
 
         if (block == Blocks.LAVA)
@@ -1,6 +1,7 @@
 package grondag.pyroclasm.fluidsim;
 
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.function.Consumer;
 
 import javax.annotation.Nullable;
@@ -10,7 +11,7 @@ import grondag.fermion.sc.unordered.SimpleUnorderedArrayList;
 import grondag.fermion.simulator.Simulator;
 import grondag.pyroclasm.Pyroclasm;
 import grondag.pyroclasm.Configurator;
-import net.minecraft.world.chunk.Chunk;
+import net.minecraft.world.BlockView;
 
 /**
  * Container for all cells in a world chunk. When a chunk is loaded (or updated)
@@ -38,7 +39,7 @@ public class CellChunk {
     private final int zEnd;
 
     /** unload chunks when they have been unloadable this many ticks */
-    private final static int TICK_UNLOAD_THRESHOLD = 200;
+    final static int TICK_UNLOAD_THRESHOLD = 200;
 
     /**
      * number of ticks this chunk has been unloadable - unload when reaches
@@ -101,14 +102,117 @@ public class CellChunk {
     /** If true, chunk needs full validation. */
     private boolean needsFullValidation = true;
 
+    /**
+     * Packed storage for cells in this chunk. Null if cells keep their state in
+     * object fields. See {@link Configurator.Performance#enablePackedCellStorage}
+     */
+    @Nullable
+    final PackedCellStore cellStore;
+
+    /**
+     * Number of distinct values of {@link #parity}.
+     */
+    static final int PARITY_COUNT = 4;
+
+    /**
+     * Two-bit checkerboard class of this chunk, from the low bit of the chunk x
+     * and z positions. Cells only connect with cells in the four horizontally
+     * adjacent columns, and chunks with the same parity are an even number of
+     * chunks apart on both axes. So the only cells two such chunks can both reach
+     * are on opposite edges of a chunk between them, and flows from chunks of the
+     * same parity never touch the same cell.
+     */
+    final int parity;
+
+    /**
+     * Heads of the flow chains of cells in this chunk for the current tick. Only
+     * maintained when {@link Configurator.Performance#enableChunkParityFlow} is
+     * true. Filled by cell setup, which handles each chunk on a single thread.
+     */
+    final FlowChainList flowChains = new FlowChainList();
+
+    /**
+     * Connections between cells of this chunk, and with cells of neighboring
+     * chunks with a higher packed position.
+     */
+    final ConnectionArena connections = new ConnectionArena();
+
+    /**
+     * This chunk and its eight neighbors, by {@link #neighborIndex(int, int)}.
+     * Null where a neighbor isn't loaded. Maintained by {@link LavaCells} as
+     * chunks are created and unloaded, so that cells can find neighboring columns
+     * without a map lookup.
+     */
+    private final CellChunk[] neighbors = new CellChunk[9];
+
+    /**
+     * Columns in which a cell changed, or next to a column in which a cell
+     * changed, since the last cell setup. One bit per column, by
+     * {@link #getIndex(int, int)}. Set from any thread, cleared by cell setup.
+     */
+    private final AtomicLongArray wokenColumns = new AtomicLongArray(4);
+
+    /**
+     * Columns still visited by cell setup. All columns start awake. Only accessed
+     * by cell setup, which handles each chunk on a single thread.
+     */
+    private final long[] awakeColumns = { -1L, -1L, -1L, -1L };
+
+    /**
+     * Consecutive cell setups since each column was last woken. Columns go to
+     * sleep when this reaches {@link Configurator.Performance#cellSleepTicks}.
+     * Only accessed by cell setup.
+     */
+    private final byte[] quietTicks = new byte[256];
+
+    /**
+     * Terrain captured on tick for a full load or validation off tick. Cleared once
+     * validated. See {@link ChunkSnapshot}
+     */
+    private @Nullable ChunkSnapshot snapshot;
+
+    /**
+     * Position in {@link LavaCells#validationQueue}, or -1 if not queued, and the
+     * key the chunk was queued with. Only accessed by the queue.
+     */
+    int queueIndex = -1;
+    long queueTick;
+    int queuePriority;
+
+    /**
+     * True if any cell in this chunk has changed since {@link #saveData} was
+     * captured. Set by {@link LavaCell#wake()}, which every change to persisted
+     * cell state goes through, and cleared when the chunk is captured for saving.
+     */
+    private volatile boolean isSaveDirty = true;
+
+    /**
+     * Cells in this chunk as last encoded for saving - see
+     * {@link CellSaveFormat}. Reused as-is by saves until the chunk changes. Null
+     * if not yet encoded or the chunk has no cells. Written by the save encoder
+     * thread and read on the server thread.
+     */
+    private volatile @Nullable byte[] saveData;
+
+    /**
+     * Columns woken since block updates were last provided, counting each column
+     * once per tick. Stands in for how far lava surfaces in this chunk have moved
+     * from what the world shows, without visiting cells. See
+     * {@link #pendingVisualChanges()}
+     */
+    private final AtomicInteger pendingVisualChanges = new AtomicInteger();
+
     CellChunk(long packedChunkPos, LavaCells cells) {
         this.packedChunkPos = packedChunkPos;
         this.xStart = PackedChunkPos.getChunkXStart(packedChunkPos);
         this.zStart = PackedChunkPos.getChunkZStart(packedChunkPos);
         this.xEnd = this.xStart + 15;
         this.zEnd = this.zStart + 15;
+        this.parity = ((PackedChunkPos.getChunkXPos(packedChunkPos) & 1) << 1) | (PackedChunkPos.getChunkZPos(packedChunkPos) & 1);
 
         this.cells = cells;
+        this.cellStore = cells.usePackedCellStorage ? new PackedCellStore() : null;
+        this.neighbors[neighborIndex(0, 0)] = this;
 
         if (Configurator.DEBUG.enableLavaCellChunkTrace)
             Pyroclasm.LOG.info("Created chunk buffer with corner x=%d, z=%d", this.xStart, this.zStart);
@@ -120,6 +224,7 @@ public class CellChunk {
      */
     public void requestFullValidation() {
         this.needsFullValidation = true;
+        this.cells.validationQueue.update(this);
     }
 
     /**
@@ -172,13 +277,16 @@ public class CellChunk {
     public boolean validateMarkedCells() {
         this.lastValidationTick = Simulator.currentTick();
 
-        if (this.needsFullLoadOrValidation() || this.validationCount.get() == 0)
+        if (this.needsFullLoadOrValidation() || this.validationCount.get() == 0) {
+            // keep queued for full validation, if needed
+            this.cells.validationQueue.update(this);
             return false;
+        }
 
         if (Configurator.DEBUG.enableLavaCellChunkTrace)
             Pyroclasm.LOG.info("Validating marked cells in chunk with corner x=%d, z=%d", this.xStart, this.zStart);
 
-        Chunk chunk = this.cells.sim.world.getChunk(PackedChunkPos.getChunkXPos(this.packedChunkPos), PackedChunkPos.getChunkZPos(this.packedChunkPos));
+        BlockView chunk = this.cells.sim.terrain.chunkView(PackedChunkPos.getChunkXPos(this.packedChunkPos), PackedChunkPos.getChunkZPos(this.packedChunkPos));
 
         CellStackBuilder builder = new CellStackBuilder();
 
@@ -189,7 +297,8 @@ public class CellChunk {
                     LavaCell entryCell = this.getEntryCell(x, z);
 
                     if (entryCell != null && entryCell.isValidationNeeded()) {
-                        entryCell = builder.updateCellStack(cells, chunk, entryCell, this.xStart + x, this.zStart + z);
+                        entryCell = builder.updateCellStack(cells, chunk, entryCell, this.xStart + x, this.zStart + z, entryCell.validationMinY(),
+                                entryCell.validationMaxY());
                         if (entryCell != null)
                             entryCell.setValidationNeeded(false);
                         this.setEntryCell(x, z, entryCell);
@@ -200,6 +309,9 @@ public class CellChunk {
 
         }
 
+        // marks made while validating need another pass
+        this.cells.validationQueue.update(this);
+
         this.forEach(cell -> cell.updateRetentionIfNeeded());
 
         return true;
@@ -216,7 +328,7 @@ public class CellChunk {
 
             CellStackBuilder builder = new CellStackBuilder();
 
-            Chunk chunk = this.cells.sim.world.getChunk(PackedChunkPos.getChunkXPos(this.packedChunkPos), PackedChunkPos.getChunkZPos(this.packedChunkPos));
+            BlockView chunk = this.cells.sim.terrain.chunkView(PackedChunkPos.getChunkXPos(this.packedChunkPos), PackedChunkPos.getChunkZPos(this.packedChunkPos));
 
             for (int x = 0; x < 16; x++) {
                 for (int z = 0; z < 16; z++) {
@@ -236,15 +348,147 @@ public class CellChunk {
             this.lastValidationTick = Simulator.currentTick();
         }
 
+        this.cells.validationQueue.update(this);
+
+        this.forEach(cell -> cell.updateRetentionIfNeeded());
+    }
+
+    /**
+     * Captures the terrain needed by {@link #validateFromSnapshot()}. Call on the
+     * server thread, and only if a full load or validation is needed - marked cells
+     * read a few blocks per column, which is cheaper done on tick by
+     * {@link #validateMarkedCells()} than copying whole sections.
+     */
+    void captureSnapshot() {
+        final int chunkX = PackedChunkPos.getChunkXPos(this.packedChunkPos);
+        final int chunkZ = PackedChunkPos.getChunkZPos(this.packedChunkPos);
+        this.snapshot = ChunkSnapshot.capture(this.cells.sim.terrain.chunkView(chunkX, chunkZ), chunkX, chunkZ);
+    }
+
+    /**
+     * Loads or validates this chunk from terrain captured by
+     * {@link #captureSnapshot()}. Does not touch the world, so is safe to call off
+     * tick, but chunks that share a border must not be validated concurrently.
+     * <p>
+     *
+     * Unlike {@link #loadOrValidateChunk()}, does not update retention because
+     * that reads the world. Call {@link #updateRetention()} on tick afterwards.
+     */
+    void validateFromSnapshot() {
+        final ChunkSnapshot snapshot = this.snapshot;
+        if (snapshot == null)
+            return;
+
+        this.snapshot = null;
+        snapshot.resolve();
+
+        final CellStackBuilder builder = new CellStackBuilder();
+
+        synchronized (this) {
+            if (Configurator.DEBUG.enableLavaCellChunkTrace)
+                Pyroclasm.LOG.info("Loading (or reloading) chunk buffer from snapshot with corner x=%d, z=%d", this.xStart, this.zStart);
+
+            for (int x = 0; x < 16; x++) {
+                for (int z = 0; z < 16; z++) {
+                    LavaCell entryCell = this.getEntryCell(x, z);
+
+                    if (entryCell == null) {
+                        this.setEntryCell(x, z, builder.buildNewCellStack(this.cells, snapshot, this.xStart + x, this.zStart + z));
+                    } else {
+                        this.setEntryCell(x, z, builder.updateCellStack(this.cells, snapshot, entryCell, this.xStart + x, this.zStart + z, 0, 255));
+                    }
+                }
+            }
+
+            this.needsFullValidation = false;
+            this.validationCount.set(0);
+            this.lastValidationTick = Simulator.currentTick();
+        }
+
+        // marks made after capture need another pass
+        this.cells.validationQueue.update(this);
+    }
+
+    /**
+     * Updates retention for cells that need it. Reads the world, so call on the
+     * server thread.
+     */
+    void updateRetention() {
         this.forEach(cell -> cell.updateRetentionIfNeeded());
     }
 
+    /**
+     * Call the first time a column in this chunk is woken each tick. Safe to call
+     * from any thread.
+     */
+    void countVisualChange() {
+        this.pendingVisualChanges.incrementAndGet();
+    }
+
+    /**
+     * Column wakes since block updates were last provided for this chunk. Used to
+     * prioritize block updates - see {@link ChunkUpdateScheduler}
+     */
+    int pendingVisualChanges() {
+        return this.pendingVisualChanges.get();
+    }
+
+    /** Call when any persisted state of a cell in this chunk changes. */
+    void markSaveDirty() {
+        if (!this.isSaveDirty)
+            this.isSaveDirty = true;
+    }
+
+    /**
+     * True if cells have changed since they were last captured for saving and
+     * {@link #saveData()} is out of date.
+     */
+    boolean isSaveDirty() {
+        return this.isSaveDirty;
+    }
+
+    /**
+     * Captures cell state for encoding by {@link CellSaveFormat#encode(int[], int)}
+     * and clears the dirty flag. Returns null if the chunk has no cells. Call
+     * while flow is stopped.
+     */
+    @Nullable
+    int[] captureSaveState() {
+        // clear first so changes made while capturing are caught by the next save
+        this.isSaveDirty = false;
+        return CellSaveFormat.capture(this);
+    }
+
+    /**
+     * Cells in this chunk as last encoded for saving, or null if none or not yet
+     * encoded.
+     */
+    @Nullable
+    byte[] saveData() {
+        return this.saveData;
+    }
+
+    /** Call with the encoded result of {@link #captureSaveState()}. */
+    void setSaveData(@Nullable byte[] saveData) {
+        this.saveData = saveData;
+    }
+
+    /**
+     * Call after cells in this chunk have been loaded from the given data so that
+     * they aren't encoded again unless they change.
+     */
+    void setLoadedSaveData(byte[] saveData) {
+        this.saveData = saveData;
+        this.isSaveDirty = false;
+    }
+
     /**
      * Call from any cell column when the start cell in that column is marked for
      * validation after the last validation of that column.
      */
     public void incrementValidationCount() {
         this.validationCount.incrementAndGet();
+        this.cells.validationQueue.update(this);
     }
 
     public int getActiveCount() {
@@ -305,7 +549,7 @@ public class CellChunk {
     }
 
     private void releaseChunkIfExists(int blockX, int blockZ) {
-        CellChunk chunk = this.cells.getCellChunk(blockX, blockZ);
+        CellChunk chunk = this.getChunkNear(blockX, blockZ);
         if (chunk == null) {
             assert false : "Neighboring cell chunk not found during release - expected it to be loaded.";
         } else {
@@ -354,6 +598,9 @@ public class CellChunk {
         if (Configurator.DEBUG.enableLavaCellChunkTrace)
             Pyroclasm.LOG.info("Unloading chunk buffer with corner x=%d, z=%d", this.xStart, this.zStart);
 
+        this.snapshot = null;
+        this.cells.validationQueue.remove(this);
+
         for (int x = 0; x < 16; x++) {
             for (int z = 0; z < 16; z++) {
                 LavaCell entryCell = this.getEntryCell(x, z);
@@ -378,6 +625,48 @@ public class CellChunk {
         }
     }
 
+    /** Index in {@link #neighbors} of the chunk at the given offset in chunks. */
+    static int neighborIndex(int chunkOffsetX, int chunkOffsetZ) {
+        return (chunkOffsetX + 1) * 3 + chunkOffsetZ + 1;
+    }
+
+    @Nullable
+    CellChunk getNeighbor(int index) {
+        return this.neighbors[index];
+    }
+
+    /** Only for use by {@link LavaCells} */
+    void setNeighbor(int index, @Nullable CellChunk chunk) {
+        this.neighbors[index] = chunk;
+    }
+
+    /**
+     * Chunk containing the given block coordinates, or null if not loaded. Same as
+     * {@link LavaCells#getCellChunk(int, int)} but only looks up the chunk if it
+     * isn't this chunk or a neighbor.
+     */
+    @Nullable
+    CellChunk getChunkNear(int x, int z) {
+        final int dx = (x >> 4) - (this.xStart >> 4);
+        final int dz = (z >> 4) - (this.zStart >> 4);
+
+        if (dx < -1 || dx > 1 || dz < -1 || dz > 1)
+            return this.cells.getCellChunk(x, z);
+
+        return this.neighbors[neighborIndex(dx, dz)];
+    }
+
+    /**
+     * Entry cell of the column at the given block coordinates. Same as
+     * {@link LavaCells#getEntryCell(int, int)} but faster for columns in this
+     * chunk or a neighbor.
+     */
+    @Nullable
+    LavaCell getEntryCellNear(int x, int z) {
+        final CellChunk chunk = this.getChunkNear(x, z);
+        return chunk == null ? null : chunk.getEntryCell(x, z);
+    }
+
     /**
      * Returns the starting cell for the stack of cells located at x, z. Returns
      * null if no cells exist at that location. Thread safe.
@@ -417,21 +706,110 @@ public class CellChunk {
         return ((x & 15) << 4) | (z & 15);
     }
 
+    /**
+     * Marks column at the given block coordinates and the four adjacent columns
+     * for visit during next cell setup. Adjacent columns may be in a neighboring
+     * chunk, which is ignored if not loaded. Thread-safe.
+     */
+    void wakeColumnAndNeighbors(int x, int z) {
+        this.wakeColumn(x, z);
+
+        if (x == this.xStart)
+            this.wakeColumnInNeighbor(x - 1, z);
+        else
+            this.wakeColumn(x - 1, z);
+
+        if (x == this.xEnd)
+            this.wakeColumnInNeighbor(x + 1, z);
+        else
+            this.wakeColumn(x + 1, z);
+
+        if (z == this.zStart)
+            this.wakeColumnInNeighbor(x, z - 1);
+        else
+            this.wakeColumn(x, z - 1);
+
+        if (z == this.zEnd)
+            this.wakeColumnInNeighbor(x, z + 1);
+        else
+            this.wakeColumn(x, z + 1);
+    }
+
+    private void wakeColumnInNeighbor(int x, int z) {
+        final CellChunk neighbor = this.getChunkNear(x, z);
+        if (neighbor != null)
+            neighbor.wakeColumn(x, z);
+    }
+
+    private void wakeColumn(int x, int z) {
+        final int i = getIndex(x, z);
+        final int word = i >> 6;
+        final long mask = 1L << (i & 63);
+        if ((this.wokenColumns.get(word) & mask) == 0)
+            this.wokenColumns.getAndAccumulate(word, mask, (a, b) -> a | b);
+    }
+
+    /**
+     * Like {@link #forEach(Consumer)} but skips columns where no cell in the
+     * column or an adjacent column has changed during the last sleepTicks calls.
+     * Only for use by cell setup, which handles each chunk on a single thread.
+     */
+    public void forEachAwake(Consumer<LavaCell> consumer, int sleepTicks) {
+        final byte[] quietTicks = this.quietTicks;
+        // quiet ticks never go past the threshold, so this keeps them within a byte
+        final int threshold = Math.min(sleepTicks, Byte.MAX_VALUE);
+
+        for (int word = 0; word < 4; word++) {
+            final long woken = this.wokenColumns.getAndSet(word, 0);
+            long bits = this.awakeColumns[word] | woken;
+            long stillAwake = bits;
+
+            while (bits != 0) {
+                final int bit = Long.numberOfTrailingZeros(bits);
+                final long mask = 1L << bit;
+                bits &= ~mask;
+
+                final int i = (word << 6) | bit;
+
+                if ((woken & mask) != 0)
+                    quietTicks[i] = 0;
+
+                if (++quietTicks[i] >= threshold)
+                    stillAwake &= ~mask;
+
+                LavaCell c = this.entryCells[i];
+                if (c == null)
+                    continue;
+                c = c.firstCell();
+
+                do {
+                    consumer.accept(c);
+                    c = c.aboveCell();
+                } while (c != null);
+            }
+
+            this.awakeColumns[word] = stillAwake;
+        }
+    }
+
     public void provideBlockUpdatesAndDoCooling() {
         final LavaSimulator sim = this.cells.sim;
 
+        // before updates, so that wakes caused by them count toward the next
+        this.pendingVisualChanges.set(0);
+
         final int tick = Simulator.currentTick();
 
-        CellChunk c = sim.cells.getCellChunk(this.xStart - 16, this.zStart);
+        CellChunk c = this.neighbors[neighborIndex(-1, 0)];
         final boolean isUnavailableLowX = c == null || c.isNew();
 
-        c = sim.cells.getCellChunk(this.xStart + 16, this.zStart);
+        c = this.neighbors[neighborIndex(1, 0)];
         final boolean isUnavailableHighX = c == null || c.isNew();
 
-        c = sim.cells.getCellChunk(this.xStart, this.zStart - 16);
+        c = this.neighbors[neighborIndex(0, -1)];
         final boolean isUnavailableLowZ = c == null || c.isNew();
 
-        c = sim.cells.getCellChunk(this.xStart, this.zStart + 16);
+        c = this.neighbors[neighborIndex(0, 1)];
         final boolean isUnavailableHighZ = c == null || c.isNew();
 
         // don't want to cool the cells as we go - would potentially cause unpleasing
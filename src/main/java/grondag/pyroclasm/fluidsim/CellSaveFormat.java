@@ -0,0 +1,263 @@
+package grondag.pyroclasm.fluidsim;
+
+import javax.annotation.Nullable;
+
+import grondag.fermion.position.PackedChunkPos;
+import grondag.pyroclasm.Pyroclasm;
+import it.unimi.dsi.fastutil.bytes.ByteArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+
+/**
+ * Compact save format for the cells in one cell chunk. Values are written as
+ * varints to a byte array:
+ *
+ * <pre>
+ * version
+ * save tick
+ * column count
+ *   column index within chunk (x &lt;&lt; 4 | z)
+ *   cell count
+ *     flags (flow floor, retention needed, cooling disabled)
+ *     floor - ceiling of cell below (zero for first cell)
+ *     ceiling - floor
+ *     fluid units
+ *     retained units + 1
+ *     refresh bottom y + 1
+ *     refresh top y + 1
+ *     save tick - last flow tick
+ *     last visible level - floor
+ * </pre>
+ *
+ * Column position is written once instead of with every cell, and cells write
+ * bounds and ticks as differences from the cell below and the save tick, which
+ * are usually small. See {@link LavaCell#writeNBT} for the legacy int-array
+ * layout, which is still read.
+ */
+final class CellSaveFormat {
+    static final int VERSION = 1;
+
+    private CellSaveFormat() {
+    }
+
+    /**
+     * Captures state of all cells in the chunk for {@link #encode(int[], int)}.
+     * Layout is the same as the encoded format, less version and save tick, with
+     * one int per value and {@link LavaCell#SAVE_STATE_WIDTH} ints per cell.
+     * Returns null if the chunk has no cells.
+     */
+    static @Nullable int[] capture(CellChunk chunk) {
+        final IntArrayList out = new IntArrayList(chunk.getEntryCount() * (LavaCell.SAVE_STATE_WIDTH + 2) + 1);
+
+        // column count, filled in below
+        out.add(0);
+        int columnCount = 0;
+
+        for (int i = 0; i < 256; i++) {
+            final LavaCell entryCell = chunk.getEntryCell(i >> 4, i & 15);
+            if (entryCell == null)
+                continue;
+
+            columnCount++;
+            out.add(i);
+
+            final int countIndex = out.size();
+            out.add(0);
+
+            int cellCount = 0;
+            for (LavaCell c = entryCell.firstCell(); c != null; c = c.aboveCell()) {
+                c.writeSaveState(out);
+                cellCount++;
+            }
+            out.set(countIndex, cellCount);
+        }
+
+        if (columnCount == 0)
+            return null;
+
+        out.set(0, columnCount);
+        return out.toIntArray();
+    }
+
+    /**
+     * Encodes state captured by {@link #capture(CellChunk)}. Does not touch any
+     * cells, so can run on any thread.
+     */
+    static byte[] encode(int[] state, int saveTick) {
+        final ByteArrayList out = new ByteArrayList(state.length * 2 + 8);
+        writeVarInt(out, VERSION);
+        writeVarInt(out, saveTick);
+
+        final int columnCount = state[0];
+        writeVarInt(out, columnCount);
+
+        int s = 1;
+        for (int col = 0; col < columnCount; col++) {
+            // column index
+            writeVarInt(out, state[s++]);
+
+            final int cellCount = state[s++];
+            writeVarInt(out, cellCount);
+
+            int previousCeiling = 0;
+            for (int n = 0; n < cellCount; n++) {
+                final int flags = state[s++];
+                final int floor = state[s++];
+                final int ceiling = state[s++];
+
+                writeVarInt(out, flags);
+                writeSignedVarInt(out, floor - previousCeiling);
+                writeVarInt(out, ceiling - floor);
+
+                // fluid units
+                writeVarInt(out, state[s++]);
+
+                // retained units and refresh range are -1 when not set
+                writeVarInt(out, state[s++] + 1);
+                writeVarInt(out, state[s++] + 1);
+                writeVarInt(out, state[s++] + 1);
+
+                // last flow tick
+                writeSignedVarInt(out, saveTick - state[s++]);
+
+                // last visible level
+                writeSignedVarInt(out, state[s++] - floor);
+
+                previousCeiling = ceiling;
+            }
+        }
+
+        return out.toByteArray();
+    }
+
+    /**
+     * Creates cells in the given chunk from data written by
+     * {@link #encode(int[], int)}. Returns false, and creates nothing, if the
+     * version is not recognized.
+     */
+    static boolean decode(LavaCells cells, long packedChunkPos, byte[] data) {
+        final Reader in = new Reader(data);
+
+        final int version = in.readVarInt();
+        if (version != VERSION) {
+            Pyroclasm.LOG.warn("Unrecognized lava cell save format version " + version + ". Lava blocks in that chunk may not be updated properly.");
+            return false;
+        }
+
+        final int saveTick = in.readVarInt();
+        final int columnCount = in.readVarInt();
+        final int xStart = PackedChunkPos.getChunkXStart(packedChunkPos);
+        final int zStart = PackedChunkPos.getChunkZStart(packedChunkPos);
+
+        for (int col = 0; col < columnCount; col++) {
+            final int i = in.readVarInt();
+            final int x = xStart + (i >> 4);
+            final int z = zStart + (i & 15);
+            final int cellCount = in.readVarInt();
+
+            LavaCell startingCell = cells.getEntryCell(x, z);
+            int previousCeiling = 0;
+
+            for (int n = 0; n < cellCount; n++) {
+                final LavaCell newCell;
+                if (startingCell == null) {
+                    newCell = LavaCell.create(cells, x, z, 0, 0, false);
+                    newCell.readCompact(in, saveTick, previousCeiling);
+                    cells.getOrCreateCellChunk(x, z).setEntryCell(x, z, newCell);
+                    startingCell = newCell;
+                } else {
+                    newCell = LavaCell.create(startingCell, 0, 0, false);
+                    newCell.readCompact(in, saveTick, previousCeiling);
+                    startingCell.addCellToColumn(newCell);
+                }
+                previousCeiling = newCell.ceilingLevel();
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * True if no cell in the data has lava or a lava block left to clear, so the
+     * cells wouldn't be active or keep their chunk loaded. Reads only the data.
+     */
+    static boolean isDormant(byte[] data) {
+        final Reader in = new Reader(data);
+
+        if (in.readVarInt() != VERSION)
+            return false;
+
+        // save tick
+        in.readVarInt();
+
+        final int columnCount = in.readVarInt();
+
+        for (int col = 0; col < columnCount; col++) {
+            // column index
+            in.readVarInt();
+
+            final int cellCount = in.readVarInt();
+
+            for (int n = 0; n < cellCount; n++) {
+                // flags, floor, ceiling
+                in.readVarInt();
+                in.readVarInt();
+                in.readVarInt();
+
+                final int fluidUnits = in.readVarInt();
+
+                // retained units, refresh range, last flow tick
+                in.readVarInt();
+                in.readVarInt();
+                in.readVarInt();
+                in.readVarInt();
+
+                // empty cells are only active if a lava block is still visible
+                final int lastVisibleLevel = in.readSignedVarInt();
+
+                if (fluidUnits != 0 || lastVisibleLevel != 0)
+                    return false;
+            }
+        }
+
+        return true;
+    }
+
+    static void writeVarInt(ByteArrayList out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.add((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.add((byte) value);
+    }
+
+    /** for values that may be negative */
+    static void writeSignedVarInt(ByteArrayList out, int value) {
+        writeVarInt(out, (value << 1) ^ (value >> 31));
+    }
+
+    static final class Reader {
+        private final byte[] data;
+        private int pos = 0;
+
+        private Reader(byte[] data) {
+            this.data = data;
+        }
+
+        int readVarInt() {
+            int result = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = this.data[this.pos++];
+                result |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            return result;
+        }
+
+        int readSignedVarInt() {
+            final int v = this.readVarInt();
+            return (v >>> 1) ^ -(v & 1);
+        }
+    }
+}
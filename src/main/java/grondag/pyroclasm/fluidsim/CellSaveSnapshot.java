@@ -0,0 +1,156 @@
+package grondag.pyroclasm.fluidsim;
+
+import grondag.fermion.simulator.Simulator;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import net.minecraft.nbt.CompoundTag;
+
+/**
+ * Lava cells captured for saving. {@link #capture(LavaCells)} is the only part
+ * that touches cells and must run while flow is stopped. It copies the state
+ * of chunks that changed since the last save into int arrays and keeps the
+ * previous records of the rest. {@link #encode()} builds the saved tag from
+ * those copies and can run on any thread.
+ */
+final class CellSaveSnapshot {
+    final int saveTick;
+
+    private final CellChunk[] chunks;
+
+    /**
+     * Captured state of each chunk that changed. Null for chunks with no cells,
+     * and for unchanged chunks, which keep their previous record.
+     */
+    private final int[][] states;
+
+    private final boolean[] isChanged;
+
+    /** Saved records of chunks not yet loaded - see {@link LavaCells#hydrate} */
+    private final long[] dormantPositions;
+    private final byte[][] dormantData;
+
+    /** Time spent in {@link #capture(LavaCells)} */
+    final long captureNanos;
+
+    private CellSaveSnapshot(int saveTick, CellChunk[] chunks, int[][] states, boolean[] isChanged, long[] dormantPositions, byte[][] dormantData,
+            long captureNanos) {
+        this.saveTick = saveTick;
+        this.chunks = chunks;
+        this.states = states;
+        this.isChanged = isChanged;
+        this.dormantPositions = dormantPositions;
+        this.dormantData = dormantData;
+        this.captureNanos = captureNanos;
+    }
+
+    static CellSaveSnapshot capture(LavaCells cells) {
+        final long start = System.nanoTime();
+
+        final ObjectArrayList<CellChunk> chunks = new ObjectArrayList<>();
+        cells.forEachChunk(c -> {
+            if (!c.isNew())
+                chunks.add(c);
+        });
+
+        final int size = chunks.size();
+        final int[][] states = new int[size][];
+        final boolean[] isChanged = new boolean[size];
+
+        for (int i = 0; i < size; i++) {
+            final CellChunk c = chunks.get(i);
+            if (c.isSaveDirty()) {
+                isChanged[i] = true;
+                states[i] = c.captureSaveState();
+            }
+        }
+
+        final int dormantSize = cells.dormantChunks.size();
+        final long[] dormantPositions = new long[dormantSize];
+        final byte[][] dormantData = new byte[dormantSize][];
+        int i = 0;
+        for (Long2ObjectMap.Entry<byte[]> e : cells.dormantChunks.long2ObjectEntrySet()) {
+            dormantPositions[i] = e.getLongKey();
+            dormantData[i++] = e.getValue();
+        }
+
+        return new CellSaveSnapshot(Simulator.currentTick(), chunks.toArray(new CellChunk[size]), states, isChanged, dormantPositions, dormantData,
+                System.nanoTime() - start);
+    }
+
+    /** Number of chunks in the snapshot, changed or not, including dormant chunks. */
+    int chunkCount() {
+        return this.chunks.length + this.dormantPositions.length;
+    }
+
+    /** Adds the packed position of every chunk in the snapshot to the given set. */
+    void addChunks(LongSet out) {
+        for (CellChunk c : this.chunks) {
+            out.add(c.packedChunkPos);
+        }
+
+        for (long p : this.dormantPositions) {
+            out.add(p);
+        }
+    }
+
+    /** Number of chunks with state captured for encoding. */
+    int changedCount() {
+        int result = 0;
+        for (boolean b : this.isChanged) {
+            if (b)
+                result++;
+        }
+        return result;
+    }
+
+    /**
+     * Encodes changed chunks and returns the tag of all chunk records, keyed by
+     * packed chunk position. Encoded records are kept by each chunk for later
+     * saves.
+     * <p>
+     *
+     * Only one snapshot may be encoded at a time, and it must be finished before
+     * the next capture.
+     */
+    CompoundTag encode() {
+        final CompoundTag result = new CompoundTag();
+        for (Long2ObjectMap.Entry<byte[]> e : this.encodeRecords().long2ObjectEntrySet()) {
+            result.putByteArray(Long.toString(e.getLongKey()), e.getValue());
+        }
+        return result;
+    }
+
+    /**
+     * Like {@link #encode()} but returns the records by packed chunk position.
+     * Chunks with no cells have no record.
+     */
+    Long2ObjectMap<byte[]> encodeRecords() {
+        final Long2ObjectOpenHashMap<byte[]> result = new Long2ObjectOpenHashMap<>();
+        final CellChunk[] chunks = this.chunks;
+
+        for (int i = 0; i < chunks.length; i++) {
+            final CellChunk c = chunks[i];
+            final byte[] data;
+
+            if (this.isChanged[i]) {
+                final int[] state = this.states[i];
+                data = state == null ? null : CellSaveFormat.encode(state, this.saveTick);
+                c.setSaveData(data);
+            } else {
+                data = c.saveData();
+            }
+
+            if (data != null)
+                result.put(c.packedChunkPos, data);
+        }
+
+        final long[] dormantPositions = this.dormantPositions;
+        for (int i = 0; i < dormantPositions.length; i++) {
+            result.put(dormantPositions[i], this.dormantData[i]);
+        }
+
+        return result;
+    }
+}
@@ -1,9 +1,14 @@
 package grondag.pyroclasm.fluidsim;
 
+import java.util.Arrays;
+
 import javax.annotation.Nullable;
 
+import net.minecraft.block.BlockState;
 import net.minecraft.util.math.BlockPos;
+import net.minecraft.world.BlockView;
 import net.minecraft.world.chunk.Chunk;
+import net.minecraft.world.chunk.ChunkSection;
 
 /** Builds a new cell stack from a CellColumn */
 public class CellStackBuilder {
@@ -29,55 +34,196 @@ public class CellStackBuilder {
     private void completeCell(LavaCells cells, int x, int z, int ceiling) {
         LavaCell entryCell = this.entryCell;
         if (entryCell == null) {
-            entryCell = new LavaCell(cells, x, z, this.floor, ceiling, this.isFlowFloor);
+            entryCell = LavaCell.create(cells, x, z, this.floor, ceiling, this.isFlowFloor);
             this.entryCell = entryCell;
         } else {
-            entryCell.linkAbove(new LavaCell(entryCell, this.floor, ceiling, this.isFlowFloor));
+            entryCell.linkAbove(LavaCell.create(entryCell, this.floor, ceiling, this.isFlowFloor));
             this.entryCell = entryCell.aboveCell();
         }
         this.isCellStarted = false;
     }
 
     private static final ThreadLocal<BlockPos.Mutable> updatePos = ThreadLocal.withInitial(BlockPos.Mutable::new);
-    
+
+    /** block types of the column being scanned, indexed by y */
+    private final BlockType[] columnTypes = new BlockType[256];
+
+    /**
+     * Source of block types for the stack being built or updated. Exactly one is
+     * non-null while a public build or update method runs.
+     */
+    private @Nullable BlockView view;
+    private @Nullable ChunkSnapshot snapshot;
+
+    /**
+     * Reads block types for the given column from minY through maxY into
+     * {@link #columnTypes}. When the view is a chunk, reads chunk sections
+     * directly and fills empty sections without looking at their blocks. Runs of
+     * the same state reuse the type of the first.
+     */
+    private void readColumn(int x, int z, int minY, int maxY) {
+        final BlockType[] types = this.columnTypes;
+        final ChunkSnapshot snapshot = this.snapshot;
+        final BlockView view = this.view;
+
+        if (snapshot != null) {
+            snapshot.readColumn(types, x, z, minY, maxY);
+        } else if (view instanceof Chunk) {
+            final ChunkSection[] sections = ((Chunk) view).getSectionArray();
+            final int localX = x & 15;
+            final int localZ = z & 15;
+            BlockState lastState = null;
+            BlockType lastType = BlockType.SPACE;
+
+            int y = minY;
+            while (y <= maxY) {
+                final int sectionTop = Math.min(maxY, y | 15);
+                final ChunkSection section = sections[y >> 4];
+
+                if (ChunkSection.isEmpty(section)) {
+                    // nothing but air
+                    Arrays.fill(types, y, sectionTop + 1, BlockType.SPACE);
+                } else {
+                    for (int i = y; i <= sectionTop; i++) {
+                        final BlockState state = section.getBlockState(localX, i & 15, localZ);
+                        if (state != lastState) {
+                            lastState = state;
+                            lastType = BlockType.getBlockTypeFromBlockState(state);
+                        }
+                        types[i] = lastType;
+                    }
+                }
+                y = sectionTop + 1;
+            }
+        } else {
+            final BlockPos.Mutable pos = updatePos.get();
+            BlockState lastState = null;
+            BlockType lastType = BlockType.SPACE;
+
+            for (int y = minY; y <= maxY; y++) {
+                final BlockState state = view.getBlockState(pos.set(x, y, z));
+                if (state != lastState) {
+                    lastState = state;
+                    lastType = BlockType.getBlockTypeFromBlockState(state);
+                }
+                types[y] = lastType;
+            }
+        }
+    }
+
+    /** true if any cell in the column of the given cell includes a block from minY through maxY */
+    private static boolean intersectsAny(LavaCell cell, int minY, int maxY) {
+        LavaCell c = cell.firstCell();
+        while (c != null) {
+            if (c.floorY() > maxY)
+                return false;
+            if (c.ceilingY() >= minY)
+                return true;
+            c = c.above;
+        }
+        return false;
+    }
+
     /**
      * Updates the cell stack with given entry cell based on contents of provided
      * CellColum. Expands, splits, adds, deletes or merges cells as needed to match
      * world data on CellColumn. If entry cell is null, functions identically to
      * buildNewCellStack().
      */
-    public @Nullable LavaCell updateCellStack(LavaCells cells, Chunk chunk, @Nullable LavaCell simEntryCell, int x, int z) {
-        int y = 0;
+    public @Nullable LavaCell updateCellStack(LavaCells cells, BlockView chunk, @Nullable LavaCell simEntryCell, int x, int z) {
+        return this.updateCellStack(cells, chunk, simEntryCell, x, z, 0, 255);
+    }
+
+    /**
+     * Like {@link #updateCellStack(LavaCells, BlockView, LavaCell, int, int)} but
+     * only confirms blocks from minY through maxY, plus one block on either side so
+     * cells can expand, shrink or merge at the edges of the range.
+     * <p>
+     *
+     * Works on runs of identical block types rather than single blocks. Spaces
+     * already inside the current cell and barriers that don't touch any cell are
+     * confirmed without visiting each block - in a column that hasn't changed
+     * that is nearly all of them. Runs that do disagree with the cell stack fall
+     * back to block-by-block updates.
+     */
+    public @Nullable LavaCell updateCellStack(LavaCells cells, BlockView chunk, @Nullable LavaCell simEntryCell, int x, int z, int minY, int maxY) {
+        this.view = chunk;
+        this.snapshot = null;
+        return this.updateCellStackInner(cells, simEntryCell, x, z, minY, maxY);
+    }
+
+    /**
+     * Like {@link #updateCellStack(LavaCells, BlockView, LavaCell, int, int, int, int)}
+     * but reads block types from a snapshot instead of the world. Safe to call off
+     * tick.
+     */
+    @Nullable LavaCell updateCellStack(LavaCells cells, ChunkSnapshot snapshot, @Nullable LavaCell simEntryCell, int x, int z, int minY, int maxY) {
+        this.view = null;
+        this.snapshot = snapshot;
+        return this.updateCellStackInner(cells, simEntryCell, x, z, minY, maxY);
+    }
+
+    private @Nullable LavaCell updateCellStackInner(LavaCells cells, @Nullable LavaCell simEntryCell, int x, int z, int minY, int maxY) {
+        minY = Math.max(0, minY - 1);
+        maxY = Math.min(255, maxY + 1);
+
+        final BlockType[] types = this.columnTypes;
+
+        // block below the range determines if a space at the bottom has a flow floor
+        this.readColumn(x, z, minY == 0 ? 0 : minY - 1, maxY);
 
         /** used to know when a space has a flow floor */
-        BlockType lastBlockType = null;
-        final BlockPos.Mutable pos = updatePos.get();
-        
-        do {
+        BlockType lastBlockType = minY == 0 ? null : types[minY - 1];
+
+        int y = minY;
+
+        while (y <= maxY) {
             // if at any point we remove or merge cells and there are no more cells left,
             // need to divert to buildNewCellStack to prevent NPE (plus is simpler logic
             // that way)
             // Highly unlikely though that this will ever happen: implies solid blocks from
             // 0 to world height...
             if (simEntryCell == null)
-                return this.buildNewCellStack(cells, chunk, x, z);
+                return this.buildNewCellStackInner(cells, x, z);
+
+            final BlockType blockType = types[y];
 
-            BlockType blockType = BlockType.getBlockTypeFromBlockState(chunk.getBlockState(pos.set(x, y, z)));
+            int runEnd = y;
+            while (runEnd < maxY && types[runEnd + 1] == blockType)
+                runEnd++;
 
             if (blockType.isBarrier) {
-                simEntryCell = simEntryCell.addOrConfirmBarrier(y, blockType.isFlow);
+                if (intersectsAny(simEntryCell, y, runEnd)) {
+                    for (int i = y; i <= runEnd && simEntryCell != null; i++) {
+                        simEntryCell = simEntryCell.addOrConfirmBarrier(i, blockType.isFlow);
+                    }
+                } else {
+                    // nothing to remove, but keep position near the end of the run
+                    simEntryCell = simEntryCell.addOrConfirmBarrier(runEnd, blockType.isFlow);
+                }
+            } else if (blockType.isSolid) {
+                // partial flow blocks are uncommon and each one can be a floor
+                for (int i = y; i <= runEnd; i++) {
+                    simEntryCell = simEntryCell.addOrConfirmSpace(i, blockType.flowHeight, true);
+                }
             } else {
-                int floor = blockType.isSolid ? blockType.flowHeight : 0;
-
-                boolean isFlowFloor = (blockType.isSolid && blockType.isFlow)
-                        || ((blockType == BlockType.SPACE || blockType.isLava) && lastBlockType == BlockType.SOLID_FLOW_12);
-
-                simEntryCell = simEntryCell.addOrConfirmSpace(y, floor, isFlowFloor);
+                simEntryCell = simEntryCell.addOrConfirmSpace(y, 0, lastBlockType == BlockType.SOLID_FLOW_12);
+
+                int i = y + 1;
+                while (i <= runEnd) {
+                    final int ceilingY = simEntryCell.ceilingY();
+                    if (simEntryCell.floorY() < i && i <= ceilingY) {
+                        // already inside this cell
+                        i = ceilingY + 1;
+                    } else {
+                        simEntryCell = simEntryCell.addOrConfirmSpace(i++, 0, false);
+                    }
+                }
             }
 
             lastBlockType = blockType;
-
-        } while (++y < 256);
+            y = runEnd + 1;
+        }
 
         assert assertNoOverlap(simEntryCell);
 
@@ -151,14 +297,31 @@ public class CellStackBuilder {
      * the provided column data. Retuns null if there are no spaces for cells in the
      * column data provided.
      */
-    public @Nullable LavaCell buildNewCellStack(LavaCells cells, Chunk chunk, int x, int z) {
+    public @Nullable LavaCell buildNewCellStack(LavaCells cells, BlockView chunk, int x, int z) {
+        this.view = chunk;
+        this.snapshot = null;
+        return this.buildNewCellStackInner(cells, x, z);
+    }
+
+    /**
+     * Like {@link #buildNewCellStack(LavaCells, BlockView, int, int)} but reads
+     * block types from a snapshot instead of the world. Safe to call off tick.
+     */
+    @Nullable LavaCell buildNewCellStack(LavaCells cells, ChunkSnapshot snapshot, int x, int z) {
+        this.view = null;
+        this.snapshot = snapshot;
+        return this.buildNewCellStackInner(cells, x, z);
+    }
+
+    private @Nullable LavaCell buildNewCellStackInner(LavaCells cells, int x, int z) {
         BlockType lastType = BlockType.BARRIER;
         this.entryCell = null;
 
-        final BlockPos.Mutable pos = updatePos.get();
-        
+        this.readColumn(x, z, 0, 255);
+        final BlockType[] types = this.columnTypes;
+
         for (int y = 0; y < 256; y++) {
-            BlockType currentType = BlockType.getBlockTypeFromBlockState(chunk.getBlockState(pos.set(x, y, z)));
+            BlockType currentType = types[y];
 
             switch (currentType) {
             case BARRIER: {
@@ -0,0 +1,229 @@
+package grondag.pyroclasm.fluidsim;
+
+import java.util.Arrays;
+
+import javax.annotation.Nullable;
+
+import io.netty.buffer.Unpooled;
+import net.minecraft.block.Block;
+import net.minecraft.block.BlockState;
+import net.minecraft.util.PackedIntegerArray;
+import net.minecraft.util.PacketByteBuf;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.world.BlockView;
+import net.minecraft.world.chunk.Chunk;
+import net.minecraft.world.chunk.ChunkSection;
+
+/**
+ * Copy of the blocks in one chunk, captured on the server thread so that cell
+ * stacks can be built and validated off tick without touching the world.
+ * <p>
+ *
+ * Capture only copies each section's packed palette data - the same bytes the
+ * chunk data packet sends - so it costs little more than an array copy on tick.
+ * {@link #resolve()} unpacks the copy and classifies each block off tick.
+ * <p>
+ *
+ * Once resolved, each 16-block section is held as one byte per block - the
+ * {@link BlockType#ordinal()}. Sections that are empty or hold only one block
+ * type share a constant array. Arrays are never written after resolve, so
+ * sharing is safe.
+ */
+final class ChunkSnapshot {
+    private static final BlockType[] TYPES = BlockType.values();
+
+    private static final byte[][] UNIFORM = new byte[TYPES.length][];
+
+    static {
+        for (BlockType t : TYPES) {
+            final byte[] data = new byte[4096];
+            Arrays.fill(data, (byte) t.ordinal());
+            UNIFORM[t.ordinal()] = data;
+        }
+    }
+
+    private static final byte[] EMPTY = UNIFORM[BlockType.SPACE.ordinal()];
+
+    /** palette sizes above this send no palette - ids are global state ids */
+    private static final int MAX_PALETTE_BITS = 8;
+
+    private static final ThreadLocal<BlockPos.Mutable> capturePos = ThreadLocal.withInitial(BlockPos.Mutable::new);
+
+    /**
+     * Sections as written by {@link ChunkSection#toPacket(PacketByteBuf)}, each
+     * preceded by a flag that is false for empty sections. Null once resolved or
+     * if captured from a view that isn't a chunk.
+     */
+    private @Nullable PacketByteBuf packed;
+
+    /**
+     * Block states copied from a view that isn't a chunk, as the headless harness
+     * supplies, indexed by {@link #index(int, int, int)}. Null once resolved.
+     */
+    private @Nullable BlockState[][] states;
+
+    /** one array per section, indexed by {@link #index(int, int, int)} */
+    private final byte[][] sections = new byte[16][];
+
+    private ChunkSnapshot() {
+    }
+
+    /** column-major, so that a column within a section is contiguous */
+    private static int index(int localX, int y, int localZ) {
+        return (localZ << 8) | (localX << 4) | (y & 15);
+    }
+
+    /**
+     * Copies every section of the given chunk view. Call on the server thread, then
+     * call {@link #resolve()} before reading block types.
+     */
+    static ChunkSnapshot capture(BlockView chunkView, int chunkX, int chunkZ) {
+        final ChunkSnapshot result = new ChunkSnapshot();
+
+        if (chunkView instanceof Chunk) {
+            final PacketByteBuf buf = new PacketByteBuf(Unpooled.buffer());
+            for (ChunkSection section : ((Chunk) chunkView).getSectionArray()) {
+                if (ChunkSection.isEmpty(section)) {
+                    buf.writeBoolean(false);
+                } else {
+                    buf.writeBoolean(true);
+                    section.toPacket(buf);
+                }
+            }
+            result.packed = buf;
+        } else {
+            final BlockPos.Mutable pos = capturePos.get();
+            final BlockState[][] states = new BlockState[16][];
+            final int x0 = chunkX << 4;
+            final int z0 = chunkZ << 4;
+
+            for (int i = 0; i < 16; i++) {
+                final BlockState[] section = new BlockState[4096];
+                final int y0 = i << 4;
+                for (int z = 0; z < 16; z++) {
+                    for (int x = 0; x < 16; x++) {
+                        for (int y = 0; y < 16; y++) {
+                            section[index(x, y, z)] = chunkView.getBlockState(pos.set(x0 + x, y0 + y, z0 + z));
+                        }
+                    }
+                }
+                states[i] = section;
+            }
+            result.states = states;
+        }
+
+        return result;
+    }
+
+    /**
+     * Classifies the blocks copied by {@link #capture(BlockView, int, int)}. Does
+     * not touch the world, so is safe to call off tick. Does nothing if already
+     * resolved.
+     */
+    void resolve() {
+        final PacketByteBuf packed = this.packed;
+        if (packed != null) {
+            for (int i = 0; i < 16; i++) {
+                this.sections[i] = packed.readBoolean() ? resolveSection(packed) : EMPTY;
+            }
+            this.packed = null;
+        }
+
+        final BlockState[][] states = this.states;
+        if (states != null) {
+            for (int i = 0; i < 16; i++) {
+                this.sections[i] = resolveSection(states[i]);
+            }
+            this.states = null;
+        }
+    }
+
+    /**
+     * Reads one section in the layout written by
+     * {@link ChunkSection#toPacket(PacketByteBuf)}: block count, bits per block,
+     * palette if bits are few enough, then packed palette indexes in y, z, x
+     * order.
+     * <p>
+     *
+     * Blocks in a column are mostly runs of the same state, so the type of the
+     * last state is reused instead of looked up again. See
+     * {@link BlockType#getBlockTypeFromBlockState(BlockState)}
+     */
+    private static byte[] resolveSection(PacketByteBuf buf) {
+        buf.readShort();
+        final int bits = buf.readUnsignedByte();
+
+        BlockState[] palette = null;
+        if (bits <= MAX_PALETTE_BITS) {
+            palette = new BlockState[buf.readVarInt()];
+            for (int i = 0; i < palette.length; i++) {
+                palette[i] = Block.STATE_IDS.get(buf.readVarInt());
+            }
+        }
+
+        final long[] storage = new long[buf.readVarInt()];
+        for (int i = 0; i < storage.length; i++) {
+            storage[i] = buf.readLong();
+        }
+
+        final PackedIntegerArray ids = new PackedIntegerArray(bits, 4096, storage);
+        final byte[] data = new byte[4096];
+        int lastId = -1;
+        byte lastType = 0;
+
+        for (int z = 0; z < 16; z++) {
+            for (int x = 0; x < 16; x++) {
+                for (int y = 0; y < 16; y++) {
+                    final int id = ids.get((y << 8) | (z << 4) | x);
+                    if (id != lastId) {
+                        lastId = id;
+                        final BlockState state = palette == null ? Block.STATE_IDS.get(id) : palette[id];
+                        lastType = (byte) BlockType.getBlockTypeFromBlockState(state).ordinal();
+                    }
+                    data[index(x, y, z)] = lastType;
+                }
+            }
+        }
+        return shareIfUniform(data);
+    }
+
+    private static byte[] resolveSection(BlockState[] states) {
+        final byte[] data = new byte[4096];
+        BlockState lastState = null;
+        byte lastType = 0;
+
+        for (int i = 0; i < 4096; i++) {
+            final BlockState state = states[i];
+            if (state != lastState) {
+                lastState = state;
+                lastType = (byte) BlockType.getBlockTypeFromBlockState(state).ordinal();
+            }
+            data[i] = lastType;
+        }
+        return shareIfUniform(data);
+    }
+
+    /** solid and empty sections are common - no need to keep a copy of each */
+    private static byte[] shareIfUniform(byte[] data) {
+        final byte first = data[0];
+        for (int i = 1; i < 4096; i++) {
+            if (data[i] != first)
+                return data;
+        }
+        return UNIFORM[first];
+    }
+
+    /**
+     * Reads block types for the given column from minY through maxY into types,
+     * indexed by y. X and Z are block coordinates - only the low four bits are
+     * used. Call {@link #resolve()} first.
+     */
+    void readColumn(BlockType[] types, int x, int z, int minY, int maxY) {
+        final int localX = x & 15;
+        final int localZ = z & 15;
+
+        for (int y = minY; y <= maxY; y++) {
+            types[y] = TYPES[this.sections[y >> 4][index(localX, y, localZ)]];
+        }
+    }
+}
@@ -0,0 +1,329 @@
+package grondag.pyroclasm.fluidsim;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+import javax.annotation.Nullable;
+
+import grondag.fermion.position.PackedChunkPos;
+import grondag.pyroclasm.Configurator;
+import grondag.pyroclasm.Pyroclasm;
+import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.NbtIo;
+
+/**
+ * Simulator state kept per chunk instead of in the simulator's own tag. See
+ * {@link Configurator.Performance#perChunkSimulatorState}
+ * <p>
+ *
+ * Records for each 32 x 32 chunk region are kept together in one file, like
+ * vanilla region files. A chunk's record is read when the chunk is loaded or
+ * forced, and written back with every save until the simulator no longer holds
+ * state for it, when it is removed. Records of chunks that aren't loaded are
+ * never read and are left as they are.
+ * <p>
+ *
+ * Thread-safe. Writes may happen on a background thread. Records are taken
+ * on the server thread, and only wait for a write that changes their region.
+ */
+class ChunkStateStore {
+    private static final int REGION_CACHE_SIZE = 16;
+
+    private final File dir;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "Pyroclasm Chunk State Save");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** most recently used region tags, by {@link #regionKey(long)} */
+    private final Long2ObjectLinkedOpenHashMap<CompoundTag> regionCache = new Long2ObjectLinkedOpenHashMap<>();
+
+    /**
+     * Chunks with records read or written since the world loaded. Records of
+     * these chunks are removed by the next write if not included.
+     */
+    private final LongOpenHashSet heldChunks = new LongOpenHashSet();
+
+    private @Nullable Future<?> pending;
+
+    /**
+     * Regions changed by the pending write, by {@link #regionKey(long)}. Records
+     * in other regions can be taken without waiting for it.
+     */
+    private LongOpenHashSet pendingRegions = new LongOpenHashSet();
+
+    ChunkStateStore(File dir) {
+        this.dir = dir;
+    }
+
+    private static long regionKey(long packedChunkPos) {
+        final long x = PackedChunkPos.getChunkXPos(packedChunkPos) >> 5;
+        final long z = PackedChunkPos.getChunkZPos(packedChunkPos) >> 5;
+        return (x << 32) | (z & 0xFFFFFFFFL);
+    }
+
+    private File regionFile(long regionKey) {
+        return new File(this.dir, "r." + (int) (regionKey >> 32) + "." + (int) regionKey + ".dat");
+    }
+
+    /**
+     * Returns the record of the given chunk and marks it held, or null if the
+     * chunk has no record or is already held. Reads the region file if not
+     * cached. Waits for a pending write only if it changes the chunk's region.
+     */
+    @Nullable
+    CompoundTag take(long packedChunkPos) {
+        final long regionKey = regionKey(packedChunkPos);
+        final Future<?> pending = this.pending;
+
+        // a pending write may remove the record
+        if (pending != null && !pending.isDone() && this.pendingRegions.contains(regionKey))
+            this.awaitPending();
+
+        synchronized (this) {
+            if (this.heldChunks.contains(packedChunkPos))
+                return null;
+
+            final CompoundTag region = this.region(regionKey);
+            final String key = Long.toString(packedChunkPos);
+            if (!region.contains(key))
+                return null;
+
+            this.heldChunks.add(packedChunkPos);
+            return region.getCompound(key);
+        }
+    }
+
+    /** Forgets all held chunks, without changing any records. For world load. */
+    synchronized void clearHeld() {
+        this.heldChunks.clear();
+        this.regionCache.clear();
+    }
+
+    /**
+     * Writes records, keyed by packed chunk position, for the given chunks, which
+     * are all the chunks the simulator holds state for. Records of chunks that
+     * aren't included are removed, as are those of held chunks that are no longer
+     * given. Regions with no changes are not written.
+     * <p>
+     *
+     * Records are built by the supplier, on the background thread if isAsync is
+     * true. Call {@link #awaitPending()} before capturing state for the next
+     * write.
+     */
+    void write(LongOpenHashSet chunks, Supplier<Long2ObjectMap<CompoundTag>> records, boolean isAsync) {
+        final LongOpenHashSet removed = this.release(chunks);
+
+        if (isAsync) {
+            // records are only written for the given chunks
+            final LongOpenHashSet regions = new LongOpenHashSet();
+            LongIterator it = chunks.iterator();
+            while (it.hasNext())
+                regions.add(regionKey(it.nextLong()));
+            it = removed.iterator();
+            while (it.hasNext())
+                regions.add(regionKey(it.nextLong()));
+
+            this.pendingRegions = regions;
+            this.pending = this.executor.submit(() -> this.write(chunks, records.get(), removed));
+        } else {
+            this.write(chunks, records.get(), removed);
+        }
+    }
+
+    /**
+     * Held chunks not in the given set, which are no longer held. Decided before
+     * writing so that chunks taken after state was captured keep their records.
+     */
+    private synchronized LongOpenHashSet release(LongOpenHashSet chunks) {
+        final LongOpenHashSet result = new LongOpenHashSet();
+        final LongIterator it = this.heldChunks.iterator();
+
+        while (it.hasNext()) {
+            final long p = it.nextLong();
+            if (!chunks.contains(p)) {
+                result.add(p);
+                it.remove();
+            }
+        }
+
+        this.heldChunks.addAll(chunks);
+        return result;
+    }
+
+    /**
+     * Holds the lock only while changing cached regions, so records of other
+     * regions can be taken while files are written.
+     */
+    private void write(LongOpenHashSet chunks, Long2ObjectMap<CompoundTag> records, LongOpenHashSet removed) {
+        final long start = System.nanoTime();
+
+        // held chunks with nothing left to save
+        LongIterator it = chunks.iterator();
+        while (it.hasNext()) {
+            final long p = it.nextLong();
+            if (!records.containsKey(p))
+                removed.add(p);
+        }
+
+        // records to write and chunks to remove, by region
+        final Long2ObjectOpenHashMap<Long2ObjectOpenHashMap<CompoundTag>> changes = new Long2ObjectOpenHashMap<>();
+
+        for (Long2ObjectMap.Entry<CompoundTag> e : records.long2ObjectEntrySet()) {
+            changes.computeIfAbsent(regionKey(e.getLongKey()), k -> new Long2ObjectOpenHashMap<>()).put(e.getLongKey(), e.getValue());
+        }
+
+        it = removed.iterator();
+        while (it.hasNext()) {
+            final long p = it.nextLong();
+            changes.computeIfAbsent(regionKey(p), k -> new Long2ObjectOpenHashMap<>()).put(p, null);
+        }
+
+        int writeCount = 0;
+
+        for (Long2ObjectMap.Entry<Long2ObjectOpenHashMap<CompoundTag>> r : changes.long2ObjectEntrySet()) {
+            final long regionKey = r.getLongKey();
+            final CompoundTag region;
+            boolean isChanged = false;
+
+            synchronized (this) {
+                region = this.region(regionKey);
+
+                for (Long2ObjectMap.Entry<CompoundTag> e : r.getValue().long2ObjectEntrySet()) {
+                    final String key = Long.toString(e.getLongKey());
+                    final CompoundTag record = e.getValue();
+
+                    if (record == null) {
+                        if (region.contains(key)) {
+                            region.remove(key);
+                            isChanged = true;
+                        }
+                    } else if (!record.equals(region.get(key))) {
+                        region.put(key, record);
+                        isChanged = true;
+                    }
+                }
+            }
+
+            if (isChanged) {
+                this.writeRegion(regionKey, region);
+                writeCount++;
+            }
+        }
+
+        if (Configurator.DEBUG.enablePerformanceLogging)
+            Pyroclasm.LOG.info(String.format("Saved state of %d chunks in %d of %d regions in %.2fms", records.size(), writeCount, changes.size(),
+                    (System.nanoTime() - start) / 1000000.0));
+    }
+
+    /** Blocks until the last write has finished. */
+    void awaitPending() {
+        final Future<?> pending = this.pending;
+        if (pending == null)
+            return;
+
+        try {
+            pending.get();
+        } catch (InterruptedException | ExecutionException e) {
+            Pyroclasm.LOG.error("Unexpected error while saving lava simulator chunk state.", e);
+        }
+
+        this.pending = null;
+    }
+
+    /**
+     * Removes all records. Call when state has been saved in the simulator tag
+     * instead, so that old records can't be read again later.
+     */
+    synchronized void deleteAll() {
+        this.heldChunks.clear();
+        this.regionCache.clear();
+
+        final File[] files = this.dir.listFiles();
+        if (files == null)
+            return;
+
+        for (File f : files) {
+            if (!f.delete())
+                Pyroclasm.LOG.warn("Unable to delete " + f);
+        }
+    }
+
+    /** Finishes any write in progress and stops the background thread. */
+    void close() {
+        this.awaitPending();
+        this.executor.shutdown();
+    }
+
+    private CompoundTag region(long regionKey) {
+        CompoundTag result = this.regionCache.getAndMoveToLast(regionKey);
+
+        if (result == null) {
+            result = this.readRegion(regionKey);
+            this.regionCache.putAndMoveToLast(regionKey, result);
+
+            if (this.regionCache.size() > REGION_CACHE_SIZE)
+                this.regionCache.removeFirst();
+        }
+
+        return result;
+    }
+
+    private CompoundTag readRegion(long regionKey) {
+        final File file = this.regionFile(regionKey);
+        if (!file.exists())
+            return new CompoundTag();
+
+        try (InputStream in = new FileInputStream(file)) {
+            return NbtIo.readCompressed(in);
+        } catch (IOException e) {
+            Pyroclasm.LOG.error("Unable to read lava simulator chunk state from " + file + ". Lava blocks may not be updated properly.", e);
+            return new CompoundTag();
+        }
+    }
+
+    private void writeRegion(long regionKey, CompoundTag region) {
+        final File file = this.regionFile(regionKey);
+
+        if (region.isEmpty()) {
+            if (file.exists() && !file.delete())
+                Pyroclasm.LOG.warn("Unable to delete " + file);
+            return;
+        }
+
+        if (!this.dir.exists())
+            this.dir.mkdirs();
+
+        final File temp = new File(this.dir, file.getName() + ".tmp");
+
+        try {
+            try (OutputStream out = new FileOutputStream(temp)) {
+                NbtIo.writeCompressed(region, out);
+            }
+
+            if (file.exists() && !file.delete())
+                throw new IOException("Unable to replace " + file);
+
+            if (!temp.renameTo(file))
+                throw new IOException("Unable to rename " + temp);
+        } catch (IOException e) {
+            Pyroclasm.LOG.error("Unable to save lava simulator chunk state. Lava blocks may not be updated properly after restart.", e);
+        }
+    }
+}
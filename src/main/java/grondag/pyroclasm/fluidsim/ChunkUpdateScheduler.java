@@ -0,0 +1,160 @@
+package grondag.pyroclasm.fluidsim;
+
+import java.util.List;
+import java.util.function.LongConsumer;
+
+import grondag.fermion.position.PackedChunkPos;
+import grondag.fermion.simulator.Simulator;
+import grondag.pyroclasm.Configurator;
+import grondag.pyroclasm.world.ChunkTracker;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import net.minecraft.server.network.ServerPlayerEntity;
+import net.minecraft.server.world.ServerWorld;
+
+/**
+ * Chooses which tracked chunks get block updates each tick when
+ * {@link Configurator.Performance#enablePrioritizedChunkUpdates} is true.
+ * Chunks are updated highest score first until
+ * {@link Configurator.Performance#chunkUpdateBudgetNanos} is spent, and at
+ * least one chunk is always updated.
+ * <p>
+ *
+ * A chunk's score grows with the ticks since it was last updated, with how
+ * many of its columns have been active since then, and with how close it is to
+ * a player. Active columns are counted as cells wake, so scoring doesn't visit
+ * any cells, and scoring counts against the budget. Chunks near players with visible changes come first, and
+ * chunks no one can see still get their turn as they age - which they need for
+ * cooling even when nothing visible has changed.
+ * <p>
+ *
+ * Not thread-safe. Server thread only.
+ */
+final class ChunkUpdateScheduler {
+    /**
+     * Score multiplier for a chunk a player is in, falling to 1 at
+     * {@link Configurator.Performance#chunkUpdatePlayerRadius}.
+     */
+    private static final float PROXIMITY_BOOST = 8f;
+
+    /** Tick each chunk was last updated, or first seen if never updated */
+    private final Long2IntOpenHashMap lastUpdateTicks = new Long2IntOpenHashMap();
+
+    private final LongArrayList candidates = new LongArrayList();
+
+    /** Player positions as fractional chunk coordinates, x then z */
+    private double[] players = new double[8];
+    private int playerCount;
+
+    private float[] scores = new float[64];
+    private int[] order = new int[64];
+
+    /**
+     * Updates the best-scoring tracked chunks that fit in the budget, by passing
+     * them to the given update function.
+     */
+    void doUpdates(ServerWorld world, ChunkTracker tracker, LavaCells cells, LongConsumer update) {
+        final long start = System.nanoTime();
+        final LongArrayList candidates = this.candidates;
+        candidates.clear();
+        tracker.forEachTracked(candidates::add);
+
+        final int count = candidates.size();
+        if (count == 0)
+            return;
+
+        this.capturePlayers(world.getPlayers());
+
+        if (this.scores.length < count) {
+            final int size = Math.max(count, this.scores.length * 2);
+            this.scores = new float[size];
+            this.order = new int[size];
+        }
+
+        final float[] scores = this.scores;
+        final int[] order = this.order;
+        final int tick = Simulator.currentTick();
+
+        for (int i = 0; i < count; i++) {
+            scores[i] = this.score(candidates.getLong(i), cells, tick);
+            order[i] = i;
+        }
+
+        IntArrays.quickSort(order, 0, count, (a, b) -> Float.compare(scores[b], scores[a]));
+
+        final long budget = Configurator.PERFORMANCE.chunkUpdateBudgetNanos;
+
+        for (int i = 0; i < count; i++) {
+            final long packedChunkPos = candidates.getLong(order[i]);
+            update.accept(packedChunkPos);
+            this.lastUpdateTicks.put(packedChunkPos, tick);
+
+            if (System.nanoTime() - start >= budget)
+                break;
+        }
+
+        if (this.lastUpdateTicks.size() > count * 2)
+            this.pruneUntracked();
+    }
+
+    private float score(long packedChunkPos, LavaCells cells, int tick) {
+        if (!this.lastUpdateTicks.containsKey(packedChunkPos))
+            this.lastUpdateTicks.put(packedChunkPos, tick);
+
+        final int age = tick - this.lastUpdateTicks.get(packedChunkPos);
+
+        // square root so that big flows near players can't hold back other chunks for
+        // long
+        final CellChunk chunk = cells.getCellChunk(packedChunkPos);
+        final float visual = chunk == null ? 1f : 1f + (float) Math.sqrt(chunk.pendingVisualChanges());
+
+        return (1 + age) * visual * this.proximity(packedChunkPos);
+    }
+
+    private float proximity(long packedChunkPos) {
+        final int radius = Configurator.PERFORMANCE.chunkUpdatePlayerRadius;
+        if (radius <= 0 || this.playerCount == 0)
+            return 1f;
+
+        final double x = PackedChunkPos.getChunkXPos(packedChunkPos) + 0.5;
+        final double z = PackedChunkPos.getChunkZPos(packedChunkPos) + 0.5;
+        final double[] players = this.players;
+        double minDistSq = Double.MAX_VALUE;
+
+        for (int i = 0; i < this.playerCount; i++) {
+            final double dx = players[i * 2] - x;
+            final double dz = players[i * 2 + 1] - z;
+            minDistSq = Math.min(minDistSq, dx * dx + dz * dz);
+        }
+
+        final double dist = Math.sqrt(minDistSq);
+        return dist >= radius ? 1f : 1f + PROXIMITY_BOOST * (float) (1 - dist / radius);
+    }
+
+    private void capturePlayers(List<ServerPlayerEntity> list) {
+        final int count = list.size();
+        if (this.players.length < count * 2)
+            this.players = new double[count * 2];
+
+        final double[] players = this.players;
+        for (int i = 0; i < count; i++) {
+            final ServerPlayerEntity player = list.get(i);
+            players[i * 2] = player.x / 16;
+            players[i * 2 + 1] = player.z / 16;
+        }
+        this.playerCount = count;
+    }
+
+    /** Forgets chunks no longer tracked, which are all those not in the candidate list. */
+    private void pruneUntracked() {
+        final LongOpenHashSet tracked = new LongOpenHashSet(this.candidates);
+        final LongIterator it = this.lastUpdateTicks.keySet().iterator();
+        while (it.hasNext()) {
+            if (!tracked.contains(it.nextLong()))
+                it.remove();
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package grondag.pyroclasm.fluidsim;
+
+import java.util.Arrays;
+
+import javax.annotation.Nullable;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+
+/**
+ * Connections owned by a {@link CellChunk}, indexed by slot. Checks for an
+ * existing connection between two cells when connecting them, and reuses
+ * removed connections instead of allocating new ones. A connection between
+ * cells in different chunks is owned by the chunk with the lower packed
+ * position - see {@link #of(LavaCell, LavaCell)}.
+ * <p>
+ *
+ * Removed connections can still be referenced by islands and flow chains until
+ * flow is complete, so their slots are only reused after {@link #recycle()}.
+ * <p>
+ *
+ * Thread-safe. Cell setup creates and removes connections for neighboring
+ * chunks on different threads.
+ */
+final class ConnectionArena {
+    private static final LavaConnection[] EMPTY = new LavaConnection[0];
+
+    /** Connection in each slot, including released ones. */
+    private LavaConnection[] slots = EMPTY;
+
+    /** Slots in use or released, from the start of {@link #slots} */
+    private int slotCount = 0;
+
+    /** Slot of each connection, by {@link #key(LavaCell, LavaCell)} */
+    private final Long2IntOpenHashMap lookup = new Long2IntOpenHashMap();
+
+    /** Slots available for reuse */
+    private final IntArrayList freeSlots = new IntArrayList();
+
+    /** Slots released since the last {@link #recycle()} */
+    private final IntArrayList releasedSlots = new IntArrayList();
+
+    ConnectionArena() {
+        this.lookup.defaultReturnValue(-1);
+    }
+
+    /** Arena of the chunk that owns connections between the given cells. */
+    static ConnectionArena of(LavaCell first, LavaCell second) {
+        final CellChunk firstChunk = first.cellChunk();
+        final CellChunk secondChunk = second.cellChunk();
+        return firstChunk.packedChunkPos <= secondChunk.packedChunkPos ? firstChunk.connections : secondChunk.connections;
+    }
+
+    /** Same for both orders of cells. */
+    private static long key(LavaCell first, LavaCell second) {
+        final int a = first.id;
+        final int b = second.id;
+        return a < b ? ((long) a << 32) | (b & 0xFFFFFFFFL) : ((long) b << 32) | (a & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Connects the given cells and returns the connection, or null if already
+     * connected. Caller must hold locks on both cells.
+     */
+    synchronized @Nullable LavaConnection createIfAbsent(LavaCell first, LavaCell second) {
+        final long key = key(first, second);
+        if (this.lookup.containsKey(key))
+            return null;
+
+        final LavaConnection result;
+
+        if (this.freeSlots.isEmpty()) {
+            final int slot = this.slotCount++;
+            if (slot == this.slots.length)
+                this.slots = Arrays.copyOf(this.slots, Math.max(16, slot * 2));
+
+            result = new LavaConnection(this, slot);
+            this.slots[slot] = result;
+            AbstractLavaConnections.countAllocation();
+        } else {
+            result = this.slots[this.freeSlots.popInt()];
+        }
+
+        this.lookup.put(key, result.slot);
+        result.connect(first, second);
+        return result;
+    }
+
+    /**
+     * Call after the connection has been removed from both cells. Its slot can be
+     * reused after the next {@link #recycle()}.
+     */
+    synchronized void release(LavaConnection connection) {
+        if (this.lookup.remove(key(connection.firstCell, connection.secondCell)) == connection.slot)
+            this.releasedSlots.add(connection.slot);
+    }
+
+    /** Makes released slots available for reuse. Call when flow is complete. */
+    synchronized void recycle() {
+        this.freeSlots.addAll(this.releasedSlots);
+        this.releasedSlots.clear();
+    }
+
+    /** Number of connections in use. */
+    synchronized int size() {
+        return this.lookup.size();
+    }
+}
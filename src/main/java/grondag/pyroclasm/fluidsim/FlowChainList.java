@@ -0,0 +1,54 @@
+package grondag.pyroclasm.fluidsim;
+
+import java.util.Arrays;
+
+import grondag.pyroclasm.fluidsim.LavaConnection.Flowable;
+
+/**
+ * Heads of flow chains that are processed together on a single thread. Filled
+ * during cell setup and consumed by each flow step.
+ */
+final class FlowChainList {
+    private Flowable[] heads = new Flowable[16];
+
+    private int size = 0;
+
+    /**
+     * Working copy of {@link #heads} - processing a step mutates the array.
+     */
+    private Flowable[] headsForStep = new Flowable[16];
+
+    void clear() {
+        final int size = this.size;
+        if (size > 0) {
+            Arrays.fill(this.heads, 0, size, null);
+            this.size = 0;
+        }
+    }
+
+    void add(Flowable flowChain) {
+        final int size = this.size;
+        if (size == this.heads.length) {
+            this.heads = Arrays.copyOf(this.heads, size * 2);
+        }
+        this.heads[size] = flowChain;
+        this.size = size + 1;
+    }
+
+    int size() {
+        return this.size;
+    }
+
+    /**
+     * Copy of the flow chain heads that can be consumed by one flow step. Only
+     * valid until the next call. Size is {@link #size()}.
+     */
+    Flowable[] headsForStep() {
+        final int size = this.size;
+        if (this.headsForStep.length < size) {
+            this.headsForStep = new Flowable[this.heads.length];
+        }
+        System.arraycopy(this.heads, 0, this.headsForStep, 0, size);
+        return this.headsForStep;
+    }
+}
@@ -0,0 +1,249 @@
+package grondag.pyroclasm.fluidsim;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Lava cell that keeps all of its state in object fields. This is the original
+ * (and default) storage mode. See {@link PackedLavaCell} for the alternative.
+ */
+final class HeapLavaCell extends LavaCell {
+    /**
+     * True if locked for update via {@link #tryLock()} and {@link #unlock()}.
+     */
+    private final AtomicBoolean isLocked = new AtomicBoolean(false);
+
+    private boolean isConnectionUpdateNeeded = true;
+
+    private int floorLevel;
+    private boolean isBottomFlow;
+    /** derived from floor each time floor is set */
+    private int floorUnits;
+    /** derived from floor each time floor is set */
+    private short floorY;
+
+    private int ceilingLevel;
+    /** derived from ceiling each time ceiling is set */
+    private int ceilingUnits;
+    /** derived from ceiling each time ceiling is set */
+    private short ceilingY;
+
+    private int fluidUnits;
+
+    private boolean isCoolingDisabled = false;
+    private int lastVisibleLevel = NEVER_REPORTED;
+    private int deferredChangeDelta = 0;
+    private boolean isActive = false;
+    private short refreshTopY = REFRESH_NONE;
+    private short refreshBottomY = REFRESH_NONE;
+    private int retainedUnits = LavaSimulator.FLUID_UNITS_PER_QUARTER_BLOCK;
+    private boolean needsRetentionUpdate = true;
+    private int lastFlowTick = 1;
+    private int absoluteFlowThisTick = 0;
+    private int outputThisTick = 0;
+    private int maxOutputPerStep;
+
+    @Override
+    public boolean tryLock() {
+        return this.isLocked.compareAndSet(false, true);
+    }
+
+    @Override
+    public void unlock() {
+        this.isLocked.set(false);
+    }
+
+    @Override
+    protected void releaseStorage() {
+        // NOOP - fields go away with the object
+    }
+
+    @Override
+    public boolean isConnectionUpdateNeeded() {
+        return this.isConnectionUpdateNeeded;
+    }
+
+    @Override
+    protected void storeConnectionUpdateNeeded(boolean isNeeded) {
+        this.isConnectionUpdateNeeded = isNeeded;
+    }
+
+    @Override
+    protected void storeFloorLevel(int newFloorLevel, boolean isFlowFloor) {
+        this.floorLevel = newFloorLevel;
+        this.floorUnits = newFloorLevel * LavaSimulator.FLUID_UNITS_PER_LEVEL;
+        this.isBottomFlow = isFlowFloor;
+        this.floorY = (short) getYFromFloor(newFloorLevel);
+    }
+
+    @Override
+    public int floorLevel() {
+        return this.floorLevel;
+    }
+
+    @Override
+    public int floorUnits() {
+        return this.floorUnits;
+    }
+
+    @Override
+    public int floorY() {
+        return this.floorY;
+    }
+
+    @Override
+    public boolean isBottomFlow() {
+        return this.isBottomFlow;
+    }
+
+    @Override
+    protected void storeCeilingLevel(int newCeilingLevel) {
+        this.ceilingLevel = newCeilingLevel;
+        this.ceilingUnits = newCeilingLevel * LavaSimulator.FLUID_UNITS_PER_LEVEL;
+        this.ceilingY = (short) getYFromCeilingLevel(newCeilingLevel);
+    }
+
+    @Override
+    public int ceilingLevel() {
+        return this.ceilingLevel;
+    }
+
+    @Override
+    public int ceilingUnits() {
+        return this.ceilingUnits;
+    }
+
+    @Override
+    public int ceilingY() {
+        return this.ceilingY;
+    }
+
+    @Override
+    public int fluidUnits() {
+        return this.fluidUnits;
+    }
+
+    @Override
+    protected void storeFluidUnits(int newUnits) {
+        this.fluidUnits = newUnits;
+    }
+
+    @Override
+    protected boolean storedCoolingDisabled() {
+        return this.isCoolingDisabled;
+    }
+
+    @Override
+    protected void storeCoolingDisabled(boolean isCoolingDisabled) {
+        this.isCoolingDisabled = isCoolingDisabled;
+    }
+
+    @Override
+    protected int storedLastVisibleLevel() {
+        return this.lastVisibleLevel;
+    }
+
+    @Override
+    protected void storeLastVisibleLevel(int lastVisibleLevel) {
+        this.lastVisibleLevel = lastVisibleLevel;
+    }
+
+    @Override
+    protected int storedDeferredChangeDelta() {
+        return this.deferredChangeDelta;
+    }
+
+    @Override
+    protected void storeDeferredChangeDelta(int deferredChangeDelta) {
+        this.deferredChangeDelta = deferredChangeDelta;
+    }
+
+    @Override
+    protected boolean storedActive() {
+        return this.isActive;
+    }
+
+    @Override
+    protected void storeActive(boolean isActive) {
+        this.isActive = isActive;
+    }
+
+    @Override
+    protected int storedRefreshTopY() {
+        return this.refreshTopY;
+    }
+
+    @Override
+    protected void storeRefreshTopY(int refreshTopY) {
+        this.refreshTopY = (short) refreshTopY;
+    }
+
+    @Override
+    protected int storedRefreshBottomY() {
+        return this.refreshBottomY;
+    }
+
+    @Override
+    protected void storeRefreshBottomY(int refreshBottomY) {
+        this.refreshBottomY = (short) refreshBottomY;
+    }
+
+    @Override
+    protected int storedRetainedUnits() {
+        return this.retainedUnits;
+    }
+
+    @Override
+    protected void storeRetainedUnits(int retainedUnits) {
+        this.retainedUnits = retainedUnits;
+    }
+
+    @Override
+    protected boolean storedRetentionUpdateNeeded() {
+        return this.needsRetentionUpdate;
+    }
+
+    @Override
+    protected void storeRetentionUpdateNeeded(boolean needsRetentionUpdate) {
+        this.needsRetentionUpdate = needsRetentionUpdate;
+    }
+
+    @Override
+    public int lastFlowTick() {
+        return this.lastFlowTick;
+    }
+
+    @Override
+    protected void storeLastFlowTick(int lastFlowTick) {
+        this.lastFlowTick = lastFlowTick;
+    }
+
+    @Override
+    protected int storedAbsoluteFlowThisTick() {
+        return this.absoluteFlowThisTick;
+    }
+
+    @Override
+    protected void storeAbsoluteFlowThisTick(int absoluteFlowThisTick) {
+        this.absoluteFlowThisTick = absoluteFlowThisTick;
+    }
+
+    @Override
+    public int outputThisTick() {
+        return this.outputThisTick;
+    }
+
+    @Override
+    void setOutputThisTick(int outputThisTick) {
+        this.outputThisTick = outputThisTick;
+    }
+
+    @Override
+    public int maxOutputPerStep() {
+        return this.maxOutputPerStep;
+    }
+
+    @Override
+    void setMaxOutputPerStep(int maxOutputPerStep) {
+        this.maxOutputPerStep = maxOutputPerStep;
+    }
+}
@@ -1,6 +1,6 @@
 package grondag.pyroclasm.fluidsim;
 
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Predicate;
 
 import javax.annotation.Nonnull;
@@ -26,8 +26,10 @@ import net.minecraft.util.math.BlockPos;
 import net.minecraft.util.math.BlockPos.Mutable;
 import net.minecraft.world.BlockView;
 
-public class LavaCell extends AbstractLavaCell {
-    public static final LavaCell NULL_CELL = new LavaCell();
+public abstract class LavaCell extends AbstractLavaCell {
+    private static final AtomicInteger nextId = new AtomicInteger();
+
+    public static final LavaCell NULL_CELL = new HeapLavaCell();
 
     public static final Predicate<LavaCell> REMOVAL_PREDICATE = new Predicate<LavaCell>() {
         @Override
@@ -36,11 +38,6 @@ public class LavaCell extends AbstractLavaCell {
         }
     };
 
-    /**
-     * True if locked for update via {@link #tryLock()} and {@link #unlock()}.
-     */
-    private final AtomicBoolean isLocked = new AtomicBoolean(false);
-
     /**
      * Object held in common by all cells at our x, z coordinate. Used to locate the
      * start cell in the list as a synchronization object for all operations
@@ -70,47 +67,167 @@ public class LavaCell extends AbstractLavaCell {
      */
     private boolean isDeleted;
 
+    /** Identifies the cell in {@link ConnectionArena} lookups. */
+    final int id = nextId.getAndIncrement();
+
     /** holds all connections with other cells */
     public final SimpleUnorderedArrayList<LavaConnection> connections = new SimpleUnorderedArrayList<LavaConnection>();
 
-    private boolean isCoolingDisabled = false;
+    /**
+     * Island this cell belongs to, or one that was merged into it. Null if cell
+     * has never been connected or islands are not in use. See {@link LavaIslands}
+     */
+    @Nullable
+    LavaIsland island;
+
+    /**
+     * value for {@link #storedLastVisibleLevel()} indicating level has never been
+     * reported via {@link #provideBlockUpdateIfNeeded(LavaSimulator)}
+     */
+    static final int NEVER_REPORTED = -1;
+
+    public static final short REFRESH_NONE = -1;
+
+    /**
+     * Value of worldSurfaceLevel that was last used for block update. If different
+     * from worldSurfaceLevel indicates a block update may now be needed. Saves cost
+     * of calculating currentVisible if isn't necessary.
+     */
+//    private int lastSurfaceLevel;
+
+    /**
+     * Creates new cell in an existing column. Does NOT create linkages with
+     * existing cells in column.
+     * 
+     * @param existingEntryCell
+     * @param floor
+     * @param ceiling
+     * @param isFlowFloor
+     */
+    public static LavaCell create(LavaCell existingEntryCell, int floor, int ceiling, boolean isFlowFloor) {
+        final CellLocator locator = existingEntryCell.locator;
+        final LavaCell result = createForChunk(locator.cellChunk);
+        result.locator = locator;
+        result.initialize(floor, ceiling, isFlowFloor);
+        return result;
+    }
 
     /**
-     * value for {@link #lastVisibleLevel} indicating level has never been reported
-     * via {@link #provideBlockUpdateIfNeeded(LavaSimulator)}
+     * Creates new cell and a new column at the given location. Does NOT create
+     * linkages with existing cells in column.
+     * 
+     * @param cells
+     * @param x
+     * @param z
+     * @param floor
+     * @param ceiling
+     * @param isFlowFloor
      */
-    private static final int NEVER_REPORTED = -1;
+    public static LavaCell create(LavaCells cells, int x, int z, int floor, int ceiling, boolean isFlowFloor) {
+        final CellChunk cellChunk = cells.getOrCreateCellChunk(x, z);
+        final LavaCell result = createForChunk(cellChunk);
+        result.locator = new CellLocator(x, z, result, cellChunk);
+        result.initialize(floor, ceiling, isFlowFloor);
+        result.updateActiveStatus();
+        return result;
+    }
+
+    /**
+     * Storage mode is a property of the cell chunk. See
+     * {@link Configurator.Performance#enablePackedCellStorage}
+     */
+    private static LavaCell createForChunk(CellChunk cellChunk) {
+        final PackedCellStore store = cellChunk.cellStore;
+        return store == null ? new HeapLavaCell() : new PackedLavaCell(store);
+    }
+
+    private void initialize(int floor, int ceiling, boolean isFlowFloor) {
+//        if(HardScience.DEBUG_MODE)
+//        {
+//            if(floor < 0 || floor <= ceiling || ceiling <= 0)
+//                HardScience.log.warn("Strangeness on cell instantiation.");
+//        }
+
+        this.setFloorLevel(floor, isFlowFloor);
+        // important that ceiling is set before clearPendingLevelUpdates because is used
+        // as a clamp
+        this.setCeilingLevel(ceiling);
+        this.emptyCell();
+        this.clearBlockUpdate();
+        this.wake();
+    }
+
+    /******************************************************
+     * STORAGE - see {@link AbstractLavaCell}
+     ******************************************************/
+
+    /**
+     * Attempts to lock this cell for update. Returns true if lock was successful.
+     * If AND ONLY IF successful, caller MUST call {@link #unLock()}
+     * 
+     * @return true if cell was successfully locked.
+     */
+    public abstract boolean tryLock();
+
+    /**
+     * Unlocks this cell. MUST be called by a thread IF AND ONLY IF earlier call to
+     * {@link #tryLock()} was successful. Does not track which thread owned the
+     * lock, so could be abused to break a lock held by another thread. Don't do
+     * that. :-)
+     */
+    public abstract void unlock();
+
+    /**
+     * Called when cell is deleted. Storage that may be reused by other cells
+     * should be released here. Cell must remain safe to read and write afterwards
+     * because stale references to deleted cells are expected.
+     */
+    protected abstract void releaseStorage();
+
+    /** see {@link #isCoolingDisabled()} */
+    protected abstract boolean storedCoolingDisabled();
+
+    protected abstract void storeCoolingDisabled(boolean isCoolingDisabled);
 
     /**
      * Last level reported to world via
      * {@link #provideBlockUpdateIfNeeded(LavaSimulator)}. Will be
      * {@value #NEVER_REPORTED} if that method has not yet been called.
      */
-    private int lastVisibleLevel = NEVER_REPORTED;
+    protected abstract int storedLastVisibleLevel();
+
+    protected abstract void storeLastVisibleLevel(int lastVisibleLevel);
 
     /**
      * When level changes are small, block updates may be deferred. This tracks the
      * delta block update in levels if the change was deferred during the last call
      * to {@link #provideBlockUpdateIfNeeded(LavaSimulator)}.
      */
-    private int deferredChangeDelta = 0;
+    protected abstract int storedDeferredChangeDelta();
+
+    protected abstract void storeDeferredChangeDelta(int deferredChangeDelta);
 
     /** true if this cell should remain loaded */
-    private boolean isActive = false;
+    protected abstract boolean storedActive();
+
+    protected abstract void storeActive(boolean isActive);
 
-    public static final short REFRESH_NONE = -1;
     /**
      * Use to signal that block levels may contain suspended lava or empty cells
      * that should contain lava. These blocks should be refreshed to world on the
      * next block update. Set to REFRESH_NONE if no blocks needing refresh are known
      * to exist.
      */
-    private short refreshTopY = REFRESH_NONE;
+    protected abstract int storedRefreshTopY();
+
+    protected abstract void storeRefreshTopY(int refreshTopY);
 
     /**
-     * See {@link #refreshTopY}
+     * See {@link #storedRefreshTopY()}
      */
-    private short refreshBottomY = REFRESH_NONE;
+    protected abstract int storedRefreshBottomY();
+
+    protected abstract void storeRefreshBottomY(int refreshBottomY);
 
     /**
      * Depth of fluid will not drop below this - to emulate surface
@@ -119,143 +236,88 @@ public class LavaCell extends AbstractLavaCell {
      * created. Does not change until cell solidifies or bottom drops out. The raw
      * value is persisted because it should not change as neighbors change.
      */
-    private int retainedUnits = LavaSimulator.FLUID_UNITS_PER_QUARTER_BLOCK;
+    protected abstract int storedRetainedUnits();
 
-    private boolean needsRetentionUpdate = true;
+    protected abstract void storeRetainedUnits(int retainedUnits);
+
+    protected abstract boolean storedRetentionUpdateNeeded();
+
+    protected abstract void storeRetentionUpdateNeeded(boolean needsRetentionUpdate);
 
     /**
      * The simulation tick when a significant amount of lava flowed in/out of this
      * cell.<br>
      * Used to know when lava in a cell can be cooled.<br>
-     * Based on {@link #absoluteFlowThisTick}
+     * Based on {@link #storedAbsoluteFlowThisTick()}
      * <p>
      * 
      * Initialized to 1 (instead of 0) so that consistently has sign when
      * serialized. The sign bit is used during serialization to store
-     * {@link #isCoolingDisabled}
+     * {@link #isCoolingDisabled()}
      */
-    public int lastFlowTick = 1;
+    public abstract int lastFlowTick();
+
+    protected abstract void storeLastFlowTick(int lastFlowTick);
 
     /**
      * Accumulates the total of absolute value of flows in or out in the current
      * tick. Set to zero at start of tick after checking for tick update. Used to
      * determine when cells can cool.
      */
-    private int absoluteFlowThisTick = 0;
+    protected abstract int storedAbsoluteFlowThisTick();
+
+    protected abstract void storeAbsoluteFlowThisTick(int absoluteFlowThisTick);
 
     /**
      * Used in connection processing to limit the flow out of the block in a single
      * tick. Only applies to cells that are a source. Set to zero before flow starts
      * and incremented every time lava flows out of this cell.
      */
-    public int outputThisTick = 0;
+    public abstract int outputThisTick();
+
+    abstract void setOutputThisTick(int outputThisTick);
 
     /**
      * Used in conneciton processing - if this is an output cell, set to amount of
      * available fluid / number of steps before start of connection processing. Used
      * to throttle secondary outputs.
      */
-    public int maxOutputPerStep;
-
-    /**
-     * Value of worldSurfaceLevel that was last used for block update. If different
-     * from worldSurfaceLevel indicates a block update may now be needed. Saves cost
-     * of calculating currentVisible if isn't necessary.
-     */
-//    private int lastSurfaceLevel;
-
-    /**
-     * Creates new cell and adds to processing array. Does NOT create linkages with
-     * existing cells in column.
-     * 
-     * @param cells
-     * @param existingEntryCell
-     * @param floor
-     * @param ceiling
-     * @param lavaLevel
-     * @param isFlowFloor
-     */
-    public LavaCell(LavaCell existingEntryCell, int floor, int ceiling, boolean isFlowFloor) {
-//        if(HardScience.DEBUG_MODE)
-//        {
-//            if(floor < 0 || floor <= ceiling || ceiling <= 0)
-//                HardScience.log.warn("Strangeness on cell instantiation.");
-//        }
+    public abstract int maxOutputPerStep();
 
-        this.locator = existingEntryCell.locator;
-        this.setFloorLevel(floor, isFlowFloor);
-        // important that ceiling is set before clearPendingLevelUpdates because is used
-        // as a clamp
-        this.setCeilingLevel(ceiling);
-        this.emptyCell();
-        this.clearBlockUpdate();
-    }
+    abstract void setMaxOutputPerStep(int maxOutputPerStep);
 
     /**
-     * Creates new cell and adds to processing array. Does NOT create linkages with
-     * existing cells in column.
-     * 
-     * @param cells
-     * @param x
-     * @param z
-     * @param floor
-     * @param ceiling
-     * @param isFlowFloor
+     * True if cells in this column have been marked for validation with world
+     * state.
      */
-    public LavaCell(LavaCells cells, int x, int z, int floor, int ceiling, boolean isFlowFloor) {
-//        if(HardScience.DEBUG_MODE)
-//        {
-//            if(floor < 0 || floor <= ceiling || ceiling <= 0)
-//                HardScience.log.warn("Strangeness on cell instantiation.");
-//        }
-
-        this.locator = new CellLocator(x, z, this, cells.getOrCreateCellChunk(x, z));
-        this.setFloorLevel(floor, isFlowFloor);
-        // important that ceiling is set before clearPendingLevelUpdates because is used
-        // as a clamp
-        this.setCeilingLevel(ceiling);
-        this.emptyCell();
-        this.clearBlockUpdate();
-        this.updateActiveStatus();
-    }
-
-    /** for the empty cell */
-    private LavaCell() {
+    public final boolean isValidationNeeded() {
+        return this.locator.isValidationNeeded();
     }
 
     /**
-     * Attempts to lock this cell for update. Returns true if lock was successful.
-     * If AND ONLY IF successful, caller MUST call {@link #unLock()}
-     * 
-     * @return true if cell was successfully locked.
+     * Marks cells in this column for validation with world state.
      */
-    public final boolean tryLock() {
-        return this.isLocked.compareAndSet(false, true);
+    public final void setValidationNeeded(boolean isNeeded) {
+        this.locator.setValidationNeeded(isNeeded);
     }
 
     /**
-     * Unlocks this cell. MUST be called by a thread IF AND ONLY IF earlier call to
-     * {@link #tryLock()} was successful. Does not track which thread owned the
-     * lock, so could be abused to break a lock held by another thread. Don't do
-     * that. :-)
+     * Marks cells in this column for validation with world state, when only blocks
+     * from minY through maxY are known to have changed. Validation will only scan
+     * those blocks unless the column is (or becomes) marked for full validation.
      */
-    public final void unlock() {
-        this.isLocked.set(false);
+    public final void setValidationNeeded(int minY, int maxY) {
+        this.locator.setValidationNeeded(minY, maxY);
     }
 
-    /**
-     * True if cells in this column have been marked for validation with world
-     * state.
-     */
-    public final boolean isValidationNeeded() {
-        return this.locator.isValidationNeeded();
+    /** Lowest block y that needs validation in this column. See {@link #setValidationNeeded(int, int)} */
+    public final int validationMinY() {
+        return this.locator.validationMinY;
     }
 
-    /**
-     * Marks cells in this column for validation with world state.
-     */
-    public final void setValidationNeeded(boolean isNeeded) {
-        this.locator.setValidationNeeded(isNeeded);
+    /** Highest block y that needs validation in this column. See {@link #setValidationNeeded(int, int)} */
+    public final int validationMaxY() {
+        return this.locator.validationMaxY;
     }
 
     public final boolean isDeleted() {
@@ -272,8 +334,12 @@ public class LavaCell extends AbstractLavaCell {
      * references to/from this cell.
      */
     public final void setDeleted() {
+        // neighbors lose connections
+        this.wake();
+
         for (LavaConnection c : this.connections) {
             c.getOther(this).removeConnection(c);
+            c.release();
         }
         this.connections.clear();
 
@@ -296,6 +362,7 @@ public class LavaCell extends AbstractLavaCell {
         this.isDeleted = true;
 
         this.setActiveStatus(false);
+        this.releaseStorage();
     }
 
     /**
@@ -357,17 +424,19 @@ public class LavaCell extends AbstractLavaCell {
 //    private static final int BLOCK_LEVELS_BITS = 9;
 
     /**
-     * Writes data to array starting at location i.
+     * Writes data to array starting at location i. This is the legacy layout,
+     * still read by {@link #readNBTArray(int[], int)} for older saves. Saves now
+     * use {@link #writeSaveState(IntArrayList)}.
      */
     void writeNBT(IntArrayList list) {
         list.add(this.locator.x);
         list.add(this.locator.z);
-        list.add((this.fluidUnits() & FLUID_UNITS_MASK) | (((this.refreshTopY + 1) & BLOCK_LEVELS_MASK) << FLUID_UNITS_BITS));
+        list.add((this.fluidUnits() & FLUID_UNITS_MASK) | (((this.storedRefreshTopY() + 1) & BLOCK_LEVELS_MASK) << FLUID_UNITS_BITS));
 
         // save retention flag as sign bit here
-        final int combinedRetentionAndBottom = ((this.retainedUnits + 1) & FLUID_LEVELS_MASK)
-                | (((this.refreshBottomY + 1) & BLOCK_LEVELS_MASK) << FLUID_LEVELS_BITS);
-        list.add(this.needsRetentionUpdate ? -combinedRetentionAndBottom : combinedRetentionAndBottom);
+        final int combinedRetentionAndBottom = ((this.storedRetainedUnits() + 1) & FLUID_LEVELS_MASK)
+                | (((this.storedRefreshBottomY() + 1) & BLOCK_LEVELS_MASK) << FLUID_LEVELS_BITS);
+        list.add(this.storedRetentionUpdateNeeded() ? -combinedRetentionAndBottom : combinedRetentionAndBottom);
 
         // to save space, pack bounds into single int and save flow floor as sign bit
         int combinedBounds = this.ceilingLevel() << 12 | this.floorLevel();
@@ -376,17 +445,67 @@ public class LavaCell extends AbstractLavaCell {
         list.add(combinedBounds);
 
         // save never cools as sign bit on last tick index
-        list.add(this.isCoolingDisabled ? -this.lastFlowTick : this.lastFlowTick);
+        list.add(this.storedCoolingDisabled() ? -this.lastFlowTick() : this.lastFlowTick());
 
         // need to persist lastVisibleLevel or will not refresh world properly in some
         // scenarios on restart
-        list.add(this.lastVisibleLevel);
+        list.add(this.storedLastVisibleLevel());
 
         // also persist lastFluidSurfaceUnits to avoid block updates for every cell on
         // reload
 //        saveData[i++] = this.lastSurfaceLevel;
     }
 
+    /** Number of ints added by {@link #writeSaveState(IntArrayList)} */
+    static final int SAVE_STATE_WIDTH = 9;
+
+    /**
+     * Copies persisted state of this cell, unpacked, for encoding later by
+     * {@link CellSaveFormat}. Cheap enough to do for changed cells on the server
+     * thread while flow is stopped.
+     */
+    void writeSaveState(IntArrayList out) {
+        out.add((this.isBottomFlow() ? 1 : 0) | (this.storedRetentionUpdateNeeded() ? 2 : 0) | (this.storedCoolingDisabled() ? 4 : 0));
+        out.add(this.floorLevel());
+        out.add(this.ceilingLevel());
+        out.add(this.fluidUnits());
+        out.add(this.storedRetainedUnits());
+        out.add(this.storedRefreshBottomY());
+        out.add(this.storedRefreshTopY());
+        out.add(this.lastFlowTick());
+        out.add(this.storedLastVisibleLevel());
+    }
+
+    /**
+     * Reads a cell encoded by {@link CellSaveFormat}. Same state is restored as by
+     * {@link #readNBTArray(int[], int)}.
+     */
+    void readCompact(CellSaveFormat.Reader in, int saveTick, int previousCeiling) {
+        final int flags = in.readVarInt();
+
+        final int floor = previousCeiling + in.readSignedVarInt();
+        final int ceiling = floor + in.readVarInt();
+        final int fluidUnits = in.readVarInt();
+        final int retainedUnits = in.readVarInt() - 1;
+
+        this.storeRefreshBottomY((short) (in.readVarInt() - 1));
+        this.storeRefreshTopY((short) (in.readVarInt() - 1));
+
+        this.setFloorLevel(floor, (flags & 1) != 0);
+        this.setCeilingLevel(ceiling);
+
+        // ensure retention matches save - could have been changed by above
+        this.storeRetainedUnits(retainedUnits);
+        this.storeRetentionUpdateNeeded((flags & 2) != 0);
+
+        this.setFluidUnits(fluidUnits);
+
+        this.storeLastFlowTick(saveTick - in.readSignedVarInt());
+        this.storeCoolingDisabled((flags & 4) != 0);
+
+        this.storeLastVisibleLevel(floor + in.readSignedVarInt());
+    }
+
 //    /** top level that would contain fluid if this column could expand vertically unconstrained */
 //    public int fluidPressureSurfaceLevel()
 //    {
@@ -406,14 +525,14 @@ public class LavaCell extends AbstractLavaCell {
 
         int word = saveData[i++];
         int fluidUnits = word & FLUID_UNITS_MASK;
-        this.refreshTopY = (short) ((word >> FLUID_UNITS_BITS) - 1);
+        this.storeRefreshTopY((short) ((word >> FLUID_UNITS_BITS) - 1));
 
         word = saveData[i++];
         boolean isRetentionUpdateNeeded = word < 0;
         if (isRetentionUpdateNeeded)
             word = -word;
-        this.retainedUnits = (word & FLUID_LEVELS_MASK) - 1;
-        this.refreshBottomY = (short) ((word >> FLUID_LEVELS_BITS) - 1);
+        this.storeRetainedUnits((word & FLUID_LEVELS_MASK) - 1);
+        this.storeRefreshBottomY((short) ((word >> FLUID_LEVELS_BITS) - 1));
 
         word = saveData[i++];
         boolean isBottomFlow = word < 0;
@@ -424,19 +543,20 @@ public class LavaCell extends AbstractLavaCell {
         this.setCeilingLevel(word >> 12);
 
         // ensure retention flag matches save - could have been set by above
-        this.needsRetentionUpdate = isRetentionUpdateNeeded;
+        this.storeRetentionUpdateNeeded(isRetentionUpdateNeeded);
 
         this.setFluidUnits(fluidUnits);
 
-        this.lastFlowTick = saveData[i++];
-        if (this.lastFlowTick < 0) {
-            this.lastFlowTick = -this.lastFlowTick;
-            this.isCoolingDisabled = true;
+        final int lastFlowTick = saveData[i++];
+        if (lastFlowTick < 0) {
+            this.storeLastFlowTick(-lastFlowTick);
+            this.storeCoolingDisabled(true);
         } else {
-            this.isCoolingDisabled = false;
+            this.storeLastFlowTick(lastFlowTick);
+            this.storeCoolingDisabled(false);
         }
 
-        this.lastVisibleLevel = saveData[i++];
+        this.storeLastVisibleLevel(saveData[i++]);
 
 //        this.lastSurfaceLevel = saveData[i++];
     }
@@ -565,31 +685,29 @@ public class LavaCell extends AbstractLavaCell {
             if (zOffset == 0) {
                 return this;
             } else {
-                LavaCell result = getLowestNeighborDirectlyAdjacent(this.locator.cellChunk.cells, xOffset, zOffset);
+                LavaCell result = getLowestNeighborDirectlyAdjacent(xOffset, zOffset);
                 return allowUpslope || result == null || result.floorLevel() <= this.floorLevel() ? result : null;
             }
         } else if (zOffset == 0) {
-            LavaCell result = getLowestNeighborDirectlyAdjacent(this.locator.cellChunk.cells, xOffset, zOffset);
+            LavaCell result = getLowestNeighborDirectlyAdjacent(xOffset, zOffset);
             return allowUpslope || result == null || result.floorLevel() <= this.floorLevel() ? result : null;
         } else {
             // diagonally adjacent
-            LavaCells cells = this.locator.cellChunk.cells;
-
             @Nullable
             LavaCell nXZ = null;
             @Nullable
-            LavaCell nX = getLowestNeighborDirectlyAdjacent(cells, xOffset, 0);
+            LavaCell nX = getLowestNeighborDirectlyAdjacent(xOffset, 0);
             if (nX != null && (allowUpslope || nX.floorLevel() <= this.floorLevel())) {
-                nXZ = nX.getLowestNeighborDirectlyAdjacent(cells, xOffset, zOffset);
+                nXZ = nX.getLowestNeighborDirectlyAdjacent(xOffset, zOffset);
                 nXZ = allowUpslope || nXZ == null || nXZ.floorLevel() <= nX.floorLevel() ? nXZ : null;
             }
 
             @Nullable
             LavaCell nZX = null;
             @Nullable
-            LavaCell nZ = getLowestNeighborDirectlyAdjacent(cells, 0, zOffset);
+            LavaCell nZ = getLowestNeighborDirectlyAdjacent(0, zOffset);
             if (nZ != null && (allowUpslope || nZ.floorLevel() <= this.floorLevel())) {
-                nZX = nZ.getLowestNeighborDirectlyAdjacent(cells, xOffset, zOffset);
+                nZX = nZ.getLowestNeighborDirectlyAdjacent(xOffset, zOffset);
                 nZX = allowUpslope || nZX == null || nZX.floorLevel() <= nZ.floorLevel() ? nZX : null;
             }
 
@@ -603,8 +721,8 @@ public class LavaCell extends AbstractLavaCell {
         }
     }
 
-    private @Nullable LavaCell getLowestNeighborDirectlyAdjacent(LavaCells cells, int xOffset, int zOffset) {
-        LavaCell candidate = cells.getEntryCell(this.x() + xOffset, this.z() + zOffset);
+    private @Nullable LavaCell getLowestNeighborDirectlyAdjacent(int xOffset, int zOffset) {
+        LavaCell candidate = this.locator.cellChunk.getEntryCellNear(this.x() + xOffset, this.z() + zOffset);
         if (candidate == null)
             return null;
 
@@ -691,15 +809,48 @@ public class LavaCell extends AbstractLavaCell {
         if (this.isEmpty()) {
             // needed so that we don't cool before flow tick can be updated based on flow
             // tracking
-            this.lastFlowTick = Simulator.currentTick();
+            this.storeLastFlowTick(Simulator.currentTick());
 
             // Check for melting of shallow floor that might causing this cell to merge with
             // the cell below
             if (this.floorFlowHeight() > 0)
-                this.setValidationNeeded(true);
+                this.setValidationNeeded(this.floorY() - 1, this.floorY());
         }
         super.changeFluidUnits(deltaUnits);
-        this.absoluteFlowThisTick += deltaUnits < 0 ? -deltaUnits : deltaUnits;
+        this.storeAbsoluteFlowThisTick(this.storedAbsoluteFlowThisTick() + (deltaUnits < 0 ? -deltaUnits : deltaUnits));
+        this.wake();
+    }
+
+    /**
+     * Marks this column and adjacent columns for cell setup. Cheap to call
+     * repeatedly - only the first call between cell setups for a column does
+     * anything. Repeats are counted by setup rather than by tick, because a column
+     * can go to sleep at the first setup after it is woken, and changes later in
+     * the same tick must wake it again.
+     */
+    @Override
+    public final void wake() {
+        final CellLocator locator = this.locator;
+
+        // null cell has no location
+        if (locator == null)
+            return;
+
+        // every time - chunk may have been saved since the first call this tick
+        locator.cellChunk.markSaveDirty();
+
+        // before the check for repeat calls - island may have been suspended since
+        final LavaIsland island = this.island;
+        if (island != null)
+            island.touch();
+
+        final int generation = locator.cellChunk.cells.sim.connections.setupGeneration();
+        if (locator.lastWakeGeneration == generation)
+            return;
+
+        locator.lastWakeGeneration = generation;
+        locator.cellChunk.countVisualChange();
+        locator.cellChunk.wakeColumnAndNeighbors(locator.x, locator.z);
     }
 
     public final void addLava(int fluidUnits) {
@@ -828,7 +979,7 @@ public class LavaCell extends AbstractLavaCell {
         // if we get here, this is the closest cell and Y is not adjacent
         // therefore the space represents a new cell.
 
-        LavaCell newCell = new LavaCell(this, y * TerrainState.BLOCK_LEVELS_INT + floorHeight, (y + 1) * TerrainState.BLOCK_LEVELS_INT, isFlowFloor);
+        LavaCell newCell = LavaCell.create(this, y * TerrainState.BLOCK_LEVELS_INT + floorHeight, (y + 1) * TerrainState.BLOCK_LEVELS_INT, isFlowFloor);
 
         if (y > myTop) {
             // if space is above, insert new cell above this one
@@ -982,7 +1133,7 @@ public class LavaCell extends AbstractLavaCell {
         if (!isFullBarrier && this.worldSurfaceLevel() > floorForNewCell)
             return this;
 
-        LavaCell newCell = new LavaCell(this, floorForNewCell, this.ceilingLevel(), isFlowFloor);
+        LavaCell newCell = LavaCell.create(this, floorForNewCell, this.ceilingLevel(), isFlowFloor);
 
         if (this.worldSurfaceLevel() > floorForNewCell) {
             int surfaceUnits = this.worldSurfaceUnits();
@@ -1144,6 +1295,10 @@ public class LavaCell extends AbstractLavaCell {
         synchronized (this.connections) {
             this.connections.removeIfPresent(connection);
         }
+
+        final LavaIsland island = this.island;
+        if (island != null)
+            island.owner.onConnectionRemoved(island);
     }
 
     /**
@@ -1159,6 +1314,16 @@ public class LavaCell extends AbstractLavaCell {
                 && otherCell.floorLevel() < this.worldSurfaceLevel();
     }
 
+    /** Chunk that holds this cell. */
+    final CellChunk cellChunk() {
+        return this.locator.cellChunk;
+    }
+
+    /**
+     * Scans this cell's own connections, which are few. Doesn't use the arena
+     * lookup, because that would take the owning chunk's lock and neighbor
+     * lookups call this often during parallel cell setup.
+     */
     public final boolean isConnectedTo(LavaCell otherCell) {
         for (int i = this.connections.size() - 1; i >= 0; i--) {
             if (this.connections.get(i).getOther(this) == otherCell)
@@ -1178,19 +1343,20 @@ public class LavaCell extends AbstractLavaCell {
                 if (!c.isValid()) {
                     this.removeConnection(c);
                     c.getOther(this).removeConnection(c);
+                    c.release();
                 } else
                     c.setCellShapeDirty();
             }
 
             int x = this.x();
             int z = this.z();
-            LavaCells cells = sim.cells;
+            CellChunk chunk = this.locator.cellChunk;
             AbstractLavaConnections connections = sim.connections;
 
-            this.updateConnectionsWithColumn(cells.getEntryCell(x - 1, z), connections);
-            this.updateConnectionsWithColumn(cells.getEntryCell(x + 1, z), connections);
-            this.updateConnectionsWithColumn(cells.getEntryCell(x, z - 1), connections);
-            this.updateConnectionsWithColumn(cells.getEntryCell(x, z + 1), connections);
+            this.updateConnectionsWithColumn(chunk.getEntryCellNear(x - 1, z), connections);
+            this.updateConnectionsWithColumn(chunk.getEntryCellNear(x + 1, z), connections);
+            this.updateConnectionsWithColumn(chunk.getEntryCellNear(x, z - 1), connections);
+            this.updateConnectionsWithColumn(chunk.getEntryCellNear(x, z + 1), connections);
             this.clearConnectionUpdate();
         }
     }
@@ -1246,14 +1412,14 @@ public class LavaCell extends AbstractLavaCell {
 
     private final void setActiveStatus(boolean isActive) {
         if (!isActive) {
-            if (this.isActive) {
+            if (this.storedActive()) {
                 this.locator.cellChunk.decrementActiveCount(this.x(), this.z());
-                this.isActive = false;
+                this.storeActive(false);
             }
         } else {
-            if (!this.isActive) {
+            if (!this.storedActive()) {
                 this.locator.cellChunk.incrementActiveCount(this.x(), this.z());
-                this.isActive = true;
+                this.storeActive(true);
             }
         }
     }
@@ -1281,8 +1447,8 @@ public class LavaCell extends AbstractLavaCell {
      * 
      */
     public final boolean canCool(int simTickIndex) {
-        if (this.fluidUnits() == 0 || this.isCoolingDisabled || this.isDeleted || this.isValidationNeeded()
-                || simTickIndex - this.lastFlowTick < Configurator.LAVA.lavaCoolingTicks)
+        if (this.fluidUnits() == 0 || this.storedCoolingDisabled() || this.isDeleted || this.isValidationNeeded()
+                || simTickIndex - this.lastFlowTick() < Configurator.LAVA.lavaCoolingTicks)
             return false;
 
         int adjacentHotCount = 0;
@@ -1346,7 +1512,7 @@ public class LavaCell extends AbstractLavaCell {
      */
     @Environment(EnvType.CLIENT)
     public final float activityLevel() {
-        return Math.max(0, 1f - ((float) (Simulator.currentTick() - this.lastFlowTick)) / Configurator.LAVA.lavaCoolingTicks);
+        return Math.max(0, 1f - ((float) (Simulator.currentTick() - this.lastFlowTick())) / Configurator.LAVA.lavaCoolingTicks);
     }
 
     /**
@@ -1383,62 +1549,60 @@ public class LavaCell extends AbstractLavaCell {
      * For use when updating from world and no need to re-update world.
      */
     public final void clearBlockUpdate() {
-        this.lastVisibleLevel = this.worldSurfaceLevel();
+        this.storeLastVisibleLevel(this.worldSurfaceLevel());
     }
 
     /**
      * Value that should be in the world.
      */
     public final int getLastVisibleLevel() {
-        if (this.lastVisibleLevel == NEVER_REPORTED) {
+        int result = this.storedLastVisibleLevel();
+        if (result == NEVER_REPORTED) {
 //            return Math.min(this.getCeiling(), this.getFloor() + this.fluidUnits / LavaSimulator.FLUID_UNITS_PER_LEVEL); 
-            this.lastVisibleLevel = this.floorLevel();
-
+            result = this.floorLevel();
+            this.storeLastVisibleLevel(result);
         }
 
-        return this.lastVisibleLevel;
+        return result;
 
     }
 
+    /**
+     * Marks this column and all eight around it for retention update, and wakes
+     * the neighbors. Waking this column only wakes the four adjacent, and sleeping
+     * columns aren't set up, so diagonals would otherwise keep the old retention
+     * until something else woke them.
+     */
     @Override
     protected final void invalidateLocalFloorDependencies() {
-        this.needsRetentionUpdate = true;
+        this.storeRetentionUpdateNeeded(true);
 
         int x = this.x();
         int z = this.z();
 
-        LavaCell neighbor = this.getFloorNeighbor(x - 1, z, true);
-        if (neighbor != null)
-            neighbor.needsRetentionUpdate = true;
-
-        neighbor = this.getFloorNeighbor(x + 1, z, true);
-        if (neighbor != null)
-            neighbor.needsRetentionUpdate = true;
-        neighbor = this.getFloorNeighbor(x, z - 1, true);
-        if (neighbor != null)
-            neighbor.needsRetentionUpdate = true;
-        neighbor = this.getFloorNeighbor(x, z + 1, true);
-        if (neighbor != null)
-            neighbor.needsRetentionUpdate = true;
-
-        neighbor = this.getFloorNeighbor(x - 1, z - 1, true);
-        if (neighbor != null)
-            neighbor.needsRetentionUpdate = true;
-        neighbor = this.getFloorNeighbor(x - 1, z + 1, true);
-        if (neighbor != null)
-            neighbor.needsRetentionUpdate = true;
-        neighbor = this.getFloorNeighbor(x + 1, z - 1, true);
-        if (neighbor != null)
-            neighbor.needsRetentionUpdate = true;
-        neighbor = this.getFloorNeighbor(x + 1, z + 1, true);
-        if (neighbor != null)
-            neighbor.needsRetentionUpdate = true;
+        this.invalidateFloorNeighbor(x - 1, z);
+        this.invalidateFloorNeighbor(x + 1, z);
+        this.invalidateFloorNeighbor(x, z - 1);
+        this.invalidateFloorNeighbor(x, z + 1);
+
+        this.invalidateFloorNeighbor(x - 1, z - 1);
+        this.invalidateFloorNeighbor(x - 1, z + 1);
+        this.invalidateFloorNeighbor(x + 1, z - 1);
+        this.invalidateFloorNeighbor(x + 1, z + 1);
+    }
+
+    private void invalidateFloorNeighbor(int x, int z) {
+        final LavaCell neighbor = this.getFloorNeighbor(x, z, true);
+        if (neighbor != null) {
+            neighbor.storeRetentionUpdateNeeded(true);
+            neighbor.wake();
+        }
     }
 
     /** see {@link #rawRetainedLevel} */
     public final int getRetainedUnits() {
         // provide default value until retention can be updated
-        return this.retainedUnits;
+        return this.storedRetainedUnits();
     }
 
     /** {@link #rawRetainedLevel} + {@link #floorUnits()} */
@@ -1446,27 +1610,28 @@ public class LavaCell extends AbstractLavaCell {
         return this.getRetainedUnits() + this.floorUnits();
     }
 
-    /** see {@link #retainedUnits} */
+    /** see {@link #storedRetainedUnits()} */
     public final void updateRetentionIfNeeded() {
         if (this.isDeleted)
             return;
 
         // calculation relies on having current connections
-        if (this.needsRetentionUpdate && !this.isConnectionUpdateNeeded()) {
+        if (this.storedRetentionUpdateNeeded() && !this.isConnectionUpdateNeeded()) {
             this.updateRetention();
         }
     }
 
     /** see {@link #rawRetainedLevel} */
     private final void updateRetention() {
-        this.needsRetentionUpdate = false;
+        this.storeRetentionUpdateNeeded(false);
+        this.locator.cellChunk.markSaveDirty();
 
         int depth = this.isBottomFlow() ? this.getFlowFloorRetentionDepth()
-                : (int) (LavaTerrainHelper.computeIdealBaseFlowHeight(locator.cellChunk.cells.sim.world, PackedBlockPos.pack(this.x(), this.floorY(), this.z()))
+                : (int) (LavaTerrainHelper.computeIdealBaseFlowHeight(locator.cellChunk.cells.sim.terrain.blockView(), PackedBlockPos.pack(this.x(), this.floorY(), this.z()))
                         * LavaSimulator.FLUID_UNITS_PER_BLOCK);
 
         // never retain more than volume, otherwise cell can never depressurize fully
-        this.retainedUnits = Math.min(depth, this.volumeUnits());
+        this.storeRetainedUnits(Math.min(depth, this.volumeUnits()));
     }
 
     /**
@@ -1504,7 +1669,7 @@ public class LavaCell extends AbstractLavaCell {
         if (y <= 0)
             return LavaSimulator.FLUID_UNITS_PER_BLOCK;
 
-        BlockView world = this.locator.cellChunk.cells.sim.world;
+        BlockView world = this.locator.cellChunk.cells.sim.terrain.blockView();
 
         BlockPos.Mutable pos = flowFloorPos.get();
         pos.set(this.x(), y, this.z());
@@ -1564,31 +1729,33 @@ public class LavaCell extends AbstractLavaCell {
     }
 
     public void setRefreshRange(int yLow, int yHigh) {
-        if (this.refreshBottomY == REFRESH_NONE || yLow < this.refreshBottomY) {
-            this.refreshBottomY = (short) yLow;
+        final int refreshBottomY = this.storedRefreshBottomY();
+        if (refreshBottomY == REFRESH_NONE || yLow < refreshBottomY) {
+            this.storeRefreshBottomY(yLow);
         }
 
-        if (this.refreshTopY == REFRESH_NONE || yHigh > this.refreshTopY) {
-            this.refreshTopY = (short) yHigh;
+        final int refreshTopY = this.storedRefreshTopY();
+        if (refreshTopY == REFRESH_NONE || yHigh > refreshTopY) {
+            this.storeRefreshTopY(yHigh);
         }
     }
 
     public final void clearRefreshRange() {
-        this.refreshBottomY = REFRESH_NONE;
-        this.refreshTopY = REFRESH_NONE;
+        this.storeRefreshBottomY(REFRESH_NONE);
+        this.storeRefreshTopY(REFRESH_NONE);
     }
 
     public final boolean hasRefreshRange() {
-        return this.refreshBottomY != REFRESH_NONE && this.refreshTopY != REFRESH_NONE;
+        return this.storedRefreshBottomY() != REFRESH_NONE && this.storedRefreshTopY() != REFRESH_NONE;
     }
 
     public final boolean isCoolingDisabled() {
-        return this.isCoolingDisabled;
+        return this.storedCoolingDisabled();
     }
 
     public final void setCoolingDisabled(boolean isCoolingDisabled) {
-        if (this.isCoolingDisabled != isCoolingDisabled)
-            this.isCoolingDisabled = isCoolingDisabled;
+        if (this.storedCoolingDisabled() != isCoolingDisabled)
+            this.storeCoolingDisabled(isCoolingDisabled);
     }
 
     public final int x() {
@@ -1672,8 +1839,8 @@ public class LavaCell extends AbstractLavaCell {
 
         if (this.hasRefreshRange()) {
             shouldGenerate = true;
-            bottomY = Math.min(bottomY, this.refreshBottomY);
-            topY = Math.max(topY, this.refreshTopY);
+            bottomY = Math.min(bottomY, this.storedRefreshBottomY());
+            topY = Math.max(topY, this.storedRefreshTopY());
             this.clearRefreshRange();
         }
 
@@ -1685,16 +1852,20 @@ public class LavaCell extends AbstractLavaCell {
             // AND (change in opposite direction of last deferred change
             // OR did not defer last time)
             // AND cell is not transitioning to/from an empty state
+            final int deferredChangeDelta = this.storedDeferredChangeDelta();
             if (!shouldGenerate && lastVisible > floor && currentVisible > floor && Math.abs(delta) < 3
                     && (deferredChangeDelta == 0 || (deferredChangeDelta > 0) != (delta > 0))) {
-                deferredChangeDelta = delta;
+                this.storeDeferredChangeDelta(delta);
 //                deferSuccess.incrementAndGet();
             } else {
                 shouldGenerate = true;
                 int lastSurfaceY = Math.max(this.floorY(), getYFromCeilingLevel(lastVisible));
                 bottomY = Math.min(lastSurfaceY, currentSurfaceY);
                 topY = Math.max(lastSurfaceY, currentSurfaceY);
-                this.lastVisibleLevel = currentVisible;
+                this.storeLastVisibleLevel(currentVisible);
+
+                // active status of empty cells depends on last visible level
+                this.wake();
             }
 
 //            if(deferAttempts.incrementAndGet() == 10000)
@@ -1748,9 +1919,9 @@ public class LavaCell extends AbstractLavaCell {
      * represents a larger amount of lava being moved around.
      */
     private final void updateLastFlowTick() {
-        final int f = this.absoluteFlowThisTick;
+        final int f = this.storedAbsoluteFlowThisTick();
         if (f > 0) {
-            this.absoluteFlowThisTick = 0;
+            this.storeAbsoluteFlowThisTick(0);
 
             final int units = this.fluidUnits();
 
@@ -1759,7 +1930,7 @@ public class LavaCell extends AbstractLavaCell {
 
             if (f > Configurator.LAVA.lavaKeepaliveFlowThreshold
                     || (f > Configurator.Volcano.lavaCoolingPressuredKeepaliveThreshold && units > this.volumeUnits())) {
-                this.lastFlowTick = Simulator.currentTick();
+                this.storeLastFlowTick(Simulator.currentTick());
             }
         }
     }
@@ -1779,8 +1950,8 @@ public class LavaCell extends AbstractLavaCell {
     public final void delayCooling() {
         if (this.fluidUnits() == 0)
             return;
-        this.lastFlowTick = Math.min(Simulator.currentTick(), this.lastFlowTick
-                + ThreadLocalRandom.current().nextInt(Configurator.LAVA.lavaCoolingPropagationMin, Configurator.LAVA.lavaCoolingPropagationMax));
+        this.storeLastFlowTick(Math.min(Simulator.currentTick(), this.lastFlowTick()
+                + ThreadLocalRandom.current().nextInt(Configurator.LAVA.lavaCoolingPropagationMin, Configurator.LAVA.lavaCoolingPropagationMax)));
     }
 
     /**
@@ -1802,7 +1973,7 @@ public class LavaCell extends AbstractLavaCell {
             return null;
 
         // needed by LavaConnection.setupTick
-        this.maxOutputPerStep = Math.max(LavaSimulator.MIN_FLOW_UNITS, available / LavaConnections.STEP_COUNT);
+        this.setMaxOutputPerStep(Math.max(LavaSimulator.MIN_FLOW_UNITS, available / LavaConnections.STEP_COUNT));
 
         Flowable keeper = null;
 
@@ -1819,7 +1990,7 @@ public class LavaCell extends AbstractLavaCell {
                     keeper = f;
                     keeper.nextToFlow = null;
                     // only necessary if we're going to flow
-                    this.outputThisTick = 0;
+                    this.setOutputThisTick(0);
                 } else
                     keeper = addToFlowChain(keeper, f);
             }
@@ -1835,7 +2006,7 @@ public class LavaCell extends AbstractLavaCell {
      * @param toBeAdded
      * @return
      */
-    private Flowable addToFlowChain(Flowable start, Flowable toBeAdded) {
+    final Flowable addToFlowChain(Flowable start, Flowable toBeAdded) {
         // if new node has the highest drop or the same drop, can
         // simply make it the new head
 
@@ -1874,6 +2045,16 @@ public class LavaCell extends AbstractLavaCell {
         /** True if cells in this column should be validated with world state */
         private boolean isValidationNeeded = false;
 
+        /** Range of block y values to validate - only meaningful if validation needed */
+        private int validationMinY = 0;
+        private int validationMaxY = 255;
+
+        /**
+         * {@link AbstractLavaConnections#setupGeneration()} at last call to
+         * {@link LavaCell#wake()} for this column
+         */
+        private int lastWakeGeneration = -1;
+
         /**
          * Reference to cell chunk where this cell column lives.
          */
@@ -1893,6 +2074,20 @@ public class LavaCell extends AbstractLavaCell {
                 this.cellChunk.incrementValidationCount();
 
             this.isValidationNeeded = isNeeded;
+            this.validationMinY = 0;
+            this.validationMaxY = 255;
+        }
+
+        public void setValidationNeeded(int minY, int maxY) {
+            if (this.isValidationNeeded) {
+                this.validationMinY = Math.min(this.validationMinY, minY);
+                this.validationMaxY = Math.max(this.validationMaxY, maxY);
+            } else {
+                this.cellChunk.incrementValidationCount();
+                this.isValidationNeeded = true;
+                this.validationMinY = minY;
+                this.validationMaxY = maxY;
+            }
         }
 
         public boolean isValidationNeeded() {
@@ -0,0 +1,156 @@
+package grondag.pyroclasm.fluidsim;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.annotation.Nullable;
+
+import grondag.pyroclasm.Configurator;
+import grondag.pyroclasm.Pyroclasm;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.NbtIo;
+
+/**
+ * Lava cells saved in their own file next to the world data, so that encoding
+ * and compression can happen on a background thread. The simulator's own tag
+ * only records the generation of the file that goes with it. See
+ * {@link Configurator.Performance#asyncCellSave}
+ * <p>
+ *
+ * Two files are used in turn, so the previous generation is still there if the
+ * game stops before a write finishes. Loading falls back to it with a warning.
+ */
+class LavaCellFile {
+    private static final String NBT_GENERATION = "generation";
+
+    private final File dir;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "Pyroclasm Lava Cell Save");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** generation of the last file written or read */
+    private int generation = 0;
+
+    private @Nullable Future<?> pending;
+
+    LavaCellFile(File dir) {
+        this.dir = dir;
+    }
+
+    private File file(int generation) {
+        return new File(this.dir, "pyroclasm_lava_cells_" + (generation & 1) + ".dat");
+    }
+
+    /**
+     * Starts encoding and writing the given snapshot on the background thread.
+     * Returns the generation to record with the rest of the simulator state.
+     * Call {@link #awaitPending()} before capturing the snapshot.
+     */
+    int writeAsync(LavaCells cells, CellSaveSnapshot snapshot) {
+        final int generation = ++this.generation;
+
+        this.pending = this.executor.submit(() -> {
+            final long encodeStart = System.nanoTime();
+
+            final CompoundTag tag = new CompoundTag();
+            tag.putInt(NBT_GENERATION, generation);
+            cells.writeNBT(tag, snapshot);
+
+            final long writeStart = System.nanoTime();
+            final File file = this.file(generation);
+            final File temp = new File(this.dir, file.getName() + ".tmp");
+
+            try {
+                try (OutputStream out = new FileOutputStream(temp)) {
+                    NbtIo.writeCompressed(tag, out);
+                }
+
+                if (file.exists() && !file.delete())
+                    throw new IOException("Unable to replace " + file);
+
+                if (!temp.renameTo(file))
+                    throw new IOException("Unable to rename " + temp);
+            } catch (IOException e) {
+                Pyroclasm.LOG.error("Unable to save lava cells. Lava blocks may not be updated properly after restart.", e);
+                return;
+            }
+
+            if (Configurator.DEBUG.enablePerformanceLogging) {
+                final long end = System.nanoTime();
+                Pyroclasm.LOG.info(String.format("Lava cell save %d: capture %.2fms on server thread, then encode %.2fms and write %.2fms in background. %d of %d chunks changed.",
+                        generation, snapshot.captureNanos / 1000000.0, (writeStart - encodeStart) / 1000000.0, (end - writeStart) / 1000000.0,
+                        snapshot.changedCount(), snapshot.chunkCount()));
+            }
+        });
+
+        return generation;
+    }
+
+    /** Blocks until the last write has finished. */
+    void awaitPending() {
+        final Future<?> pending = this.pending;
+        if (pending == null)
+            return;
+
+        try {
+            pending.get();
+        } catch (InterruptedException | ExecutionException e) {
+            Pyroclasm.LOG.error("Unexpected error while saving lava cells.", e);
+        }
+
+        this.pending = null;
+    }
+
+    /**
+     * Reads cells saved with the given generation. Falls back to the previous
+     * generation if that one never finished writing. Returns null if neither can
+     * be read.
+     */
+    @Nullable
+    CompoundTag read(int generation) {
+        this.generation = generation;
+
+        CompoundTag result = this.readFile(generation);
+
+        if (result == null) {
+            result = this.readFile(generation - 1);
+            if (result != null)
+                Pyroclasm.LOG.warn("Lava cells from the last save were not found. Using the save before that. Lava blocks may not be updated properly.");
+            else
+                Pyroclasm.LOG.warn("Unable to load saved lava cells. Lava blocks may not be updated properly.");
+        }
+
+        return result;
+    }
+
+    private @Nullable CompoundTag readFile(int generation) {
+        final File file = this.file(generation);
+        if (!file.exists())
+            return null;
+
+        try (InputStream in = new FileInputStream(file)) {
+            final CompoundTag tag = NbtIo.readCompressed(in);
+            return tag.getInt(NBT_GENERATION) == generation ? tag : null;
+        } catch (IOException e) {
+            Pyroclasm.LOG.error("Unable to read saved lava cells from " + file, e);
+            return null;
+        }
+    }
+
+    /** Finishes any write in progress and stops the background thread. */
+    void close() {
+        this.awaitPending();
+        this.executor.shutdown();
+    }
+}
@@ -1,27 +1,28 @@
 package grondag.pyroclasm.fluidsim;
 
-import java.util.Comparator;
 import java.util.Iterator;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Consumer;
 
 import javax.annotation.Nullable;
 
-import com.google.common.collect.ComparisonChain;
-
 import grondag.fermion.position.PackedChunkPos;
 import grondag.fermion.sc.concurrency.PerformanceCounter;
+import grondag.fermion.simulator.Simulator;
 import grondag.fermion.varia.NBTDictionary;
 import grondag.pyroclasm.Configurator;
 import grondag.pyroclasm.Pyroclasm;
 import grondag.pyroclasm.world.ChunkTracker;
-import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import net.minecraft.nbt.CompoundTag;
 import net.minecraft.util.math.BlockPos;
 
 public class LavaCells {
+    /** single array of all cells - written by earlier versions, still read */
     private final static String NBT_LAVA_CELLS = NBTDictionary.claim("lavaCells");
-    private final static int CAPACITY_INCREMENT = 0x10000;
+    private final static String NBT_LAVA_CELL_CHUNKS = NBTDictionary.claim("lavaCellChunks");
+    private final static int NBT_TYPE_BYTE_ARRAY = 7;
 
 //    @SuppressWarnings("serial")
 //    private static class ChunkMap extends Long2ObjectOpenHashMap<CellChunk>
@@ -38,65 +39,275 @@ public class LavaCells {
 
     private final ConcurrentHashMap<Long, CellChunk> cellChunks = new ConcurrentHashMap<>();
 
+    /** Held while changing links between neighboring chunks. See {@link CellChunk#getNeighbor(int)} */
+    private final Object neighborLock = new Object();
+
+    /**
+     * Saved records of chunks with no lava, by packed chunk position, that haven't
+     * been needed since the world loaded. See {@link #hydrate(CellChunk)}. Only
+     * accessed on the server thread.
+     */
+    final Long2ObjectOpenHashMap<byte[]> dormantChunks = new Long2ObjectOpenHashMap<>();
+
+    /**
+     * Calls to {@link #unloadInactiveCellChunks()} left before dormant records are
+     * dropped.
+     */
+    private int dormantTicksRemaining = 0;
+
     private final ChunkTracker chunkTracker;
     /**
      * Reference to the simulation in which this cells collection lives.
      */
     public final LavaSimulator sim;
 
-    private static final int MAX_CHUNKS_PER_TICK = 4;
+    /**
+     * Chunks that are new or need validation. See
+     * {@link Configurator.Performance#validationBudgetMicros} for how many are
+     * handled each tick.
+     */
+    final ValidationQueue validationQueue = new ValidationQueue();
+
+    /**
+     * Captured at creation. When true, chunks that need a full load or validation
+     * are validated off tick from snapshots taken on tick. Marked cells are still
+     * validated on tick. See
+     * {@link Configurator.Performance#alwaysSetupTerrainOffThread}
+     */
+    final boolean useSnapshotValidation = Configurator.PERFORMANCE.alwaysSetupTerrainOffThread;
+
+    private static final CellChunk[] NO_CHUNKS = new CellChunk[0];
+
+    /**
+     * Chunks with snapshots waiting for validation, indexed by
+     * {@link CellChunk#parity}. Only used if {@link #useSnapshotValidation} is
+     * true.
+     */
+    private final CellChunk[][] snapshotChunks = { NO_CHUNKS, NO_CHUNKS, NO_CHUNKS, NO_CHUNKS };
+
+    /** Chunks validated off tick that need retention updated next tick. */
+    private final ObjectArrayList<CellChunk> retentionChunks = new ObjectArrayList<>();
+
+    private final Consumer<CellChunk> snapshotConsumer = c -> c.validateFromSnapshot();
+
+    /**
+     * Captured at creation so that all chunks in a simulation use the same storage
+     * mode. See {@link Configurator.Performance#enablePackedCellStorage}
+     */
+    final boolean usePackedCellStorage = Configurator.PERFORMANCE.enablePackedCellStorage;
 
     private final PerformanceCounter perfCounterValidation;
+    private final PerformanceCounter perfCounterSnapshot;
 
     public LavaCells(LavaSimulator sim) {
         this.sim = sim;
         this.chunkTracker = sim.chunkTracker;
 
-        // on tick
-        perfCounterValidation = PerformanceCounter.create(Configurator.DEBUG.enablePerformanceLogging, "Chunk validation", sim.perfCollectorOnTick);
+        perfCounterSnapshot = PerformanceCounter.create(Configurator.DEBUG.enablePerformanceLogging, "Chunk snapshot", sim.perfCollectorOnTick);
+
+        // on tick, or off tick with snapshots
+        perfCounterValidation = PerformanceCounter.create(Configurator.DEBUG.enablePerformanceLogging, "Chunk validation",
+                this.useSnapshotValidation ? sim.perfCollectorOffTick : sim.perfCollectorOnTick);
     }
 
+    /**
+     * Validates chunks that need it. If {@link #useSnapshotValidation} is true,
+     * chunks that need a full load or validation are instead captured for
+     * {@link #validateSnapshots()}. Call on tick.
+     */
     public void validateChunks() {
+        if (this.useSnapshotValidation) {
+            this.captureSnapshots();
+            return;
+        }
+
+        if (this.validationQueue.size() == 0)
+            return;
+
         this.perfCounterValidation.startRun();
 
-        int size = this.cellChunks.size();
+        final long deadline = System.nanoTime() + Configurator.PERFORMANCE.validationBudgetMicros * 1000L;
+        int chunkCount = 0;
 
-        if (size == 0)
-            return;
+        CellChunk c;
+        while ((c = this.nextForValidation(deadline, chunkCount)) != null) {
+            chunkCount++;
 
-        final Object[] candidates = this.cellChunks.values().stream().filter(c -> c.isNew() || c.validationPriority() > 0).sorted(new Comparator<Object>() {
-            @Override
-            public int compare(@Nullable Object o1, @Nullable Object o2) {
-                if (o1 == null)
-                    return o2 == null ? 0 : -1;
-                else if (o2 == null)
-                    return 1;
-
-                return ComparisonChain.start()
-                        // lower tick first
-                        .compare(((CellChunk) o1).lastValidationTick(), ((CellChunk) o2).lastValidationTick())
-                        // higher priority first
-                        .compare(((CellChunk) o2).validationPriority(), ((CellChunk) o1).validationPriority()).result();
+            if (c.isNew())
+                this.hydrate(c);
+
+            if (c.needsFullLoadOrValidation()) {
+                c.loadOrValidateChunk();
+            } else {
+                c.validateMarkedCells();
             }
-        }).toArray();
+        }
+
+        this.perfCounterValidation.endRun();
+        this.perfCounterValidation.addCount(chunkCount);
+    }
 
+    /**
+     * Next chunk to validate, or null if none or the budget is used up. At least
+     * one chunk is returned each tick so that validation can't stall. New chunks
+     * count against the budget like any other - they are first in the queue, so
+     * a burst of them is spread over the following ticks.
+     */
+    private @Nullable CellChunk nextForValidation(long deadline, int chunkCount) {
+        final CellChunk c = this.validationQueue.poll();
+
+        if (c == null || chunkCount == 0 || System.nanoTime() < deadline)
+            return c;
+
+        // over budget - put it back for next tick
+        this.validationQueue.update(c);
+        return null;
+    }
+
+    private void captureSnapshots() {
+        this.perfCounterSnapshot.startRun();
+
+        // retention reads the world, so wasn't done with validation
+        final ObjectArrayList<CellChunk> retentionChunks = this.retentionChunks;
+        if (!retentionChunks.isEmpty()) {
+            for (CellChunk c : retentionChunks) {
+                c.updateRetention();
+            }
+            retentionChunks.clear();
+        }
+
+        if (this.validationQueue.size() == 0) {
+            this.perfCounterSnapshot.endRun();
+            return;
+        }
+
+        // budget covers capture and marked cells - full validation is off tick
+        final long deadline = System.nanoTime() + Configurator.PERFORMANCE.validationBudgetMicros * 1000L;
+        final int[] counts = new int[CellChunk.PARITY_COUNT];
         int chunkCount = 0;
-        for (Object chunk : candidates) {
-            CellChunk c = (CellChunk) chunk;
-            if (c.isNew() || chunkCount < MAX_CHUNKS_PER_TICK) {
-                chunkCount++;
 
-                if (c.needsFullLoadOrValidation()) {
-                    c.loadOrValidateChunk();
-                } else {
-                    c.validateMarkedCells();
-                }
+        CellChunk c;
+        while ((c = this.nextForValidation(deadline, chunkCount)) != null) {
+            chunkCount++;
+
+            if (c.isNew())
+                this.hydrate(c);
+
+            if (c.needsFullLoadOrValidation()) {
+                c.captureSnapshot();
+                counts[c.parity]++;
+                retentionChunks.add(c);
             } else {
-                break;
+                // a few blocks per marked column - cheaper than copying sections
+                c.validateMarkedCells();
+            }
+        }
+
+        final int snapshotCount = retentionChunks.size();
+        final CellChunk[][] snapshotChunks = this.snapshotChunks;
+        for (int i = 0; i < CellChunk.PARITY_COUNT; i++) {
+            snapshotChunks[i] = counts[i] == 0 ? NO_CHUNKS : new CellChunk[counts[i]];
+            counts[i] = 0;
+        }
+
+        for (int i = 0; i < snapshotCount; i++) {
+            c = retentionChunks.get(i);
+            snapshotChunks[c.parity][counts[c.parity]++] = c;
+        }
+
+        this.perfCounterSnapshot.endRun();
+        this.perfCounterSnapshot.addCount(chunkCount);
+    }
+
+    /**
+     * Validates chunks from snapshots captured by {@link #validateChunks()} during
+     * the last on-tick phase. Call off tick, before cell setup. Chunks of the same
+     * parity never share a border, so each parity is validated in parallel. Has no
+     * effect unless {@link #useSnapshotValidation} is true.
+     */
+    public void validateSnapshots() {
+        if (!this.useSnapshotValidation)
+            return;
+
+        this.perfCounterValidation.startRun();
+
+        final CellChunk[][] snapshotChunks = this.snapshotChunks;
+        int chunkCount = 0;
+
+        for (int i = 0; i < CellChunk.PARITY_COUNT; i++) {
+            final CellChunk[] chunks = snapshotChunks[i];
+            if (chunks.length > 0) {
+                Simulator.SCATTER_GATHER_POOL.completeTask(chunks, 1, this.snapshotConsumer);
+                chunkCount += chunks.length;
+                snapshotChunks[i] = NO_CHUNKS;
             }
         }
 
         this.perfCounterValidation.endRun();
+        this.perfCounterValidation.addCount(chunkCount);
+    }
+
+    /**
+     * Creates cells in a new chunk from its saved record, if it has one that
+     * hasn't been loaded yet. Records of chunks with no lava aren't loaded with
+     * the world, because most are never needed again. They are kept here until
+     * the chunk is created by the simulation, an event or an active neighbor, and
+     * then loaded before the chunk is first validated. Call on the server thread.
+     */
+    private void hydrate(CellChunk chunk) {
+        if (this.dormantChunks.isEmpty())
+            return;
+
+        final byte[] data = this.dormantChunks.remove(chunk.packedChunkPos);
+        if (data != null)
+            this.decodeChunk(chunk.packedChunkPos, data);
+    }
+
+    /**
+     * Loads cells of one chunk from its saved record, for state saved per chunk.
+     * See {@link ChunkStateStore}. Records of chunks with no lava are kept dormant
+     * as they are on world load. Ignored if the chunk already has cells. Call on
+     * the server thread while flow is stopped.
+     */
+    void readChunkRecord(long packedChunkPos, byte[] data) {
+        final CellChunk chunk = this.cellChunks.get(packedChunkPos);
+        if (chunk != null && !chunk.isNew())
+            return;
+
+        try {
+            if (CellSaveFormat.isDormant(data)) {
+                this.dormantChunks.put(packedChunkPos, data);
+                this.dormantTicksRemaining = CellChunk.TICK_UNLOAD_THRESHOLD;
+                return;
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            Pyroclasm.LOG.warn("Truncated save data loading lava simulator. Lava blocks may not be updated properly.");
+            return;
+        }
+
+        this.decodeChunk(packedChunkPos, data);
+    }
+
+    /** Creates and connects cells from a chunk record. */
+    private void decodeChunk(long packedChunkPos, byte[] data) {
+        try {
+            if (!CellSaveFormat.decode(this, packedChunkPos, data))
+                return;
+        } catch (ArrayIndexOutOfBoundsException e) {
+            Pyroclasm.LOG.warn("Truncated save data loading lava simulator. Lava blocks may not be updated properly.");
+            return;
+        }
+
+        final CellChunk chunk = this.cellChunks.get(packedChunkPos);
+        if (chunk == null)
+            return;
+
+        chunk.forEach(cell -> {
+            cell.updateActiveStatus();
+            cell.updateConnectionsIfNeeded(this.sim);
+        });
+
+        chunk.setLoadedSaveData(data);
     }
 
     public @Nullable LavaCell getCellIfExists(BlockPos pos) {
@@ -140,11 +351,62 @@ public class LavaCells {
      */
     public CellChunk getOrCreateCellChunk(int xBlock, int zBlock) {
         final long key = PackedChunkPos.getPackedChunkPosFromBlockXZ(xBlock, zBlock);
-        return cellChunks.computeIfAbsent(key, k -> {
-            CellChunk result = new CellChunk(key, this);
-            this.chunkTracker.trackChunk(this.sim.world, key);
-            return result;
-        });
+        CellChunk result = cellChunks.get(key);
+
+        if (result == null) {
+            result = cellChunks.computeIfAbsent(key, k -> {
+                CellChunk c = new CellChunk(key, this);
+                this.chunkTracker.trackChunk(this.sim.world, key);
+                this.validationQueue.update(c);
+                return c;
+            });
+
+            // after insertion, so that a neighbor created at the same time sees it
+            this.linkNeighbors(result);
+        }
+
+        return result;
+    }
+
+    /**
+     * Links the given chunk and its loaded neighbors to each other. Chunks created
+     * concurrently may both call this, and may call it more than once.
+     */
+    private void linkNeighbors(CellChunk chunk) {
+        synchronized (this.neighborLock) {
+            if (this.cellChunks.get(chunk.packedChunkPos) != chunk)
+                return;
+
+            for (int dx = -1; dx <= 1; dx++) {
+                for (int dz = -1; dz <= 1; dz++) {
+                    if (dx == 0 && dz == 0)
+                        continue;
+
+                    final CellChunk n = this.cellChunks.get(PackedChunkPos.getPackedChunkPosFromBlockXZ(chunk.xStart + dx * 16, chunk.zStart + dz * 16));
+                    chunk.setNeighbor(CellChunk.neighborIndex(dx, dz), n);
+                    if (n != null)
+                        n.setNeighbor(CellChunk.neighborIndex(-dx, -dz), chunk);
+                }
+            }
+        }
+    }
+
+    /** Removes links to the given chunk, which has been removed. */
+    private void unlinkNeighbors(CellChunk chunk) {
+        synchronized (this.neighborLock) {
+            for (int dx = -1; dx <= 1; dx++) {
+                for (int dz = -1; dz <= 1; dz++) {
+                    if (dx == 0 && dz == 0)
+                        continue;
+
+                    final CellChunk n = chunk.getNeighbor(CellChunk.neighborIndex(dx, dz));
+                    if (n != null) {
+                        n.setNeighbor(CellChunk.neighborIndex(-dx, -dz), null);
+                        chunk.setNeighbor(CellChunk.neighborIndex(dx, dz), null);
+                    }
+                }
+            }
+        }
     }
 
     /**
@@ -170,90 +432,153 @@ public class LavaCells {
      * Releases chunks that no longer need to remain loaded.
      */
     public void unloadInactiveCellChunks() {
+        // chunks not needed by now would have been unloaded if loaded with the world
+        if (this.dormantTicksRemaining > 0 && --this.dormantTicksRemaining == 0) {
+            if (Configurator.DEBUG.enableLavaCellChunkTrace)
+                Pyroclasm.LOG.info("Dropping %d dormant chunk records", this.dormantChunks.size());
+
+            this.dormantChunks.clear();
+        }
+
         Iterator<CellChunk> it = this.cellChunks.values().iterator();
 
         while (it.hasNext()) {
             CellChunk chunk = it.next();
             if (chunk.canUnload()) {
                 it.remove();
+                this.unlinkNeighbors(chunk);
                 chunk.unload();
                 this.chunkTracker.untrackChunk(this.sim.world, chunk.packedChunkPos);
             }
         }
     }
 
+    /**
+     * Saves cells as one record per cell chunk in {@link CellSaveFormat}. Records
+     * for chunks that haven't changed since the last save are reused, so save
+     * cost depends on what has changed, not on how many cells there are.
+     */
     public void writeNBT(CompoundTag nbt) {
+        this.writeNBT(nbt, CellSaveSnapshot.capture(this));
+    }
 
-        IntArrayList saveData = new IntArrayList(this.chunkCount() * 64 * LavaCell.LAVA_CELL_NBT_WIDTH);
-
-        this.forEach(cell -> cell.writeNBT(saveData));
-
-        if (Configurator.DEBUG.enablePerformanceLogging)
-            Pyroclasm.LOG.info("Saving " + saveData.size() / LavaCell.LAVA_CELL_NBT_WIDTH + " lava cells.");
-
-        nbt.putIntArray(NBT_LAVA_CELLS, saveData.toIntArray());
+    /**
+     * Like {@link #writeNBT(CompoundTag)} but with cells captured earlier. Can be
+     * called from any thread.
+     */
+    void writeNBT(CompoundTag nbt, CellSaveSnapshot snapshot) {
+        nbt.put(NBT_LAVA_CELL_CHUNKS, snapshot.encode());
     }
 
+    /**
+     * Loads cells saved by {@link #writeNBT(CompoundTag)}. Also reads the int
+     * array layout of earlier versions, either as one array for all cells or one
+     * per chunk. Chunks with no lava are kept as saved until needed - see
+     * {@link #hydrate(CellChunk)}.
+     */
     public void readNBT(LavaSimulator sim, CompoundTag nbt) {
         this.cellChunks.clear();
+        this.validationQueue.clear();
+        this.dormantChunks.clear();
+
+        final CompoundTag chunkTag = nbt.getCompound(NBT_LAVA_CELL_CHUNKS);
+
+        if (nbt.contains(NBT_LAVA_CELL_CHUNKS)) {
+            for (String key : chunkTag.getKeys()) {
+                if (chunkTag.contains(key, NBT_TYPE_BYTE_ARRAY)) {
+                    final long packedChunkPos = Long.parseLong(key);
+                    final byte[] data = chunkTag.getByteArray(key);
+                    try {
+                        if (CellSaveFormat.isDormant(data))
+                            this.dormantChunks.put(packedChunkPos, data);
+                        else
+                            CellSaveFormat.decode(this, packedChunkPos, data);
+                    } catch (ArrayIndexOutOfBoundsException e) {
+                        Pyroclasm.LOG.warn("Truncated save data loading lava simulator. Lava blocks may not be updated properly.");
+                    }
+                } else {
+                    this.readCells(chunkTag.getIntArray(key));
+                }
+            }
+        } else {
+            // LOAD LAVA CELLS
+            this.readCells(nbt.getIntArray(NBT_LAVA_CELLS));
+        }
+
+        this.dormantTicksRemaining = this.dormantChunks.isEmpty() ? 0 : CellChunk.TICK_UNLOAD_THRESHOLD;
 
-        // LOAD LAVA CELLS
-        int[] saveData = nbt.getIntArray(NBT_LAVA_CELLS);
+        this.forEach(cell -> {
+            cell.updateActiveStatus();
+            cell.updateConnectionsIfNeeded(sim);
+        });
+
+        // loaded records stay valid until cells change - loading itself doesn't count
+        for (String key : chunkTag.getKeys()) {
+            if (chunkTag.contains(key, NBT_TYPE_BYTE_ARRAY)) {
+                final long packedChunkPos = Long.parseLong(key);
+                final CellChunk chunk = this.cellChunks.get(packedChunkPos);
+                if (chunk != null && !this.dormantChunks.containsKey(packedChunkPos))
+                    chunk.setLoadedSaveData(chunkTag.getByteArray(key));
+            }
+        }
+    }
 
+    /** Reads cells in the legacy int array layout. See {@link LavaCell#writeNBT} */
+    private void readCells(int[] saveData) {
         // confirm correct size
         if (saveData.length % LavaCell.LAVA_CELL_NBT_WIDTH != 0) {
             Pyroclasm.LOG.warn("Invalid save data loading lava simulator. Lava blocks may not be updated properly.");
-        } else {
-            int count = saveData.length / LavaCell.LAVA_CELL_NBT_WIDTH;
-            int newCapacity = (count / CAPACITY_INCREMENT + 1) * CAPACITY_INCREMENT;
-            if (newCapacity < CAPACITY_INCREMENT / 2)
-                newCapacity += CAPACITY_INCREMENT;
-
-            int i = 0;
-
-            while (i < saveData.length) {
-                int x = saveData[i++];
-                int z = saveData[i++];
+            return;
+        }
 
-                LavaCell newCell;
+        int i = 0;
 
-                LavaCell startingCell = this.getEntryCell(x, z);
+        while (i < saveData.length) {
+            int x = saveData[i++];
+            int z = saveData[i++];
 
-                if (startingCell == null) {
-                    newCell = new LavaCell(this, x, z, 0, 0, false);
-                    newCell.readNBTArray(saveData, i);
-                    this.setEntryCell(x, z, newCell);
-                } else {
-                    newCell = new LavaCell(startingCell, 0, 0, false);
-                    newCell.readNBTArray(saveData, i);
-                    startingCell.addCellToColumn(newCell);
-                }
+            LavaCell newCell;
 
-                // can't see why this was here - world doesn't get updated during save or load
-                // so pending updates should still be valid
-                // newCell.clearBlockUpdate();
+            LavaCell startingCell = this.getEntryCell(x, z);
 
-                // Java parameters are always pass by value, so have to advance index here
-                // subtract two because we incremented for x and z values already
-                i += LavaCell.LAVA_CELL_NBT_WIDTH - 2;
+            if (startingCell == null) {
+                newCell = LavaCell.create(this, x, z, 0, 0, false);
+                newCell.readNBTArray(saveData, i);
+                this.setEntryCell(x, z, newCell);
+            } else {
+                newCell = LavaCell.create(startingCell, 0, 0, false);
+                newCell.readNBTArray(saveData, i);
+                startingCell.addCellToColumn(newCell);
             }
 
-            this.forEach(cell -> {
-                cell.updateActiveStatus();
-                cell.updateConnectionsIfNeeded(sim);
-            });
+            // can't see why this was here - world doesn't get updated during save or load
+            // so pending updates should still be valid
+            // newCell.clearBlockUpdate();
+
+            // Java parameters are always pass by value, so have to advance index here
+            // subtract two because we incremented for x and z values already
+            i += LavaCell.LAVA_CELL_NBT_WIDTH - 2;
         }
     }
 
     public void logDebugInfo() {
-        Pyroclasm.LOG.info(this.cellChunks.size() + " loaded cell chunks");
+        Pyroclasm.LOG.info(this.cellChunks.size() + " loaded cell chunks" + (this.usePackedCellStorage ? " using packed cell storage" : "") + ", "
+                + this.dormantChunks.size() + " dormant");
         for (CellChunk chunk : this.cellChunks.values()) {
+            final PackedCellStore store = chunk.cellStore;
             Pyroclasm.LOG.info("xStart=" + PackedChunkPos.getChunkXStart(chunk.packedChunkPos) + " zStart="
-                    + PackedChunkPos.getChunkZStart(chunk.packedChunkPos) + " activeCount=" + chunk.getActiveCount() + " entryCount=" + chunk.getEntryCount());
+                    + PackedChunkPos.getChunkZStart(chunk.packedChunkPos) + " activeCount=" + chunk.getActiveCount() + " entryCount=" + chunk.getEntryCount()
+                    + (store == null ? "" : " storedCells=" + store.liveCount() + " storeCapacity=" + store.capacity()));
 
         }
     }
 
+    /** Chunk at the given position, or null if none. */
+    @Nullable
+    CellChunk getCellChunk(long packedChunkPos) {
+        return this.cellChunks.get(packedChunkPos);
+    }
+
     public void provideBlockUpdatesAndDoCooling(long packedChunkPos) {
         CellChunk chunk = this.cellChunks.get(packedChunkPos);
 
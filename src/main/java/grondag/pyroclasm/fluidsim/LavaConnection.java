@@ -13,21 +13,65 @@ public class LavaConnection {
      */
     public static LongAdder totalFlow = new LongAdder();
 
-    public final LavaCell firstCell;
+    /**
+     * Counts failed attempts to lock cells for flow or connection setup when
+     * performance logging is enabled.
+     */
+    public static final LongAdder lockRetryCount = new LongAdder();
 
-    public final LavaCell secondCell;
+    /**
+     * Accumulates nanoseconds spent retrying cell locks for flow or connection
+     * setup when performance logging is enabled.
+     */
+    public static final LongAdder lockRetryNanos = new LongAdder();
+
+    /** Changes only when a released connection is reused. See {@link ConnectionArena} */
+    public LavaCell firstCell = LavaCell.NULL_CELL;
+
+    /** Changes only when a released connection is reused. See {@link ConnectionArena} */
+    public LavaCell secondCell = LavaCell.NULL_CELL;
 
     private FlowDirection direction = FlowDirection.NONE;
 
+    /** Flowable set up for the current direction and cell shape. Null if none. */
     private @Nullable Flowable flowable = null;
 
-    public LavaConnection(LavaCell firstCell, LavaCell secondCell) {
+    /**
+     * Storage for the flowable in each direction, allocated when first needed and
+     * set up again in place when direction or cell shape changes.
+     */
+    private @Nullable Flowable oneToTwo = null;
+    private @Nullable Flowable twoToOne = null;
+
+    private final ConnectionArena arena;
+
+    /** Index in {@link #arena} */
+    final int slot;
+
+    /** Only created by {@link ConnectionArena} */
+    LavaConnection(ConnectionArena arena, int slot) {
+        this.arena = arena;
+        this.slot = slot;
+    }
+
+    /** Joins the given cells. Called by {@link ConnectionArena} for new and reused connections. */
+    void connect(LavaCell firstCell, LavaCell secondCell) {
         this.firstCell = firstCell;
         this.secondCell = secondCell;
+        this.direction = FlowDirection.NONE;
+        this.flowable = null;
         firstCell.addConnection(this);
         secondCell.addConnection(this);
     }
 
+    /**
+     * Call after removing the connection from both cells, so that it can be
+     * reused.
+     */
+    final void release() {
+        this.arena.release(this);
+    }
+
     public final @Nullable Flowable flowable() {
         return this.flowable;
     }
@@ -82,8 +126,14 @@ public class LavaConnection {
             }
 
             Flowable f = this.flowable;
-            if (f == null || f.fromCell != this.firstCell) {
-                f = new Flowable(this.firstCell, this.secondCell);
+            if (f == null || f != this.oneToTwo) {
+                f = this.oneToTwo;
+                if (f == null) {
+                    f = new Flowable();
+                    this.oneToTwo = f;
+                    AbstractLavaConnections.countAllocation();
+                }
+                f.initialize(this.firstCell, this.secondCell);
                 this.flowable = f;
             }
 
@@ -111,8 +161,14 @@ public class LavaConnection {
             }
 
             Flowable f = this.flowable;
-            if (f == null || f.fromCell != this.secondCell) {
-                f = new Flowable(this.secondCell, this.firstCell);
+            if (f == null || f != this.twoToOne) {
+                f = this.twoToOne;
+                if (f == null) {
+                    f = new Flowable();
+                    this.twoToOne = f;
+                    AbstractLavaConnections.countAllocation();
+                }
+                f.initialize(this.secondCell, this.firstCell);
                 this.flowable = f;
             }
 
@@ -125,41 +181,47 @@ public class LavaConnection {
         }
     }
 
+    /**
+     * Flow in one direction across the connection. Each connection keeps one for
+     * each direction, set up again in place by {@link #initialize(LavaCell, LavaCell)}
+     * when direction or cell shape changes, so steady-state flow allocates nothing.
+     * Fields are only changed during cell setup.
+     */
     public class Flowable {
         /**
          * Direction-dependent. Current "from" cell.
          */
-        public final LavaCell fromCell;
+        public LavaCell fromCell = LavaCell.NULL_CELL;
 
         /**
          * Direction-dependent. Current "from" cell.
          */
-        public final LavaCell toCell;
+        public LavaCell toCell = LavaCell.NULL_CELL;
 
         /**
          * Direction-dependent. Cache value of from cell's smoothed retained units.
          */
-        public final int fromRetained;
+        public int fromRetained;
 
         /**
          * Direction-dependent. Cache value of from cell's floor units.
          */
-        public final int fromFloor;
+        public int fromFloor;
 
         /**
          * Direction-dependent. Cache value of to cell's floor units.
          */
-        public final int toFloor;
+        public int toFloor;
 
         /**
          * Direction-dependent. Cache value of from cell's volume units.
          */
-        public final int fromVolume;
+        public int fromVolume;
 
         /**
          * Direction-dependent. Cache value of to cell's volume units.
          */
-        public final int toVolume;
+        public int toVolume;
 
         /**
          * Used in cell-wise connection processing. The drop from floor of "from" cell
@@ -168,29 +230,29 @@ public class LavaConnection {
          * is uphill.
          * <p>
          */
-        public final int drop;
+        public int drop;
 
         /**
          * True if ceiling of "to" cell is lower than ceiling of "from" cell. Only valid
          * if {@link #direction} is something other than {@link FlowDirection#NONE}.
          */
-        public final boolean isToLowerThanFrom;
+        public boolean isToLowerThanFrom;
 
         /**
          * When total fluid in both cells is above this amount, both cells will be under
          * pressure at equilibrium.
          */
-        public final int dualPressureThreshold;
+        public int dualPressureThreshold;
 
         /**
          * When total fluid in both cells is above this amount, at least one cell will
          * be under pressure at equilibrium.
          */
-        public final int singlePressureThreshold;
+        public int singlePressureThreshold;
 
         /**
          * Fluid units that can flow through this connection during a single step. Is
-         * the lesser of {@link LavaCell#maxOutputPerStep} from the source cell and the
+         * the lesser of {@link LavaCell#maxOutputPerStep()} from the source cell and the
          * max amount that could flow based on connection size.
          * <p>
          * 
@@ -217,7 +279,10 @@ public class LavaConnection {
          */
         public @Nullable Flowable nextToFlow;
 
-        private Flowable(LavaCell fromCell, LavaCell toCell) {
+        private Flowable() {
+        }
+
+        private void initialize(LavaCell fromCell, LavaCell toCell) {
             this.fromCell = fromCell;
             this.toCell = toCell;
 
@@ -251,19 +316,20 @@ public class LavaConnection {
         }
 
         /**
-         * Does a step - flowing across the connection if possible.
+         * Does a step - flowing across the connection if possible. Returns the fluid
+         * units that flowed, zero if none.
          * <p>
          * 
          * Note there is no checking for deleted or non-flowing connections here.
          * Assumes any deleted or non-flowing connections were excluded during setup.
          */
-        public void doStep() {
+        public int doStep() {
             final int fromFluid = fromCell.fluidUnits();
             final int toFluid = toCell.fluidUnits();
 
             int availableFluidUnits = fromFluid - this.fromRetained;
             if (availableFluidUnits < LavaSimulator.MIN_FLOW_UNITS)
-                return;
+                return 0;
             if (availableFluidUnits > this.maxFlowPerStep)
                 availableFluidUnits = this.maxFlowPerStep;
 
@@ -284,12 +350,13 @@ public class LavaConnection {
                 }
 
                 if (flow < LavaSimulator.MIN_FLOW_UNITS) {
-                    return;
+                    return 0;
                 } else {
                     executeFlow(flow);
+                    return flow;
                 }
             } else {
-                return;
+                return 0;
             }
         }
 
@@ -304,7 +371,7 @@ public class LavaConnection {
             // For now just add to cell level and don't do any visual effect.
 //          toCell.addLavaAtY(fromCell.worldSurfaceY(), flow);
             toCell.changeFluidUnits(flow);
-            fromCell.outputThisTick += flow;
+            fromCell.setOutputThisTick(fromCell.outputThisTick() + flow);
             if (Configurator.DEBUG.enableFlowTracking)
                 totalFlow.add(flow);
         }
@@ -430,6 +497,7 @@ public class LavaConnection {
 
         public void doStepParallel() {
             boolean isIncomplete = true;
+            long retryStart = 0;
             do {
                 if (fromCell.tryLock()) {
                     if (toCell.tryLock()) {
@@ -439,7 +507,16 @@ public class LavaConnection {
                     }
                     fromCell.unlock();
                 }
+
+                if (isIncomplete && Configurator.DEBUG.enablePerformanceLogging) {
+                    if (retryStart == 0)
+                        retryStart = System.nanoTime();
+                    lockRetryCount.increment();
+                }
             } while (isIncomplete);
+
+            if (retryStart != 0)
+                lockRetryNanos.add(System.nanoTime() - retryStart);
         }
 
         /**
@@ -469,7 +546,7 @@ public class LavaConnection {
                 return false;
             }
 
-            this.maxFlowPerStep = Math.min(flowWindow / LavaConnections.STEP_COUNT, fromCell.maxOutputPerStep);
+            this.maxFlowPerStep = Math.min(flowWindow / LavaConnections.STEP_COUNT, fromCell.maxOutputPerStep());
             return true;
         }
     }
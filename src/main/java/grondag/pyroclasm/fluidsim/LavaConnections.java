@@ -2,6 +2,8 @@ package grondag.pyroclasm.fluidsim;
 
 import java.util.function.Consumer;
 
+import javax.annotation.Nullable;
+
 import grondag.fermion.sc.concurrency.ScatterGatherThreadPool;
 import grondag.fermion.sc.concurrency.SimpleConcurrentList;
 import grondag.fermion.sc.concurrency.ScatterGatherThreadPool.ArrayMappingConsumer;
@@ -17,6 +19,45 @@ public class LavaConnections extends AbstractLavaConnections {
 
     private final FlowTask flowTask = new FlowTask();
 
+    /**
+     * Captured at creation so that setup and flow agree on the mode within a tick.
+     * See {@link Configurator.Performance#enableChunkParityFlow}
+     */
+    private final boolean useChunkParity = Configurator.PERFORMANCE.enableChunkParityFlow;
+
+    /**
+     * Chunks with flow chains this tick, indexed by {@link CellChunk#parity}. Only
+     * used if {@link #useChunkParity} is true.
+     */
+    private final CellChunk[][] parityChunks = new CellChunk[CellChunk.PARITY_COUNT][0];
+
+    /**
+     * Non-null if flow is scheduled by island. See
+     * {@link Configurator.Performance#enableIslandFlow}
+     */
+    @Nullable
+    private final LavaIslands islands = Configurator.PERFORMANCE.enableIslandFlow ? new LavaIslands() : null;
+
+    private static final LavaIsland[] NO_ISLANDS = new LavaIsland[0];
+
+    /** Islands with flow chains this tick. Only used if {@link #islands} is non-null. */
+    private LavaIsland[] flowingIslands = NO_ISLANDS;
+
+    /**
+     * Processes all flow chains in an island for the current step. Runs without
+     * cell locks because no connection crosses islands.
+     */
+    private final Consumer<LavaIsland> islandStepConsumer = i -> processStepToCompletion(i.flowChains.headsForStep(), i.flowChains.size(),
+            this.stepIndex, i.flowOperation);
+
+    /**
+     * Processes all flow chains in a chunk for the current step. Runs without cell
+     * locks because chunks of the same parity never share cells. See
+     * {@link CellChunk#parity}
+     */
+    private final Consumer<CellChunk> parityStepConsumer = c -> processStepToCompletion(c.flowChains.headsForStep(), c.flowChains.size(),
+            this.stepIndex, f -> f.doStep());
+
     /**
      * Per-step max is always the available units / step count. Connections in the
      * same round can cumulatively use more than the per-step max. Connections in
@@ -25,15 +66,28 @@ public class LavaConnections extends AbstractLavaConnections {
      */
     private final ArrayMappingConsumer<CellChunk, Flowable> chunkConsumer = new ArrayMappingConsumer<CellChunk, Flowable>(
             (CellChunk c, Consumer<Flowable> r) -> {
+                final boolean useChunkParity = this.useChunkParity;
+                if (useChunkParity)
+                    c.flowChains.clear();
+
                 if (c.isNew())
                     return;
 
-                c.forEach(cell -> {
+                final Consumer<LavaCell> cellConsumer = cell -> {
                     cell.updateStuff(sim);
                     Flowable keeper = cell.getFlowChain();
-                    if (keeper != null)
+                    if (keeper != null) {
                         r.accept(keeper);
-                });
+                        if (useChunkParity)
+                            c.flowChains.add(keeper);
+                    }
+                };
+
+                final int sleepTicks = Configurator.PERFORMANCE.cellSleepTicks;
+                if (sleepTicks > 0)
+                    c.forEachAwake(cellConsumer, sleepTicks);
+                else
+                    c.forEach(cellConsumer);
             }, toProcess);
 
     public LavaConnections(LavaSimulator sim) {
@@ -47,23 +101,83 @@ public class LavaConnections extends AbstractLavaConnections {
             return;
 
         this.setupCounter.startRun();
-        Simulator.SCATTER_GATHER_POOL.completeTask(this.sim.cells.rawChunks(), ScatterGatherThreadPool.POOL_SIZE, this.chunkConsumer);
+        this.advanceSetupGeneration();
+
+        final LavaIslands islands = this.islands;
+        if (islands != null) {
+            // connections made outside cell setup, as when chunks are loaded, must be
+            // joined first or a split could take cells that belong to another island
+            islands.applyUnions();
+            islands.applySplits();
+        }
+
+        final CellChunk[] chunks = this.sim.cells.rawChunks();
+        Simulator.SCATTER_GATHER_POOL.completeTask(chunks, ScatterGatherThreadPool.POOL_SIZE, this.chunkConsumer);
+
+        if (islands != null) {
+            islands.applyUnions();
+            this.flowingIslands = islands.groupFlowChains(this.toProcess.toArray());
+        } else if (this.useChunkParity)
+            this.groupChunksByParity(chunks);
+
+        this.advanceSetupGeneration();
         this.setupCounter.endRun();
         this.setupCounter.addCount(chunkCount);
     }
 
+    private void groupChunksByParity(CellChunk[] chunks) {
+        final int[] counts = new int[CellChunk.PARITY_COUNT];
+        for (CellChunk c : chunks) {
+            if (c.flowChains.size() > 0)
+                counts[c.parity]++;
+        }
+
+        final CellChunk[][] parityChunks = this.parityChunks;
+        for (int i = 0; i < CellChunk.PARITY_COUNT; i++) {
+            if (parityChunks[i].length != counts[i])
+                parityChunks[i] = new CellChunk[counts[i]];
+            counts[i] = 0;
+        }
+
+        for (CellChunk c : chunks) {
+            if (c.flowChains.size() > 0)
+                parityChunks[c.parity][counts[c.parity]++] = c;
+        }
+    }
+
     @Override
     protected final void doStepInner() {
-        if (this.toProcess.isEmpty())
+        final int size = this.toProcess.size();
+        if (size == 0)
             return;
 
-        Flowable[] inputs = this.toProcess.toArray();
-
-        if (inputs.length < Configurator.PERFORMANCE.concurrencyThreshold / 2) {
+        if (this.islands != null) {
+            // always by island, even if small, so that island flow is tracked
+            final LavaIsland[] flowingIslands = this.flowingIslands;
+            if (flowingIslands.length > 0) {
+                this.islandStepCounter.startRun();
+                this.islandStepCounter.addCount(flowingIslands.length);
+                Simulator.SCATTER_GATHER_POOL.completeTask(flowingIslands, 2, this.islandStepConsumer);
+                this.islandStepCounter.endRun();
+            }
+        } else if (size < Configurator.PERFORMANCE.concurrencyThreshold / 2) {
             this.stepCounter.startRun();
-            this.stepCounter.addCount(processStepToCompletion(inputs, this.stepIndex, f -> f.doStep()));
+            this.stepCounter.addCount(processStepToCompletion(this.toProcess.toArray(), size, this.stepIndex, f -> f.doStep()));
             this.stepCounter.endRun();
+        } else if (this.useChunkParity) {
+            this.parityStepCounter.startRun();
+            this.parityStepCounter.addCount(size);
+
+            // all chunks of one parity must finish before the next parity starts
+            for (CellChunk[] chunks : this.parityChunks) {
+                if (chunks.length > 0)
+                    Simulator.SCATTER_GATHER_POOL.completeTask(chunks, 1, this.parityStepConsumer);
+            }
+
+            this.parityStepCounter.endRun();
         } else {
+            Flowable[] inputs = this.toProcess.toArray();
+
             this.parallelStepCounter.startRun();
 
             do {
@@ -78,12 +192,31 @@ public class LavaConnections extends AbstractLavaConnections {
         }
     }
 
+    @Override
+    protected final void onConnectionCreated(LavaConnection connection) {
+        final LavaIslands islands = this.islands;
+        if (islands != null)
+            islands.onConnectionCreated(connection);
+    }
+
+    @Override
+    protected final void onFlowComplete() {
+        for (CellChunk c : this.sim.cells.rawChunks()) {
+            c.connections.recycle();
+        }
+
+        final LavaIslands islands = this.islands;
+        if (islands != null) {
+            islands.endFlow();
+            this.flowingIslands = NO_ISLANDS;
+        }
+    }
+
     /**
      * Flowables passed in WILL BE MUTATED! Note that step is 1-based, first step =
      * 1. math works better that way
      */
-    private static int processStepToCompletion(Flowable[] connections, int step, Consumer<Flowable> operation) {
-        int size = connections.length;
+    private static int processStepToCompletion(Flowable[] connections, int size, int step, Consumer<Flowable> operation) {
         int processCount = 0;
 
         while (size > 0) {
@@ -96,7 +229,7 @@ public class LavaConnections extends AbstractLavaConnections {
     /**
      * Returns the new size remaining, not the number processed.
      */
-    private static int processRound(final Flowable[] connections, final int start, final int end, final int step, final Consumer<Flowable> operation) {
+    static int processRound(final Flowable[] connections, final int start, final int end, final int step, final Consumer<Flowable> operation) {
         int newEnd = start;
 
         for (int i = start; i < end; i++) {
@@ -123,7 +256,7 @@ public class LavaConnections extends AbstractLavaConnections {
                     // no need to go in next round if already exhausted available supply of lava
                     // supply is rationed for each step - can be exceeded in any round that starts
                     // (and the first round always starts) but once exceeded stops subsequent rounds
-                    if (source.outputThisTick < source.maxOutputPerStep * step) {
+                    if (source.outputThisTick() < source.maxOutputPerStep() * step) {
                         connections[newEnd++] = next;
                     }
                     break;
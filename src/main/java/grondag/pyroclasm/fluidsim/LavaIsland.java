@@ -0,0 +1,110 @@
+package grondag.pyroclasm.fluidsim;
+
+import java.util.function.Consumer;
+
+import grondag.pyroclasm.fluidsim.LavaConnection.Flowable;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+
+/**
+ * Set of cells joined by connections. Lava can only move between cells of the
+ * same island, so islands can flow concurrently without locking cells.
+ * Maintained by {@link LavaIslands}.
+ * <p>
+ *
+ * Islands are union-find nodes: when a connection joins two islands, the
+ * smaller is merged into the larger and points to it as parent. Only the root
+ * of a tree holds members and flow state. Parent links are only changed on the
+ * simulation thread, outside of cell setup and flow.
+ */
+final class LavaIsland {
+    final LavaIslands owner;
+
+    private LavaIsland parent = this;
+
+    /**
+     * Cells in this island. Only valid for roots. May include deleted cells until
+     * the next split.
+     */
+    ObjectArrayList<LavaCell> members = new ObjectArrayList<>();
+
+    /** True if queued for split because a connection was removed */
+    boolean isSplitQueued = false;
+
+    /**
+     * True if flow last tick was below
+     * {@link grondag.pyroclasm.Configurator.Performance#islandSleepFlowUnits} and
+     * nothing outside the island has changed one of its cells since then.
+     */
+    boolean isSuspended = false;
+
+    /** Set by {@link #touch()}, which can be called from any thread */
+    private volatile boolean isTouched = false;
+
+    /**
+     * Fluid units moved by flows in this island during the current tick. Only
+     * updated by the thread processing this island.
+     */
+    int flowThisTick = 0;
+
+    /** Heads of flow chains for this tick */
+    final FlowChainList flowChains = new FlowChainList();
+
+    /** Does a flow step and accumulates {@link #flowThisTick} */
+    final Consumer<Flowable> flowOperation = f -> this.flowThisTick += f.doStep();
+
+    LavaIsland(LavaIslands owner) {
+        this.owner = owner;
+    }
+
+    /**
+     * Root of this island. Compresses the path to the root, so only call from the
+     * simulation thread outside of cell setup and flow.
+     */
+    LavaIsland find() {
+        LavaIsland root = this;
+        while (root.parent != root)
+            root = root.parent;
+
+        LavaIsland node = this;
+        while (node != root) {
+            final LavaIsland next = node.parent;
+            node.parent = root;
+            node = next;
+        }
+        return root;
+    }
+
+    /**
+     * Merges the other island into this one. Both must be roots. Caller is
+     * responsible for choosing the larger island as the target.
+     */
+    void absorb(LavaIsland other) {
+        this.members.addAll(other.members);
+        other.members = null;
+        other.parent = this;
+        this.isSuspended &= other.isSuspended;
+        if (other.isTouched)
+            this.isTouched = true;
+    }
+
+    /**
+     * Notes that a cell in this island has changed. Thread-safe. Does not change
+     * parent links and so can run concurrently with other touches and with flow.
+     */
+    void touch() {
+        LavaIsland root = this;
+        while (root.parent != root)
+            root = root.parent;
+
+        if (!root.isTouched)
+            root.isTouched = true;
+    }
+
+    boolean isTouched() {
+        return this.isTouched;
+    }
+
+    void clearTouched() {
+        this.isTouched = false;
+    }
+}
@@ -0,0 +1,208 @@
+package grondag.pyroclasm.fluidsim;
+
+import grondag.pyroclasm.Configurator;
+import grondag.pyroclasm.fluidsim.LavaConnection.Flowable;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+
+/**
+ * Maintains {@link LavaIsland}s as connections are created and removed. Used
+ * when {@link Configurator.Performance#enableIslandFlow} is true.
+ * <p>
+ *
+ * Connections change during multi-threaded cell setup, so changes are queued
+ * and applied on the simulation thread. Removals are applied at the start of
+ * the next cell setup, before any flow chains exist, so a split can never
+ * separate the two cells of a flow chain. Creations are applied right after
+ * cell setup, before flow chains are grouped by island, and again before
+ * splits for connections created outside cell setup. Every connection is then
+ * within one island, so a split only ever reaches cells of the island being
+ * split.
+ */
+final class LavaIslands {
+    /** Connections created since last call to {@link #applyUnions()} */
+    private final ObjectArrayList<LavaConnection> createdConnections = new ObjectArrayList<>();
+
+    /** Islands that lost a connection since last call to {@link #applySplits()} */
+    private final ObjectArrayList<LavaIsland> splitQueue = new ObjectArrayList<>();
+
+    /** Islands with flow chains this tick */
+    private final ObjectArrayList<LavaIsland> flowingIslands = new ObjectArrayList<>();
+
+    private final ObjectArrayList<LavaCell> floodStack = new ObjectArrayList<>();
+
+    /** Called from cell setup when a connection is created. Thread-safe. */
+    void onConnectionCreated(LavaConnection connection) {
+        synchronized (this.createdConnections) {
+            this.createdConnections.add(connection);
+        }
+    }
+
+    /** Called when a connection is removed from a cell. Thread-safe. */
+    void onConnectionRemoved(LavaIsland island) {
+        synchronized (this.splitQueue) {
+            if (!island.isSplitQueued) {
+                island.isSplitQueued = true;
+                this.splitQueue.add(island);
+            }
+        }
+    }
+
+    /**
+     * Rebuilds islands that lost a connection. Call from simulation thread before
+     * cell setup, after {@link #applyUnions()}.
+     */
+    void applySplits() {
+        final ObjectArrayList<LavaIsland> queue = this.splitQueue;
+        final int size = queue.size();
+        if (size == 0)
+            return;
+
+        for (int i = 0; i < size; i++) {
+            queue.get(i).isSplitQueued = false;
+        }
+
+        // queued islands may since have merged - split each root once
+        final ObjectArrayList<LavaIsland> roots = new ObjectArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            final LavaIsland root = queue.get(i).find();
+            if (!root.isSplitQueued) {
+                root.isSplitQueued = true;
+                roots.add(root);
+            }
+        }
+        queue.clear();
+
+        for (int i = 0; i < roots.size(); i++)
+            this.split(roots.get(i));
+    }
+
+    private void split(LavaIsland island) {
+        final ObjectArrayList<LavaCell> members = island.members;
+        island.members = null;
+
+        final int size = members.size();
+        for (int i = 0; i < size; i++) {
+            members.get(i).island = null;
+        }
+
+        for (int i = 0; i < size; i++) {
+            final LavaCell cell = members.get(i);
+            if (cell.island != null || cell.isDeleted() || cell.connections.size() == 0)
+                continue;
+
+            final LavaIsland newIsland = new LavaIsland(this);
+            this.flood(cell, newIsland);
+        }
+    }
+
+    /** Assigns all cells reachable from start to the given island */
+    private void flood(LavaCell start, LavaIsland island) {
+        final ObjectArrayList<LavaCell> stack = this.floodStack;
+        start.island = island;
+        island.members.add(start);
+        stack.push(start);
+
+        while (!stack.isEmpty()) {
+            final LavaCell cell = stack.pop();
+            final int limit = cell.connections.size();
+            for (int i = 0; i < limit; i++) {
+                final LavaCell other = cell.connections.get(i).getOther(cell);
+                if (other.island != island) {
+                    other.island = island;
+                    island.members.add(other);
+                    stack.push(other);
+                }
+            }
+        }
+    }
+
+    /**
+     * Merges islands joined by new connections. Call from simulation thread before
+     * {@link #applySplits()} and after cell setup.
+     */
+    void applyUnions() {
+        final ObjectArrayList<LavaConnection> created = this.createdConnections;
+        final int size = created.size();
+        for (int i = 0; i < size; i++) {
+            final LavaConnection c = created.get(i);
+            LavaIsland a = this.islandOf(c.firstCell);
+            LavaIsland b = this.islandOf(c.secondCell);
+
+            if (a == b)
+                continue;
+
+            if (a.members.size() < b.members.size()) {
+                final LavaIsland swap = a;
+                a = b;
+                b = swap;
+            }
+
+            a.absorb(b);
+        }
+        created.clear();
+    }
+
+    /** Root island of cell, creating a new island if the cell has none */
+    private LavaIsland islandOf(LavaCell cell) {
+        final LavaIsland island = cell.island;
+        if (island == null) {
+            final LavaIsland result = new LavaIsland(this);
+            result.members.add(cell);
+            cell.island = result;
+            return result;
+        }
+        return island.find();
+    }
+
+    /**
+     * Groups flow chains by island, dropping those of suspended islands. Call
+     * from simulation thread after {@link #applyUnions()}. Returns islands that
+     * have flow chains.
+     */
+    LavaIsland[] groupFlowChains(Flowable[] flowChains) {
+        final ObjectArrayList<LavaIsland> flowing = this.flowingIslands;
+
+        for (Flowable f : flowChains) {
+            final LavaIsland island = f.fromCell.island;
+
+            // can't happen - a cell with a flow has a connection
+            if (island == null)
+                continue;
+
+            final LavaIsland root = island.find();
+            if (root.isSuspended) {
+                if (root.isTouched())
+                    root.isSuspended = false;
+                else
+                    continue;
+            }
+
+            if (root.flowChains.size() == 0)
+                flowing.add(root);
+
+            root.flowChains.add(f);
+        }
+
+        return flowing.toArray(new LavaIsland[flowing.size()]);
+    }
+
+    /**
+     * Suspends islands that barely flowed and resets per-tick state. Call from
+     * simulation thread after all flow steps for the tick.
+     */
+    void endFlow() {
+        final int threshold = Configurator.PERFORMANCE.islandSleepFlowUnits;
+        final ObjectArrayList<LavaIsland> flowing = this.flowingIslands;
+        final int size = flowing.size();
+
+        for (int i = 0; i < size; i++) {
+            final LavaIsland island = flowing.get(i);
+            island.isSuspended = island.flowThisTick < threshold;
+            island.flowThisTick = 0;
+            // own flows touch the island - only later changes should wake it
+            island.clearTouched();
+            island.flowChains.clear();
+        }
+        flowing.clear();
+    }
+}
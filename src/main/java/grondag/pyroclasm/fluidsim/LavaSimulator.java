@@ -1,8 +1,12 @@
 package grondag.pyroclasm.fluidsim;
 
+import java.io.File;
 import java.util.Collection;
 
+import javax.annotation.Nullable;
+
 import grondag.fermion.position.PackedBlockPos;
+import grondag.fermion.position.PackedChunkPos;
 import grondag.fermion.sc.concurrency.PerformanceCollector;
 import grondag.fermion.sc.concurrency.PerformanceCounter;
 import grondag.fermion.simulator.SimulationTickable;
@@ -24,8 +28,14 @@ import grondag.pyroclasm.world.BlockEventList.BlockEventHandler;
 import grondag.xm.terrain.TerrainBlock;
 import grondag.xm.terrain.TerrainBlockHelper;
 import grondag.xm.terrain.TerrainState;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
 import grondag.pyroclasm.world.ChunkTracker;
 import grondag.pyroclasm.world.FireStarter;
+import grondag.pyroclasm.world.LavaSurfaceDeltas;
 import grondag.pyroclasm.world.LavaTreeCutter;
 import net.minecraft.block.Block;
 import net.minecraft.block.BlockState;
@@ -34,13 +44,19 @@ import net.minecraft.nbt.CompoundTag;
 import net.minecraft.server.MinecraftServer;
 import net.minecraft.server.world.ServerWorld;
 import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
 import net.minecraft.util.math.Vec3d;
 import net.minecraft.world.World;
+import net.minecraft.world.chunk.Chunk;
 
 public class LavaSimulator extends SimulationTopNode implements SimulationTickable {
     private static final String NBT_LAVA_ADD_EVENTS = NBTDictionary.claim("lavaAddEvents");
     private static final String NBT_LAVA_PLACEMENT_EVENTS = NBTDictionary.claim("lavaPlaceEvents");
     public static final String NBT_LAVA_SIMULATOR = NBTDictionary.claim("lavaSim");
+    private static final String NBT_LAVA_CELL_FILE = NBTDictionary.claim("lavaCellFile");
+    private static final String NBT_CHUNK_STATE = NBTDictionary.claim("lavaChunkState");
+    private static final String NBT_CHUNK_CELLS = NBTDictionary.claim("chunkCells");
+    private static final String NBT_CHUNK_BASALT = NBTDictionary.claim("chunkBasalt");
 
     public static final byte LEVELS_PER_BLOCK = TerrainState.BLOCK_LEVELS_INT;
     public static final byte LEVELS_PER_QUARTER_BLOCK = TerrainState.BLOCK_LEVELS_INT / 4;
@@ -74,13 +90,58 @@ public class LavaSimulator extends SimulationTopNode implements SimulationTickab
     final AdjustmentTracker adjustmentTracker;
 
     public final ChunkTracker chunkTracker = new ChunkTracker();
+
+    private final ChunkUpdateScheduler chunkUpdateScheduler = new ChunkUpdateScheduler();
+
+    /** Lava height changes from block updates, sent to clients once per tick */
+    public final LavaSurfaceDeltas surfaceDeltas = new LavaSurfaceDeltas();
+    /**
+     * Null for headless simulations created via {@link #createHeadless(TerrainSource)}.
+     * Code that only runs in game (volcanoes, particles, block events) can assume
+     * it is present.
+     */
     public final ServerWorld world;
 
+    /** where cell validation and retention read terrain - world unless headless */
+    public final TerrainSource terrain;
+
     public final LavaCells cells = new LavaCells(this);
     public final AbstractLavaConnections connections = new LavaConnections(this);
     public final LavaTreeCutter lavaTreeCutter;
     public final FireStarter fireStarter;
 
+    /**
+     * Saved cells when {@link Configurator.Performance#asyncCellSave} is on. Null
+     * for headless simulations, which always save inline.
+     */
+    private final @Nullable LavaCellFile cellFile;
+
+    /**
+     * Held for all of off-tick processing, and by saves while cell state is
+     * captured, so that saves see cells between flow steps.
+     */
+    private final Object tickLock = new Object();
+
+    /**
+     * Cells and cooling basalt saved with each chunk. Null for headless
+     * simulations. Always present otherwise, so state saved this way can be read
+     * even if {@link Configurator.Performance#perChunkSimulatorState} has since
+     * been turned off.
+     */
+    private final @Nullable ChunkStateStore chunkStateStore;
+
+    /**
+     * True if chunk records in {@link #chunkStateStore} hold current state and
+     * should be read as chunks load.
+     */
+    private boolean isChunkStateCurrent = false;
+
+    /**
+     * Chunks loaded since the last on-tick, by packed chunk position. Their state
+     * is read on tick, when flow is already stopped. Synchronize on the list.
+     */
+    private final LongArrayList loadedChunks = new LongArrayList();
+
     private boolean isDirty;
 
     long nextStatTime = 0;
@@ -119,7 +180,7 @@ public class LavaSimulator extends SimulationTopNode implements SimulationTickab
                     if (target != null) {
                         // if chunk has an entry cell for that column but not for the given space, mark
                         // it for validation
-                        target.setValidationNeeded(true);
+                        target.setValidationNeeded(event.y, event.y);
                     } else {
                         // mark entire chunk for validation
                         // Will already be so if we just created it, but handle strange
@@ -165,8 +226,26 @@ public class LavaSimulator extends SimulationTopNode implements SimulationTickab
     private final BlockEventList lavaAddEvents = new BlockEventList(10, NBT_LAVA_ADD_EVENTS, lavaAddEventHandler, this.perfCollectorOffTick);
 
     public LavaSimulator() {
+        this(Simulator.instance().getWorld(), null);
+    }
+
+    /**
+     * Creates a simulation that reads terrain from the given source and has no
+     * world. Headless simulations do flow, validation and lava events but skip
+     * everything that exists to mirror the simulation into the world: block
+     * updates, cooling, particles, tree cutting, fire and load statistics.
+     * Meant for benchmarks and test harnesses.
+     */
+    public static LavaSimulator createHeadless(TerrainSource terrain) {
+        return new LavaSimulator(null, terrain);
+    }
+
+    private LavaSimulator(@Nullable ServerWorld world, @Nullable TerrainSource terrain) {
         super(NBT_LAVA_SIMULATOR);
-        this.world = Simulator.instance().getWorld();
+        this.world = world;
+        this.terrain = terrain == null ? TerrainSource.of(world) : terrain;
+        // registries are final once a world is loading
+        BlockType.rebuildLookup();
         // TODO: need a way to capture block events - will be a mixin
         //this.world.addEventListener(this);
         this.lavaTreeCutter = new LavaTreeCutter(this.world);
@@ -174,6 +253,13 @@ public class LavaSimulator extends SimulationTopNode implements SimulationTickab
         this.particleManager = new LavaBlobManager();
         this.basaltTracker = new BasaltTracker(perfCollectorOnTick, this.world, this.chunkTracker);
         this.adjustmentTracker = new AdjustmentTracker(this);
+        this.cellFile = world == null ? null : new LavaCellFile(new File(world.getSaveHandler().getWorldDir(), "data"));
+        this.chunkStateStore = world == null ? null : new ChunkStateStore(new File(world.getSaveHandler().getWorldDir(), "data/pyroclasm_chunks"));
+    }
+
+    /** True if created via {@link #createHeadless(TerrainSource)} */
+    public boolean isHeadless() {
+        return this.world == null;
     }
 
     /**
@@ -248,7 +334,7 @@ public class LavaSimulator extends SimulationTopNode implements SimulationTickab
             } else {
                 // if chunk has an entry cell for that column but not for the given space, mark
                 // it for validation
-                target.setValidationNeeded(true);
+                target.setValidationNeeded(pos.getY(), pos.getY());
             }
 
             this.makeDirty();
@@ -294,7 +380,8 @@ public class LavaSimulator extends SimulationTopNode implements SimulationTickab
         }
         this.saveLavaNBT(nbt);
         this.particleManager.writeToNBT(nbt);
-        this.basaltTracker.serializeNBT(nbt);
+        if (!this.isChunkStateCurrent)
+            this.basaltTracker.serializeNBT(nbt);
         this.lavaTreeCutter.readTag(nbt);
         return nbt;
     }
@@ -307,16 +394,161 @@ public class LavaSimulator extends SimulationTopNode implements SimulationTickab
         }
         this.basaltTracker.deserializeNBT(nbt);
         this.lavaTreeCutter.writeTag(nbt);
+
+        final ChunkStateStore store = this.chunkStateStore;
+        if (store != null) {
+            store.clearHeld();
+            this.isChunkStateCurrent = nbt != null && nbt.getBoolean(NBT_CHUNK_STATE);
+
+            // chunks with simulator state are forced, so this is all of them
+            if (this.isChunkStateCurrent) {
+                final LongIterator it = this.world.getForcedChunks().iterator();
+                while (it.hasNext()) {
+                    this.readChunkState(PackedChunkPos.getPackedChunkPos(new ChunkPos(it.nextLong())));
+                }
+            }
+        }
+    }
+
+    /**
+     * Queues the given chunk so that simulator state saved with it is read on the
+     * next on-tick, if state is saved per chunk and it hasn't been read already.
+     * Call when a world chunk loads. Doesn't wait for flow to stop.
+     */
+    public void handleChunkLoad(World world, Chunk chunk) {
+        if (world == this.world && this.isChunkStateCurrent) {
+            final LongArrayList loadedChunks = this.loadedChunks;
+            synchronized (loadedChunks) {
+                loadedChunks.add(PackedChunkPos.getPackedChunkPos(chunk.getPos()));
+            }
+        }
+    }
+
+    /** Reads state of chunks queued by {@link #handleChunkLoad(World, Chunk)}. Call on tick. */
+    private void readLoadedChunkStates() {
+        final LongArrayList loadedChunks = this.loadedChunks;
+        final long[] chunks;
+
+        synchronized (loadedChunks) {
+            if (loadedChunks.isEmpty())
+                return;
+
+            chunks = loadedChunks.toLongArray();
+            loadedChunks.clear();
+        }
+
+        // records were deleted if state has been saved in full since
+        if (!this.isChunkStateCurrent)
+            return;
+
+        for (long packedChunkPos : chunks) {
+            this.readChunkState(packedChunkPos);
+        }
+    }
+
+    private void readChunkState(long packedChunkPos) {
+        final CompoundTag record = this.chunkStateStore.take(packedChunkPos);
+        if (record == null)
+            return;
+
+        if (record.contains(NBT_CHUNK_CELLS))
+            this.cells.readChunkRecord(packedChunkPos, record.getByteArray(NBT_CHUNK_CELLS));
+
+        if (record.contains(NBT_CHUNK_BASALT))
+            this.basaltTracker.readChunkSaveData(record.getIntArray(NBT_CHUNK_BASALT));
     }
 
+    /**
+     * Cell state is copied while off-tick processing is stopped. When
+     * {@link Configurator.Performance#asyncCellSave} is on, encoding and writing
+     * then happen in the background and only the generation of the cell file is
+     * saved here. Otherwise cells are encoded inline.
+     * <p>
+     *
+     * When {@link Configurator.Performance#perChunkSimulatorState} is on, cells
+     * and cooling basalt are saved with each chunk instead - see
+     * {@link ChunkStateStore}.
+     */
     public void saveLavaNBT(CompoundTag nbt) {
-        this.cells.writeNBT(nbt);
+        final LavaCellFile cellFile = this.cellFile;
+        final ChunkStateStore chunkStateStore = this.chunkStateStore;
+        final boolean isAsync = cellFile != null && Configurator.PERFORMANCE.asyncCellSave;
+
+        // previous write must finish before chunks take a new snapshot
+        if (cellFile != null)
+            cellFile.awaitPending();
+
+        if (chunkStateStore != null)
+            chunkStateStore.awaitPending();
+
+        final CellSaveSnapshot snapshot;
+        synchronized (this.tickLock) {
+            snapshot = CellSaveSnapshot.capture(this.cells);
+        }
+
+        if (chunkStateStore != null && Configurator.PERFORMANCE.perChunkSimulatorState) {
+            this.isChunkStateCurrent = true;
+            nbt.putBoolean(NBT_CHUNK_STATE, true);
+
+            final Long2ObjectOpenHashMap<int[]> basalt = this.basaltTracker.chunkSaveData();
+            final LongOpenHashSet chunks = new LongOpenHashSet(basalt.keySet());
+            snapshot.addChunks(chunks);
+
+            chunkStateStore.write(chunks, () -> chunkStateRecords(snapshot, basalt), isAsync);
+        } else {
+            if (chunkStateStore != null && this.isChunkStateCurrent) {
+                // saved in full below - old records must not be read again
+                chunkStateStore.deleteAll();
+                this.isChunkStateCurrent = false;
+            }
+
+            this.saveCells(nbt, snapshot, isAsync);
+        }
+
         this.lavaBlockPlacementEvents.writeNBT(nbt);
         this.lavaAddEvents.writeNBT(nbt);
     }
 
+    /** Chunk records for {@link ChunkStateStore}, by packed chunk position. */
+    private static Long2ObjectMap<CompoundTag> chunkStateRecords(CellSaveSnapshot snapshot, Long2ObjectMap<int[]> basalt) {
+        final Long2ObjectOpenHashMap<CompoundTag> result = new Long2ObjectOpenHashMap<>();
+
+        for (Long2ObjectMap.Entry<byte[]> e : snapshot.encodeRecords().long2ObjectEntrySet()) {
+            result.computeIfAbsent(e.getLongKey(), k -> new CompoundTag()).putByteArray(NBT_CHUNK_CELLS, e.getValue());
+        }
+
+        for (Long2ObjectMap.Entry<int[]> e : basalt.long2ObjectEntrySet()) {
+            result.computeIfAbsent(e.getLongKey(), k -> new CompoundTag()).putIntArray(NBT_CHUNK_BASALT, e.getValue());
+        }
+
+        return result;
+    }
+
+    private void saveCells(CompoundTag nbt, CellSaveSnapshot snapshot, boolean isAsync) {
+        final LavaCellFile cellFile = this.cellFile;
+
+        if (isAsync) {
+            nbt.putInt(NBT_LAVA_CELL_FILE, cellFile.writeAsync(this.cells, snapshot));
+        } else {
+            final long encodeStart = System.nanoTime();
+            this.cells.writeNBT(nbt, snapshot);
+
+            if (Configurator.DEBUG.enablePerformanceLogging)
+                Pyroclasm.LOG.info(String.format("Lava cell save: capture %.2fms, then encode %.2fms on server thread. %d of %d chunks changed.",
+                        snapshot.captureNanos / 1000000.0, (System.nanoTime() - encodeStart) / 1000000.0, snapshot.changedCount(), snapshot.chunkCount()));
+        }
+    }
+
     public void readLavaNBT(CompoundTag nbt) {
-        cells.readNBT(this, nbt);
+        CompoundTag cellTag = nbt;
+
+        if (nbt.contains(NBT_LAVA_CELL_FILE) && this.cellFile != null) {
+            cellTag = this.cellFile.read(nbt.getInt(NBT_LAVA_CELL_FILE));
+            if (cellTag == null)
+                cellTag = new CompoundTag();
+        }
+
+        cells.readNBT(this, cellTag);
         this.lavaBlockPlacementEvents.readNBT(nbt);
         this.lavaAddEvents.readNBT(nbt);
     }
@@ -337,20 +569,31 @@ public class LavaSimulator extends SimulationTopNode implements SimulationTickab
         if (isSuspended)
             return;
 
-        this.doStats();
+        final boolean isHeadless = this.isHeadless();
+
+        if (!isHeadless)
+            this.doStats();
+
         perfOnTick.startRun();
 
-        // Particle processing
-        this.doParticles();
+        // before validation, so that saved cells are loaded instead of rebuilt
+        this.readLoadedChunkStates();
 
-        this.adjustmentTracker.prepare(this.world);
+        if (!isHeadless) {
+            // Particle processing
+            this.doParticles();
 
-        this.doChunkUpdates();
+            this.adjustmentTracker.prepare(this.world);
 
-        this.lavaTreeCutter.doOnTick();
-        this.fireStarter.doOnTick();
+            this.doChunkUpdates();
+            this.surfaceDeltas.send(this.world);
+
+            this.lavaTreeCutter.doOnTick();
+            this.fireStarter.doOnTick();
+        }
 
         // this part doesn't use tracker - uses world directly
+        // (only to capture snapshots if validation is off tick)
 
         this.cells.validateChunks();
 
@@ -363,6 +606,11 @@ public class LavaSimulator extends SimulationTopNode implements SimulationTickab
     private void doChunkUpdates() {
         final ChunkTracker tracker = this.chunkTracker;
 
+        if (Configurator.PERFORMANCE.enablePrioritizedChunkUpdates) {
+            this.chunkUpdateScheduler.doUpdates(this.world, tracker, this.cells, this::doChunkUpdateInner);
+            return;
+        }
+
         final int updateCount = Math.min(tracker.size(), Configurator.PERFORMANCE.maxChunkUpdatesPerTick);
 
         if (updateCount == 0)
@@ -393,41 +641,47 @@ public class LavaSimulator extends SimulationTopNode implements SimulationTickab
         if (isSuspended)
             return;
 
-        if (Configurator.DEBUG.enablePerformanceLogging)
-            perfOffTick.startRun();
-
-        // update connections as needed, handle other housekeeping, identify flowable
-        // connections
-        this.connections.doCellSetup();
-
-        // lava flow
-        this.connections.processConnections();
-
-        // Apply world events that may depend on new chunks that were just loaded
-        this.lavaAddEvents.processAllEvents();
-
-        // Apply pending lava block placements
-        // These will either cause chunks to be loaded (and the lava thus discovered)
-        // or if the chunk is loaded will try to update the loaded cell directly.
-        //
-        // Doing this off-tick after all chunks are loaded means we may wait an
-        // extra tick to fully handle block placement events.
-        // However, lava blocks are not normally expected to be placed or broken except
-        // by the simulation
-        // which does not rely on world events for that purpose.
-        this.lavaBlockPlacementEvents.processAllEvents();
+        synchronized (this.tickLock) {
+            if (Configurator.DEBUG.enablePerformanceLogging)
+                perfOffTick.startRun();
+
+            // build and update cell stacks from terrain captured on tick - must come
+            // before cell setup so new and changed cells get connections
+            this.cells.validateSnapshots();
+
+            // update connections as needed, handle other housekeeping, identify flowable
+            // connections
+            this.connections.doCellSetup();
+
+            // lava flow
+            this.connections.processConnections();
+
+            // Apply world events that may depend on new chunks that were just loaded
+            this.lavaAddEvents.processAllEvents();
+
+            // Apply pending lava block placements
+            // These will either cause chunks to be loaded (and the lava thus discovered)
+            // or if the chunk is loaded will try to update the loaded cell directly.
+            //
+            // Doing this off-tick after all chunks are loaded means we may wait an
+            // extra tick to fully handle block placement events.
+            // However, lava blocks are not normally expected to be placed or broken except
+            // by the simulation
+            // which does not rely on world events for that purpose.
+            this.lavaBlockPlacementEvents.processAllEvents();
+
+            // unload cell chunks that are no longer necessary
+            // important that this run right after cell update so that
+            // chunk active/inactive accounting is accurate and we don't have improper
+            // unloading
+            this.cells.unloadInactiveCellChunks();
 
-        // unload cell chunks that are no longer necessary
-        // important that this run right after cell update so that
-        // chunk active/inactive accounting is accurate and we don't have improper
-        // unloading
-        this.cells.unloadInactiveCellChunks();
-
-        this.makeDirty();
+            this.makeDirty();
 
-        if (Configurator.DEBUG.enablePerformanceLogging) {
-            perfOffTick.endRun();
-            perfOffTick.addCount(1);
+            if (Configurator.DEBUG.enablePerformanceLogging) {
+                perfOffTick.endRun();
+                perfOffTick.addCount(1);
+            }
         }
     }
 
@@ -493,6 +747,9 @@ public class LavaSimulator extends SimulationTopNode implements SimulationTickab
             perfCollectorAllTick.clearStats();
 
             this.connections.reportFlowTrackingIfEnabled();
+            this.connections.reportLockRetriesIfEnabled();
+            this.connections.reportAllocationsIfEnabled();
+            this.surfaceDeltas.reportIfEnabled();
 
             if (Configurator.DEBUG.enablePerformanceLogging) {
                 Pyroclasm.LOG.info("Lava chunks = %d (%f load)  basaltBlocks = %d (%f load)", this.cells.chunkCount(), chunkLoad,
@@ -540,6 +797,11 @@ public class LavaSimulator extends SimulationTopNode implements SimulationTickab
 
     @Override
     public void unload() {
+        if (this.cellFile != null)
+            this.cellFile.close();
+
+        if (this.chunkStateStore != null)
+            this.chunkStateStore.close();
     }
 
     
@@ -579,7 +841,7 @@ public class LavaSimulator extends SimulationTopNode implements SimulationTickab
             // rare in practice that all 256 blocks in a column will be occupied but it will
             // happen...
         } else {
-            entry.setValidationNeeded(true);
+            entry.setValidationNeeded(pos.getY(), pos.getY());
         }
 
     }
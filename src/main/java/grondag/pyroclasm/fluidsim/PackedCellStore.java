@@ -0,0 +1,168 @@
+package grondag.pyroclasm.fluidsim;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+
+/**
+ * Structure-of-arrays storage for the cells of one {@link CellChunk}. Each cell
+ * claims a slot and keeps its values of record in the arrays below at that
+ * index. Used via {@link PackedLavaCell} when
+ * {@link grondag.pyroclasm.Configurator.Performance#enablePackedCellStorage} is
+ * true.
+ * <p>
+ *
+ * Slots are only claimed and released during validation and NBT load, never
+ * concurrently with flow processing, so arrays can be replaced on growth
+ * without coordination with readers. Booleans are held in separate arrays
+ * (instead of packed flags) so that concurrent writes to different values of
+ * the same cell can't clobber each other.
+ */
+final class PackedCellStore {
+    /**
+     * Slot given to cells after they are deleted. Stale references to deleted
+     * cells read and write here so that released slots can be reused without
+     * corrupting live cells.
+     */
+    static final int DEAD_SLOT = 0;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    int[] fluidUnits;
+    int[] floorLevel;
+    int[] ceilingLevel;
+    int[] lastFlowTick;
+    int[] retainedUnits;
+    int[] lastVisibleLevel;
+    int[] deferredChangeDelta;
+    int[] absoluteFlowThisTick;
+    int[] outputThisTick;
+    int[] maxOutputPerStep;
+
+    short[] refreshTopY;
+    short[] refreshBottomY;
+
+    boolean[] isBottomFlow;
+    boolean[] isConnectionUpdateNeeded;
+    boolean[] isCoolingDisabled;
+    boolean[] isActive;
+    boolean[] needsRetentionUpdate;
+
+    /** 1 if cell is locked - see {@link LavaCell#tryLock()} */
+    AtomicIntegerArray locks;
+
+    private int capacity;
+
+    /** slots at and above this have never been used */
+    private int nextSlot = DEAD_SLOT + 1;
+
+    private final IntArrayList freeSlots = new IntArrayList();
+
+    private int liveCount = 0;
+
+    PackedCellStore() {
+        this.allocateArrays(INITIAL_CAPACITY);
+    }
+
+    private void allocateArrays(int newCapacity) {
+        final int oldCapacity = this.capacity;
+
+        if (oldCapacity == 0) {
+            fluidUnits = new int[newCapacity];
+            floorLevel = new int[newCapacity];
+            ceilingLevel = new int[newCapacity];
+            lastFlowTick = new int[newCapacity];
+            retainedUnits = new int[newCapacity];
+            lastVisibleLevel = new int[newCapacity];
+            deferredChangeDelta = new int[newCapacity];
+            absoluteFlowThisTick = new int[newCapacity];
+            outputThisTick = new int[newCapacity];
+            maxOutputPerStep = new int[newCapacity];
+            refreshTopY = new short[newCapacity];
+            refreshBottomY = new short[newCapacity];
+            isBottomFlow = new boolean[newCapacity];
+            isConnectionUpdateNeeded = new boolean[newCapacity];
+            isCoolingDisabled = new boolean[newCapacity];
+            isActive = new boolean[newCapacity];
+            needsRetentionUpdate = new boolean[newCapacity];
+        } else {
+            fluidUnits = Arrays.copyOf(fluidUnits, newCapacity);
+            floorLevel = Arrays.copyOf(floorLevel, newCapacity);
+            ceilingLevel = Arrays.copyOf(ceilingLevel, newCapacity);
+            lastFlowTick = Arrays.copyOf(lastFlowTick, newCapacity);
+            retainedUnits = Arrays.copyOf(retainedUnits, newCapacity);
+            lastVisibleLevel = Arrays.copyOf(lastVisibleLevel, newCapacity);
+            deferredChangeDelta = Arrays.copyOf(deferredChangeDelta, newCapacity);
+            absoluteFlowThisTick = Arrays.copyOf(absoluteFlowThisTick, newCapacity);
+            outputThisTick = Arrays.copyOf(outputThisTick, newCapacity);
+            maxOutputPerStep = Arrays.copyOf(maxOutputPerStep, newCapacity);
+            refreshTopY = Arrays.copyOf(refreshTopY, newCapacity);
+            refreshBottomY = Arrays.copyOf(refreshBottomY, newCapacity);
+            isBottomFlow = Arrays.copyOf(isBottomFlow, newCapacity);
+            isConnectionUpdateNeeded = Arrays.copyOf(isConnectionUpdateNeeded, newCapacity);
+            isCoolingDisabled = Arrays.copyOf(isCoolingDisabled, newCapacity);
+            isActive = Arrays.copyOf(isActive, newCapacity);
+            needsRetentionUpdate = Arrays.copyOf(needsRetentionUpdate, newCapacity);
+        }
+
+        // locks are never held while slots are claimed, so no need to copy
+        this.locks = new AtomicIntegerArray(newCapacity);
+        this.capacity = newCapacity;
+    }
+
+    /**
+     * Claims a slot for a new cell and initializes it to the same defaults a
+     * {@link HeapLavaCell} would have.
+     */
+    synchronized int claimSlot() {
+        final int slot;
+        if (this.freeSlots.isEmpty()) {
+            if (this.nextSlot == this.capacity)
+                this.allocateArrays(this.capacity * 2);
+
+            slot = this.nextSlot++;
+        } else {
+            slot = this.freeSlots.popInt();
+        }
+
+        fluidUnits[slot] = 0;
+        floorLevel[slot] = 0;
+        ceilingLevel[slot] = 0;
+        lastFlowTick[slot] = 1;
+        retainedUnits[slot] = LavaSimulator.FLUID_UNITS_PER_QUARTER_BLOCK;
+        lastVisibleLevel[slot] = LavaCell.NEVER_REPORTED;
+        deferredChangeDelta[slot] = 0;
+        absoluteFlowThisTick[slot] = 0;
+        outputThisTick[slot] = 0;
+        maxOutputPerStep[slot] = 0;
+        refreshTopY[slot] = LavaCell.REFRESH_NONE;
+        refreshBottomY[slot] = LavaCell.REFRESH_NONE;
+        isBottomFlow[slot] = false;
+        isConnectionUpdateNeeded[slot] = true;
+        isCoolingDisabled[slot] = false;
+        isActive[slot] = false;
+        needsRetentionUpdate[slot] = true;
+
+        this.liveCount++;
+        return slot;
+    }
+
+    synchronized void releaseSlot(int slot) {
+        if (slot == DEAD_SLOT)
+            return;
+
+        this.freeSlots.add(slot);
+        this.liveCount--;
+    }
+
+    /** number of slots currently claimed by live cells */
+    int liveCount() {
+        return this.liveCount;
+    }
+
+    /** number of slots for which storage has been allocated */
+    int capacity() {
+        return this.capacity;
+    }
+}
@@ -0,0 +1,225 @@
+package grondag.pyroclasm.fluidsim;
+
+/**
+ * Lava cell that is a thin view over a slot in the {@link PackedCellStore} of
+ * its cell chunk. Holds only identity, column links and connections; all
+ * scalar state lives in the store. See {@link HeapLavaCell} for the default
+ * storage mode.
+ */
+final class PackedLavaCell extends LavaCell {
+    private final PackedCellStore store;
+
+    /**
+     * Index of this cell's values in the store. Becomes
+     * {@link PackedCellStore#DEAD_SLOT} once the cell is deleted.
+     */
+    private int slot;
+
+    PackedLavaCell(PackedCellStore store) {
+        this.store = store;
+        this.slot = store.claimSlot();
+    }
+
+    @Override
+    public boolean tryLock() {
+        return this.store.locks.compareAndSet(this.slot, 0, 1);
+    }
+
+    @Override
+    public void unlock() {
+        this.store.locks.set(this.slot, 0);
+    }
+
+    @Override
+    protected void releaseStorage() {
+        final int oldSlot = this.slot;
+        this.slot = PackedCellStore.DEAD_SLOT;
+        this.store.releaseSlot(oldSlot);
+    }
+
+    @Override
+    protected void storeFloorLevel(int newFloorLevel, boolean isFlowFloor) {
+        this.store.floorLevel[this.slot] = newFloorLevel;
+        this.store.isBottomFlow[this.slot] = isFlowFloor;
+    }
+
+    @Override
+    public int floorUnits() {
+        return this.store.floorLevel[this.slot] * LavaSimulator.FLUID_UNITS_PER_LEVEL;
+    }
+
+    @Override
+    public int floorY() {
+        return getYFromFloor(this.store.floorLevel[this.slot]);
+    }
+
+    @Override
+    protected void storeCeilingLevel(int newCeilingLevel) {
+        this.store.ceilingLevel[this.slot] = newCeilingLevel;
+    }
+
+    @Override
+    public int ceilingUnits() {
+        return this.store.ceilingLevel[this.slot] * LavaSimulator.FLUID_UNITS_PER_LEVEL;
+    }
+
+    @Override
+    public int ceilingY() {
+        return getYFromCeilingLevel(this.store.ceilingLevel[this.slot]);
+    }
+
+    @Override
+    public boolean isConnectionUpdateNeeded() {
+        return this.store.isConnectionUpdateNeeded[this.slot];
+    }
+
+    @Override
+    protected void storeConnectionUpdateNeeded(boolean value) {
+        this.store.isConnectionUpdateNeeded[this.slot] = value;
+    }
+
+    @Override
+    public int floorLevel() {
+        return this.store.floorLevel[this.slot];
+    }
+
+    @Override
+    public boolean isBottomFlow() {
+        return this.store.isBottomFlow[this.slot];
+    }
+
+    @Override
+    public int ceilingLevel() {
+        return this.store.ceilingLevel[this.slot];
+    }
+
+    @Override
+    public int fluidUnits() {
+        return this.store.fluidUnits[this.slot];
+    }
+
+    @Override
+    protected void storeFluidUnits(int value) {
+        this.store.fluidUnits[this.slot] = value;
+    }
+
+    @Override
+    protected boolean storedCoolingDisabled() {
+        return this.store.isCoolingDisabled[this.slot];
+    }
+
+    @Override
+    protected void storeCoolingDisabled(boolean value) {
+        this.store.isCoolingDisabled[this.slot] = value;
+    }
+
+    @Override
+    protected int storedLastVisibleLevel() {
+        return this.store.lastVisibleLevel[this.slot];
+    }
+
+    @Override
+    protected void storeLastVisibleLevel(int value) {
+        this.store.lastVisibleLevel[this.slot] = value;
+    }
+
+    @Override
+    protected int storedDeferredChangeDelta() {
+        return this.store.deferredChangeDelta[this.slot];
+    }
+
+    @Override
+    protected void storeDeferredChangeDelta(int value) {
+        this.store.deferredChangeDelta[this.slot] = value;
+    }
+
+    @Override
+    protected boolean storedActive() {
+        return this.store.isActive[this.slot];
+    }
+
+    @Override
+    protected void storeActive(boolean value) {
+        this.store.isActive[this.slot] = value;
+    }
+
+    @Override
+    protected int storedRefreshTopY() {
+        return this.store.refreshTopY[this.slot];
+    }
+
+    @Override
+    protected void storeRefreshTopY(int value) {
+        this.store.refreshTopY[this.slot] = (short) value;
+    }
+
+    @Override
+    protected int storedRefreshBottomY() {
+        return this.store.refreshBottomY[this.slot];
+    }
+
+    @Override
+    protected void storeRefreshBottomY(int value) {
+        this.store.refreshBottomY[this.slot] = (short) value;
+    }
+
+    @Override
+    protected int storedRetainedUnits() {
+        return this.store.retainedUnits[this.slot];
+    }
+
+    @Override
+    protected void storeRetainedUnits(int value) {
+        this.store.retainedUnits[this.slot] = value;
+    }
+
+    @Override
+    protected boolean storedRetentionUpdateNeeded() {
+        return this.store.needsRetentionUpdate[this.slot];
+    }
+
+    @Override
+    protected void storeRetentionUpdateNeeded(boolean value) {
+        this.store.needsRetentionUpdate[this.slot] = value;
+    }
+
+    @Override
+    public int lastFlowTick() {
+        return this.store.lastFlowTick[this.slot];
+    }
+
+    @Override
+    protected void storeLastFlowTick(int value) {
+        this.store.lastFlowTick[this.slot] = value;
+    }
+
+    @Override
+    protected int storedAbsoluteFlowThisTick() {
+        return this.store.absoluteFlowThisTick[this.slot];
+    }
+
+    @Override
+    protected void storeAbsoluteFlowThisTick(int value) {
+        this.store.absoluteFlowThisTick[this.slot] = value;
+    }
+
+    @Override
+    public int outputThisTick() {
+        return this.store.outputThisTick[this.slot];
+    }
+
+    @Override
+    void setOutputThisTick(int value) {
+        this.store.outputThisTick[this.slot] = value;
+    }
+
+    @Override
+    public int maxOutputPerStep() {
+        return this.store.maxOutputPerStep[this.slot];
+    }
+
+    @Override
+    void setMaxOutputPerStep(int value) {
+        this.store.maxOutputPerStep[this.slot] = value;
+    }
+}
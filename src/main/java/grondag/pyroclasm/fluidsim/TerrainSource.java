@@ -0,0 +1,35 @@
+package grondag.pyroclasm.fluidsim;
+
+import net.minecraft.world.BlockView;
+import net.minecraft.world.World;
+
+/**
+ * Terrain reads needed by cell validation and retention. In game this is the
+ * server world. The headless harness supplies an in-memory stand-in so the
+ * simulation can run without a live world.
+ */
+public interface TerrainSource {
+    /**
+     * View of the chunk at the given chunk coordinates. Used for column scans in
+     * {@link CellStackBuilder} and only expected to be valid for blocks inside that
+     * chunk.
+     */
+    BlockView chunkView(int chunkX, int chunkZ);
+
+    /** View of all terrain, for reads that may cross chunk boundaries. */
+    BlockView blockView();
+
+    static TerrainSource of(World world) {
+        return new TerrainSource() {
+            @Override
+            public BlockView chunkView(int chunkX, int chunkZ) {
+                return world.getChunk(chunkX, chunkZ);
+            }
+
+            @Override
+            public BlockView blockView() {
+                return world;
+            }
+        };
+    }
+}
@@ -0,0 +1,153 @@
+package grondag.pyroclasm.fluidsim;
+
+import java.util.Arrays;
+
+import javax.annotation.Nullable;
+
+/**
+ * Cell chunks waiting for validation, kept in a binary heap so the chunk to
+ * validate next is always at the top. Least recently validated chunks come
+ * first, then those with the highest {@link CellChunk#validationPriority()}.
+ * <p>
+ *
+ * Each chunk holds its own position in the heap, so a chunk whose priority
+ * changes is moved in place instead of being removed and added again. Chunks
+ * also hold the key they were last placed with. Priority can change on other
+ * threads at any time, and the heap only ever compares those stored keys.
+ * <p>
+ *
+ * Thread-safe. Chunks are marked from cell setup and event handling as well as
+ * from the server thread.
+ */
+class ValidationQueue {
+    private CellChunk[] heap = new CellChunk[64];
+    private int size = 0;
+
+    public synchronized int size() {
+        return this.size;
+    }
+
+    /**
+     * Adds the chunk if it needs validation and isn't queued, moves it if its
+     * priority has changed, or removes it if it no longer needs validation.
+     */
+    public synchronized void update(CellChunk chunk) {
+        final int priority = chunk.validationPriority();
+        final int index = chunk.queueIndex;
+
+        if (priority <= 0 && !chunk.isNew()) {
+            if (index >= 0)
+                this.removeAt(index);
+            return;
+        }
+
+        chunk.queueTick = chunk.lastValidationTick();
+        chunk.queuePriority = priority;
+
+        if (index < 0) {
+            if (this.size == this.heap.length)
+                this.heap = Arrays.copyOf(this.heap, this.size * 2);
+
+            final int i = this.size++;
+            this.heap[i] = chunk;
+            chunk.queueIndex = i;
+            this.siftUp(i);
+        } else {
+            this.siftDown(this.siftUp(index));
+        }
+    }
+
+    /** Removes and returns the chunk to validate next, or null if none. */
+    public synchronized @Nullable CellChunk poll() {
+        if (this.size == 0)
+            return null;
+
+        final CellChunk result = this.heap[0];
+        this.removeAt(0);
+        return result;
+    }
+
+    /** Removes the chunk if queued. */
+    public synchronized void remove(CellChunk chunk) {
+        if (chunk.queueIndex >= 0)
+            this.removeAt(chunk.queueIndex);
+    }
+
+    public synchronized void clear() {
+        for (int i = 0; i < this.size; i++) {
+            this.heap[i].queueIndex = -1;
+            this.heap[i] = null;
+        }
+        this.size = 0;
+    }
+
+    private void removeAt(int index) {
+        final CellChunk[] heap = this.heap;
+        heap[index].queueIndex = -1;
+
+        final int last = --this.size;
+        if (index != last) {
+            heap[index] = heap[last];
+            heap[index].queueIndex = index;
+            heap[last] = null;
+            this.siftDown(this.siftUp(index));
+        } else {
+            heap[last] = null;
+        }
+    }
+
+    /** true if a should be validated before b */
+    private static boolean isBefore(CellChunk a, CellChunk b) {
+        if (a.queueTick != b.queueTick)
+            return a.queueTick < b.queueTick;
+
+        return a.queuePriority > b.queuePriority;
+    }
+
+    /** returns final index */
+    private int siftUp(int index) {
+        final CellChunk[] heap = this.heap;
+        final CellChunk chunk = heap[index];
+
+        while (index > 0) {
+            final int parent = (index - 1) >> 1;
+            final CellChunk p = heap[parent];
+            if (!isBefore(chunk, p))
+                break;
+
+            heap[index] = p;
+            p.queueIndex = index;
+            index = parent;
+        }
+
+        heap[index] = chunk;
+        chunk.queueIndex = index;
+        return index;
+    }
+
+    private void siftDown(int index) {
+        final CellChunk[] heap = this.heap;
+        final CellChunk chunk = heap[index];
+        final int size = this.size;
+
+        while (true) {
+            int child = (index << 1) + 1;
+            if (child >= size)
+                break;
+
+            if (child + 1 < size && isBefore(heap[child + 1], heap[child]))
+                child++;
+
+            final CellChunk c = heap[child];
+            if (!isBefore(c, chunk))
+                break;
+
+            heap[index] = c;
+            c.queueIndex = index;
+            index = child;
+        }
+
+        heap[index] = chunk;
+        chunk.queueIndex = index;
+    }
+}
@@ -40,6 +40,15 @@ public class LavaBlobManager {
         return map.size();
     }
 
+    /** Fluid units held by all particles not yet spawned. */
+    public long fluidUnits() {
+        long result = 0;
+        for (ParticleInfo p : map.values()) {
+            result += p.fluidUnits;
+        }
+        return result;
+    }
+
     public void addLavaForParticle(long packedBlockPos, int fluidAmount) {
         ParticleInfo particle = map.get(packedBlockPos);
 
@@ -1,6 +1,9 @@
 package grondag.pyroclasm.world;
 
 import grondag.fermion.position.PackedBlockPos;
+import grondag.fermion.position.PackedChunkPos;
+import grondag.fermion.simulator.Simulator;
+import grondag.pyroclasm.Configurator;
 import grondag.pyroclasm.block.CoolingBasaltBlock;
 import grondag.pyroclasm.fluidsim.LavaSimulator;
 import grondag.pyroclasm.init.ModBlocks;
@@ -12,11 +15,15 @@ import grondag.xm.terrain.TerrainStaticBlock;
 import grondag.xm.terrain.TerrainType;
 import grondag.xm.terrain.TerrainWorldAdapter;
 import grondag.xm.terrain.TerrainWorldCache;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
 import it.unimi.dsi.fastutil.longs.LongIterator;
 import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
 import net.minecraft.block.Block;
 import net.minecraft.block.BlockState;
 import net.minecraft.block.Blocks;
+import net.minecraft.server.world.ServerWorld;
 import net.minecraft.tag.BlockTags;
 import net.minecraft.util.math.BlockPos;
 import net.minecraft.world.World;
@@ -42,6 +49,24 @@ public class AdjustmentTracker extends TerrainWorldAdapter {
 
     private final TerrainWorldCache oldWorld = new TerrainWorldCache();
 
+    /** For terrain computations off the server thread. See {@link #shouldRunParallel(int)} */
+    private final PendingTerrainView parallelView = new PendingTerrainView();
+
+    /**
+     * Positions of one chunk for a pass run in parallel, with room for two
+     * results per position. Results are only read back on the server thread.
+     */
+    private static class ChunkBatch {
+        final LongArrayList positions = new LongArrayList();
+        Object[] results;
+    }
+
+    /** Computes results for one position of a parallel pass. Must only read from the view. */
+    @FunctionalInterface
+    private interface ParallelTask {
+        void compute(PendingTerrainView view, long packedBlockPos, BlockPos.Mutable pos, Object[] results, int index);
+    }
+
     public AdjustmentTracker(LavaSimulator sim) {
         this.sim = sim;
     }
@@ -186,6 +211,11 @@ public class AdjustmentTracker extends TerrainWorldAdapter {
      * be verified (should mostly overlap with old).
      */
     private void processNewHeightBlocks() {
+        if (shouldRunParallel(newHeightBlocks.size())) {
+            processNewHeightBlocksParallel();
+            return;
+        }
+
         final LongOpenHashSet heightBlocks = this.heightBlocks;
 
         LongIterator it = this.newHeightBlocks.iterator();
@@ -207,7 +237,45 @@ public class AdjustmentTracker extends TerrainWorldAdapter {
 
     }
 
+    /**
+     * Same as {@link #processNewHeightBlocks()} but computes terrain states in
+     * parallel. Neighbors are collected afterwards on the server thread.
+     */
+    private void processNewHeightBlocksParallel() {
+        final LongOpenHashSet heightBlocks = this.heightBlocks;
+
+        final ChunkBatch[] batches = runParallel(newHeightBlocks, (view, packedBlockPos, pos, results, index) -> {
+            PackedBlockPos.unpackTo(packedBlockPos, pos);
+            results[index] = TerrainBlockHelper.terrainState(view.getBlockState(packedBlockPos), view, pos);
+            results[index + 1] = TerrainBlockHelper.isFlowHeight(view.getBlockState(PackedBlockPos.up(packedBlockPos))) ? null : Boolean.TRUE;
+        });
+
+        for (ChunkBatch batch : batches) {
+            final int size = batch.positions.size();
+            for (int i = 0; i < size; i++) {
+                final long packedBlockPos = batch.positions.getLong(i);
+                final TerrainState newTerrainState = (TerrainState) batch.results[i * 2];
+                heightBlocks.add(packedBlockPos);
+                heightBlocks.add(PackedBlockPos.down(packedBlockPos));
+                heightBlocks.add(PackedBlockPos.down(packedBlockPos, 2));
+                if (batch.results[i * 2 + 1] != null)
+                    surfaceBlocks.add(packedBlockPos);
+
+                newTerrainState.produceNeighbors(packedBlockPos, (pos, isSurface) -> {
+                    heightBlocks.add(pos);
+                    if (isSurface && !TerrainBlockHelper.isFlowHeight(getBlockState(PackedBlockPos.up(pos))))
+                        surfaceBlocks.add(pos);
+                });
+            }
+        }
+    }
+
     private void convertHeightBlocks() {
+        if (shouldRunParallel(heightBlocks.size())) {
+            convertHeightBlocksParallel();
+            return;
+        }
+
         LongIterator it = heightBlocks.iterator();
         while (it.hasNext()) {
             convertHeightBlockInner(it.nextLong());
@@ -239,7 +307,46 @@ public class AdjustmentTracker extends TerrainWorldAdapter {
         }
     }
 
+    /**
+     * Same as {@link #convertHeightBlocks()} but decides conversions in parallel
+     * and then applies them on the server thread. Conversions keep block height,
+     * so one can't change the outcome of another.
+     */
+    private void convertHeightBlocksParallel() {
+        final ChunkBatch[] batches = runParallel(heightBlocks, (view, packedBlockPos, pos, results, index) -> {
+            final BlockState baseState = view.getBlockState(packedBlockPos);
+            final Block block = baseState.getBlock();
+            PackedBlockPos.unpackTo(packedBlockPos, pos);
+
+            if (block == ModBlocks.basalt_cut) {
+                if (!TerrainBlockHelper.terrainState(baseState, view, pos).isFullCube())
+                    results[index] = ModBlocks.basalt_cool_dynamic_height.getDefaultState().with(TerrainBlock.TERRAIN_TYPE, baseState.get(TerrainBlock.TERRAIN_TYPE));
+            } else if (block == ModBlocks.basalt_cool_dynamic_height) {
+                if (TerrainBlockHelper.terrainState(baseState, view, pos).isFullCube())
+                    results[index] = ModBlocks.basalt_cut.getDefaultState().with(TerrainBlock.TERRAIN_TYPE, baseState.get(TerrainBlock.TERRAIN_TYPE));
+            } else if (block instanceof TerrainStaticBlock) {
+                final BlockState newState = ((TerrainStaticBlock) block).dynamicState(baseState, view, pos.toImmutable());
+                if (newState != baseState)
+                    results[index] = newState;
+            }
+        });
+
+        for (ChunkBatch batch : batches) {
+            final int size = batch.positions.size();
+            for (int i = 0; i < size; i++) {
+                final BlockState newState = (BlockState) batch.results[i * 2];
+                if (newState != null)
+                    setBlockState(batch.positions.getLong(i), newState, false);
+            }
+        }
+    }
+
     private void handleSurfaceUpdates() {
+        if (shouldRunParallel(surfaceBlocks.size())) {
+            handleSurfaceUpdatesParallel();
+            return;
+        }
+
         LongIterator it = surfaceBlocks.iterator();
         while (it.hasNext()) {
             handleSurfaceInner(it.nextLong());
@@ -297,6 +404,108 @@ public class AdjustmentTracker extends TerrainWorldAdapter {
         }
     }
 
+    /**
+     * Same as {@link #handleSurfaceUpdates()} but finds fillers needed in parallel
+     * and then places them on the server thread. Results are the filler states
+     * for one and two blocks above each surface block, or null if that filler
+     * can't be placed.
+     */
+    private void handleSurfaceUpdatesParallel() {
+        final ChunkBatch[] batches = runParallel(surfaceBlocks, (view, packedBlockPos, pos, results, index) -> {
+            final BlockState state0 = view.getBlockState(packedBlockPos);
+
+            if (!TerrainBlockHelper.isFlowHeight(state0))
+                return;
+
+            final BlockState state1 = view.getBlockState(PackedBlockPos.up(packedBlockPos));
+
+            if (TerrainBlockHelper.isFlowHeight(state1))
+                return;
+
+            PackedBlockPos.unpackTo(packedBlockPos, pos);
+            final int fillers = TerrainBlockHelper.terrainState(state0, view, pos).topFillerNeeded();
+            if (fillers == 0 || !LavaTerrainHelper.canLavaDisplace(state1))
+                return;
+
+            final Block fillBlock = TerrainBlockRegistry.TERRAIN_STATE_REGISTRY.getFillerBlock(state0.getBlock());
+            if (fillBlock == null)
+                return;
+
+            results[index] = fillBlock.getDefaultState().with(TerrainBlock.TERRAIN_TYPE, TerrainType.FILL_UP_ONE);
+
+            if (fillers == 2 && LavaTerrainHelper.canLavaDisplace(view.getBlockState(PackedBlockPos.up(packedBlockPos, 2))))
+                results[index + 1] = fillBlock.getDefaultState().with(TerrainBlock.TERRAIN_TYPE, TerrainType.FILL_UP_TWO);
+        });
+
+        for (ChunkBatch batch : batches) {
+            final int size = batch.positions.size();
+            for (int i = 0; i < size; i++) {
+                final BlockState fill1 = (BlockState) batch.results[i * 2];
+                if (fill1 == null)
+                    continue;
+
+                final long packedBlockPos = batch.positions.getLong(i);
+                final long pos1 = PackedBlockPos.up(packedBlockPos);
+                if (fill1 != getBlockState(pos1))
+                    setBlockState(pos1, fill1, false);
+                this.oldFillerBlocks.rem(pos1);
+
+                final BlockState fill2 = (BlockState) batch.results[i * 2 + 1];
+                if (fill2 != null) {
+                    final long pos2 = PackedBlockPos.up(packedBlockPos, 2);
+                    if (fill2 != getBlockState(pos2))
+                        setBlockState(pos2, fill2, false);
+                    this.oldFillerBlocks.rem(pos2);
+                }
+            }
+        }
+    }
+
+    /**
+     * True if a pass over the given number of positions should compute terrain
+     * states in parallel. See
+     * {@link Configurator.Performance#enableParallelTerrainUpdates}
+     */
+    private boolean shouldRunParallel(int size) {
+        return Configurator.PERFORMANCE.enableParallelTerrainUpdates && size >= Configurator.PERFORMANCE.concurrencyThreshold;
+    }
+
+    /**
+     * Splits the given positions by chunk and runs the task for each position on
+     * the simulation thread pool, over a read-only view of the world with pending
+     * changes. Returns the batches with their results.
+     */
+    private ChunkBatch[] runParallel(LongOpenHashSet positions, ParallelTask task) {
+        final Long2ObjectOpenHashMap<ChunkBatch> byChunk = new Long2ObjectOpenHashMap<>();
+        LongIterator it = positions.iterator();
+        while (it.hasNext()) {
+            final long p = it.nextLong();
+            byChunk.computeIfAbsent(PackedChunkPos.getPackedChunkPos(p), k -> new ChunkBatch()).positions.add(p);
+        }
+
+        final PendingTerrainView view = this.parallelView;
+        view.prepare(this.blockStates);
+
+        final ChunkBatch[] batches = new ChunkBatch[byChunk.size()];
+        int i = 0;
+        for (Long2ObjectMap.Entry<ChunkBatch> e : byChunk.long2ObjectEntrySet()) {
+            view.addChunk(this.world, e.getLongKey());
+            final ChunkBatch batch = e.getValue();
+            batch.results = new Object[batch.positions.size() * 2];
+            batches[i++] = batch;
+        }
+
+        Simulator.SCATTER_GATHER_POOL.completeTask(batches, 1, batch -> {
+            final BlockPos.Mutable pos = new BlockPos.Mutable();
+            final int size = batch.positions.size();
+            for (int j = 0; j < size; j++) {
+                task.compute(view, batch.positions.getLong(j), pos, batch.results, j * 2);
+            }
+        });
+
+        return batches;
+    }
+
     private final void removeOrphanFillers() {
         if (oldFillerBlocks.isEmpty())
             return;
@@ -314,15 +523,51 @@ public class AdjustmentTracker extends TerrainWorldAdapter {
 
     private final BlockPos.Mutable updatePos = new BlockPos.Mutable();
 
+    private final SectionBatchWriter batchWriter = new SectionBatchWriter();
+
     private void applyPendingUpdateToWorld() {
         final World world = this.world;
+
+        if (Configurator.PERFORMANCE.enableSectionBatchedWrites && world instanceof ServerWorld) {
+            final SectionBatchWriter batchWriter = this.batchWriter;
+
+            for (long l : pendingUpdates) {
+                BlockState newState = this.blockStates.get(l);
+                if (newState != null)
+                    batchWriter.add(l, newState);
+            }
+
+            batchWriter.apply((ServerWorld) world, this.sim.surfaceDeltas);
+            pendingUpdates.clear();
+            oldWorld.prepare(world);
+            return;
+        }
+
         final BlockPos.Mutable updatePos = this.updatePos;
+        final LavaSurfaceDeltas surfaceDeltas = this.sim.surfaceDeltas;
+        final boolean sendDeltas = surfaceDeltas.isEnabled();
 
         for (long l : pendingUpdates) {
             BlockState newState = this.blockStates.get(l);
             if (newState != null) {
                 PackedBlockPos.unpackTo(l, updatePos);
-                world.setBlockState(updatePos, newState);
+
+                if (!sendDeltas) {
+                    world.setBlockState(updatePos, newState);
+                    continue;
+                }
+
+                final BlockState oldState = world.getBlockState(updatePos);
+
+                if (LavaSurfaceDeltas.isHeightChange(oldState, newState)) {
+                    // clients get height changes from the delta packet, so only notify
+                    // neighbors - and only send what the world accepted
+                    if (world.setBlockState(updatePos, newState, 1))
+                        surfaceDeltas.offer(l, oldState, newState);
+                } else {
+                    world.setBlockState(updatePos, newState);
+                    surfaceDeltas.remove(l);
+                }
             }
         }
 
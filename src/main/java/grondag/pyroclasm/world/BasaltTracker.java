@@ -14,6 +14,7 @@ import grondag.pyroclasm.Pyroclasm;
 import grondag.pyroclasm.block.CoolingBasaltBlock;
 import it.unimi.dsi.fastutil.longs.Long2IntMap.Entry;
 import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
 import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
 import it.unimi.dsi.fastutil.objects.ObjectIterator;
 import net.minecraft.block.Block;
@@ -153,6 +154,48 @@ public class BasaltTracker {
         nbt.putIntArray(NBT_BASALT_BLOCKS, saveData);
     }
 
+    /**
+     * Cooling basalt blocks by packed chunk position, each in the layout of
+     * {@link #serializeNBT(CompoundTag)}. For state saved per chunk. Call from
+     * world thread only.
+     */
+    public Long2ObjectOpenHashMap<int[]> chunkSaveData() {
+        final Long2ObjectOpenHashMap<int[]> result = new Long2ObjectOpenHashMap<>(this.basaltBlocks.size());
+
+        for (Long2ObjectMap.Entry<Long2IntOpenHashMap> c : this.basaltBlocks.long2ObjectEntrySet()) {
+            final Long2IntOpenHashMap blocks = c.getValue();
+            if (blocks.isEmpty())
+                continue;
+
+            final int[] saveData = new int[blocks.size() * BASALT_BLOCKS_NBT_WIDTH];
+            int i = 0;
+            for (Entry e : blocks.long2IntEntrySet()) {
+                saveData[i++] = Useful.longToIntHigh(e.getLongKey());
+                saveData[i++] = Useful.longToIntLow(e.getLongKey());
+                saveData[i++] = e.getIntValue();
+            }
+            result.put(c.getLongKey(), saveData);
+        }
+
+        return result;
+    }
+
+    /**
+     * Tracks blocks from one entry of {@link #chunkSaveData()}. Unlike
+     * {@link #deserializeNBT(CompoundTag)}, keeps blocks already tracked.
+     */
+    public void readChunkSaveData(int[] saveData) {
+        if (saveData.length % BASALT_BLOCKS_NBT_WIDTH != 0) {
+            Pyroclasm.LOG.warn("Invalid save data loading lava simulator. Cooling basalt blocks may not be updated properly.");
+            return;
+        }
+
+        int i = 0;
+        while (i < saveData.length) {
+            this.trackCoolingBlock(Useful.longFromInts(saveData[i++], saveData[i++]), saveData[i++]);
+        }
+    }
+
     public void deserializeNBT(@Nullable CompoundTag nbt) {
         basaltBlocks.clear();
         if (nbt == null)
@@ -4,6 +4,7 @@ import java.util.Iterator;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongConsumer;
 
 import javax.annotation.Nullable;
 
@@ -27,29 +28,40 @@ public class ChunkTracker {
         return this.trackedCount.get();
     }
 
-    public void trackChunk(ServerWorld world, long packedChunkPos) {
+    /** World is null for headless simulations - nothing to force-load. */
+    public void trackChunk(@Nullable ServerWorld world, long packedChunkPos) {
         final AtomicInteger count = map.computeIfAbsent(packedChunkPos, k -> {
             return new AtomicInteger();
         });
         if (count.incrementAndGet() == 1) {
             //FIXME: will overight other chunk loaders - also not sure if parameters are right
-            world.setChunkForced(PackedChunkPos.getChunkXPos(packedChunkPos), PackedChunkPos.getChunkZPos(packedChunkPos), true);
+            if (world != null)
+                world.setChunkForced(PackedChunkPos.getChunkXPos(packedChunkPos), PackedChunkPos.getChunkZPos(packedChunkPos), true);
             trackedCount.incrementAndGet();
         }
     }
 
-    public void untrackChunk(ServerWorld world, long packedChunkPos) {
+    public void untrackChunk(@Nullable ServerWorld world, long packedChunkPos) {
         final AtomicInteger count = map.computeIfAbsent(packedChunkPos, k -> {
             return new AtomicInteger();
         });
         if (count.decrementAndGet() == 0) {
             //FIXME: will overight other chunk loaders - also not sure if parameters are right
-            world.setChunkForced(PackedChunkPos.getChunkXPos(packedChunkPos), PackedChunkPos.getChunkZPos(packedChunkPos), false);
+            if (world != null)
+                world.setChunkForced(PackedChunkPos.getChunkXPos(packedChunkPos), PackedChunkPos.getChunkZPos(packedChunkPos), false);
 //            ChunkLoader.releaseChunk(world, packedChunkPos);
             trackedCount.decrementAndGet();
         }
     }
 
+    /** Calls the consumer with the packed position of each tracked chunk. */
+    public void forEachTracked(LongConsumer consumer) {
+        for (Map.Entry<Long, AtomicInteger> e : this.map.entrySet()) {
+            if (e.getValue().get() > 0)
+                consumer.accept(e.getKey());
+        }
+    }
+
     public long nextPackedChunkPosForUpdate() {
         Iterator<Map.Entry<Long, AtomicInteger>> it = this.iterator;
         if (it == null || !it.hasNext()) {
@@ -0,0 +1,346 @@
+package grondag.pyroclasm.world;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import grondag.fermion.position.PackedBlockPos;
+import grondag.fermion.position.PackedChunkPos;
+import grondag.pyroclasm.Configurator;
+import grondag.pyroclasm.Pyroclasm;
+import grondag.pyroclasm.init.ModBlocks;
+import grondag.xm.terrain.TerrainBlockHelper;
+import io.netty.buffer.Unpooled;
+import it.unimi.dsi.fastutil.ints.Int2ByteOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import net.fabricmc.fabric.api.network.ServerSidePacketRegistry;
+import net.fabricmc.fabric.api.server.PlayerStream;
+import net.minecraft.block.BlockState;
+import net.minecraft.entity.player.PlayerEntity;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.Identifier;
+import net.minecraft.util.PacketByteBuf;
+import net.minecraft.util.math.ChunkPos;
+
+/**
+ * Sends changes in lava height to clients in one compact packet per player per
+ * tick, instead of vanilla block updates. See
+ * {@link Configurator.Performance#enableSurfaceDeltaPackets}
+ * <p>
+ *
+ * Only changes from one height of {@link ModBlocks#lava_dynamic_height} to
+ * another are sent this way - see {@link #offer(long, BlockState, BlockState)}.
+ * Everything else, including lava appearing or disappearing, still goes through
+ * vanilla. The server then writes those changes without syncing them, and the
+ * client sets the same states from the packet.
+ * <p>
+ *
+ * Packet layout, by chunk and then by runs of consecutive columns at the same Y
+ * with the same height:
+ *
+ * <pre>
+ * chunk count (varint)
+ *   chunk x, chunk z (zigzag varint), run count (varint)
+ *     y, first column (z << 4 | x), height (one byte each)
+ *     length - 2 (one byte) only if the high bit of height is set
+ * </pre>
+ *
+ * Almost every run is a single column, so a length byte is only written for
+ * longer runs. Chunk positions are rarely large enough to need all four bytes.
+ *
+ * Not thread-safe. Server thread only, except {@link #read(PacketByteBuf, HeightConsumer)}.
+ */
+public class LavaSurfaceDeltas {
+    public static final Identifier CHANNEL = new Identifier(Pyroclasm.MODID, "lava_surface");
+
+    /** Packet id and channel name of a custom payload packet, ahead of our data */
+    public static final int PAYLOAD_OVERHEAD = 2 + CHANNEL.toString().length();
+
+    /** Rough size of a chunk section sent whole by vanilla, for stats */
+    private static final int VANILLA_SECTION_BYTES = 2600;
+
+    /** Rough size of heightmaps sent with vanilla chunk data, for stats */
+    private static final int VANILLA_CHUNK_DATA_BYTES = 600;
+
+    /** Set in the height byte of a run when a length byte follows */
+    private static final int RUN_LENGTH_FLAG = 0x80;
+
+    /** Receives changes read by {@link LavaSurfaceDeltas#read(PacketByteBuf, HeightConsumer)} */
+    @FunctionalInterface
+    public interface HeightConsumer {
+        void accept(int x, int y, int z, int height);
+    }
+
+    /** New lava heights in each chunk, by packed chunk position then y << 8 | column */
+    private final Long2ObjectOpenHashMap<Int2ByteOpenHashMap> chunks = new Long2ObjectOpenHashMap<>();
+
+    private final PacketByteBuf chunkBuffer = new PacketByteBuf(Unpooled.buffer());
+
+    /** Bytes sent since stats were last reported */
+    private long sentBytes = 0;
+
+    /** Estimated bytes vanilla would have sent for the same changes since stats were last reported */
+    private long vanillaBytes = 0;
+
+    public boolean isEnabled() {
+        return Configurator.PERFORMANCE.enableSurfaceDeltaPackets;
+    }
+
+    /**
+     * Call for each block change after it has been written to the world. If the
+     * change is only in lava height, queues it and returns true - the change
+     * should not also be synced to clients. Otherwise drops any height queued for
+     * the same position, because vanilla will send the newer state, and returns
+     * false.
+     */
+    public boolean offer(long packedBlockPos, BlockState oldState, BlockState newState) {
+        if (!this.isEnabled())
+            return false;
+
+        if (isHeightChange(oldState, newState)) {
+            this.add(packedBlockPos, TerrainBlockHelper.getFlowHeightFromState(newState));
+            return true;
+        }
+
+        this.remove(packedBlockPos);
+        return false;
+    }
+
+    /**
+     * True if the change is only in lava height, and would be sent by
+     * {@link #offer(long, BlockState, BlockState)} instead of vanilla. For callers
+     * that must choose how to write a change before offering it.
+     */
+    public static boolean isHeightChange(BlockState oldState, BlockState newState) {
+        if (oldState.getBlock() != ModBlocks.lava_dynamic_height || newState.getBlock() != ModBlocks.lava_dynamic_height)
+            return false;
+
+        // client rebuilds the state from height alone
+        final int height = TerrainBlockHelper.getFlowHeightFromState(newState);
+        return newState == TerrainBlockHelper.stateWithDiscreteFlowHeight(ModBlocks.lava_dynamic_height.getDefaultState(), height);
+    }
+
+    /** Queues the given lava height for the next send. */
+    public void add(long packedBlockPos, int height) {
+        this.chunks.computeIfAbsent(PackedChunkPos.getPackedChunkPos(packedBlockPos), k -> new Int2ByteOpenHashMap()).put(key(packedBlockPos),
+                (byte) height);
+    }
+
+    public void remove(long packedBlockPos) {
+        if (this.chunks.isEmpty())
+            return;
+
+        final Int2ByteOpenHashMap levels = this.chunks.get(PackedChunkPos.getPackedChunkPos(packedBlockPos));
+        if (levels != null)
+            levels.remove(key(packedBlockPos));
+    }
+
+    private static int key(long packedBlockPos) {
+        return (PackedBlockPos.getY(packedBlockPos) << 8) | ((PackedBlockPos.getZ(packedBlockPos) & 15) << 4) | (PackedBlockPos.getX(packedBlockPos) & 15);
+    }
+
+    public boolean isEmpty() {
+        return this.chunks.isEmpty();
+    }
+
+    public void clear() {
+        this.chunks.clear();
+    }
+
+    /**
+     * Sends queued changes to the players watching each chunk and clears them.
+     * Call once per tick after block updates are applied.
+     */
+    public void send(ServerWorld world) {
+        if (this.chunks.isEmpty())
+            return;
+
+        final boolean isLogging = Configurator.DEBUG.enablePerformanceLogging;
+        final PacketByteBuf chunkBuffer = this.chunkBuffer;
+        final Map<PlayerEntity, PlayerBatch> batches = new HashMap<>();
+
+        for (Long2ObjectMap.Entry<Int2ByteOpenHashMap> e : this.chunks.long2ObjectEntrySet()) {
+            final Int2ByteOpenHashMap levels = e.getValue();
+            if (levels.isEmpty())
+                continue;
+
+            final long packedChunkPos = e.getLongKey();
+            chunkBuffer.clear();
+            writeChunk(chunkBuffer, packedChunkPos, levels);
+            final int vanilla = isLogging ? vanillaBytes(levels) : 0;
+
+            PlayerStream.watching(world, new ChunkPos(PackedChunkPos.getChunkXPos(packedChunkPos), PackedChunkPos.getChunkZPos(packedChunkPos)))
+                    .forEach(player -> {
+                        batches.computeIfAbsent(player, p -> new PlayerBatch()).add(chunkBuffer);
+                        this.vanillaBytes += vanilla;
+                    });
+        }
+
+        for (Map.Entry<PlayerEntity, PlayerBatch> e : batches.entrySet()) {
+            final PacketByteBuf packet = e.getValue().toPacket();
+            if (isLogging)
+                this.sentBytes += packet.readableBytes() + PAYLOAD_OVERHEAD;
+            ServerSidePacketRegistry.INSTANCE.sendToPlayer(e.getKey(), CHANNEL, packet);
+        }
+
+        this.chunks.clear();
+    }
+
+    /** Chunks to be sent to one player. */
+    private static class PlayerBatch {
+        private final PacketByteBuf body = new PacketByteBuf(Unpooled.buffer());
+        private int chunkCount = 0;
+
+        void add(PacketByteBuf chunk) {
+            this.body.writeBytes(chunk, chunk.readerIndex(), chunk.readableBytes());
+            this.chunkCount++;
+        }
+
+        PacketByteBuf toPacket() {
+            final PacketByteBuf result = new PacketByteBuf(Unpooled.buffer(this.body.readableBytes() + 5));
+            result.writeVarInt(this.chunkCount);
+            result.writeBytes(this.body);
+            return result;
+        }
+    }
+
+    /**
+     * Writes all queued changes as one packet, as if for a player watching every
+     * chunk, and clears them. For measurement without a server.
+     */
+    public void writeAll(PacketByteBuf buf) {
+        int count = 0;
+        for (Int2ByteOpenHashMap levels : this.chunks.values()) {
+            if (!levels.isEmpty())
+                count++;
+        }
+
+        buf.writeVarInt(count);
+
+        for (Long2ObjectMap.Entry<Int2ByteOpenHashMap> e : this.chunks.long2ObjectEntrySet()) {
+            if (!e.getValue().isEmpty())
+                writeChunk(buf, e.getLongKey(), e.getValue());
+        }
+
+        this.chunks.clear();
+    }
+
+    private static void writeChunk(PacketByteBuf buf, long packedChunkPos, Int2ByteOpenHashMap levels) {
+        buf.writeVarInt(zigzag(PackedChunkPos.getChunkXPos(packedChunkPos)));
+        buf.writeVarInt(zigzag(PackedChunkPos.getChunkZPos(packedChunkPos)));
+
+        final int[] keys = levels.keySet().toIntArray();
+        Arrays.sort(keys);
+
+        // run count isn't known until runs are found, so count them first
+        int runCount = 0;
+        for (int i = 0; i < keys.length; i = endOfRun(keys, i, levels)) {
+            runCount++;
+        }
+        buf.writeVarInt(runCount);
+
+        for (int i = 0; i < keys.length;) {
+            final int end = endOfRun(keys, i, levels);
+            final int key = keys[i];
+            buf.writeByte(key >> 8);
+            buf.writeByte(key & 0xFF);
+            if (end - i == 1) {
+                buf.writeByte(levels.get(key));
+            } else {
+                buf.writeByte(levels.get(key) | RUN_LENGTH_FLAG);
+                buf.writeByte(end - i - 2);
+            }
+            i = end;
+        }
+    }
+
+    /** Maps signed to unsigned so that small negative values stay short as varints. */
+    private static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /** Index after the last key in the run starting at the given index. */
+    private static int endOfRun(int[] keys, int start, Int2ByteOpenHashMap levels) {
+        final int first = keys[start];
+        final byte level = levels.get(first);
+        int i = start + 1;
+
+        // columns wrap at 256 so a run never spans two Y levels
+        while (i < keys.length && keys[i] == first + (i - start) && (keys[i] >> 8) == (first >> 8) && levels.get(keys[i]) == level)
+            i++;
+
+        return i;
+    }
+
+    /**
+     * Reads a packet written by {@link #send(ServerWorld)} and passes each changed
+     * block to the consumer. Safe to call from any thread.
+     */
+    public static void read(PacketByteBuf buf, HeightConsumer consumer) {
+        final int chunkCount = buf.readVarInt();
+
+        for (int i = 0; i < chunkCount; i++) {
+            final int xStart = unzigzag(buf.readVarInt()) << 4;
+            final int zStart = unzigzag(buf.readVarInt()) << 4;
+            final int runCount = buf.readVarInt();
+
+            for (int j = 0; j < runCount; j++) {
+                final int y = buf.readUnsignedByte();
+                final int first = buf.readUnsignedByte();
+                int height = buf.readUnsignedByte();
+                int end = first + 1;
+
+                if ((height & RUN_LENGTH_FLAG) != 0) {
+                    height &= ~RUN_LENGTH_FLAG;
+                    end += buf.readUnsignedByte() + 1;
+                }
+
+                for (int column = first; column < end; column++) {
+                    consumer.accept(xStart | (column & 15), y, zStart | (column >> 4), height);
+                }
+            }
+        }
+    }
+
+    /**
+     * Approximate bytes vanilla sends one player for the given number of changes
+     * in one chunk, touching the chunk sections in the given bit mask.
+     */
+    public static int vanillaBytes(int changes, int sectionMask) {
+        if (changes == 0)
+            return 0;
+
+        // block update: packet id, position, state id
+        if (changes == 1)
+            return 12;
+
+        // chunk delta: packet id, chunk x and z, count, then position and state id of each
+        if (changes < 64)
+            return 11 + changes * 5;
+
+        // sections sent whole
+        return VANILLA_CHUNK_DATA_BYTES + Integer.bitCount(sectionMask) * VANILLA_SECTION_BYTES;
+    }
+
+    private static int vanillaBytes(Int2ByteOpenHashMap levels) {
+        int sectionMask = 0;
+        for (int key : levels.keySet()) {
+            sectionMask |= 1 << (key >> 12);
+        }
+        return vanillaBytes(levels.size(), sectionMask);
+    }
+
+    /** Outputs and resets bytes sent, and bytes vanilla would have sent instead. */
+    public void reportIfEnabled() {
+        if (Configurator.DEBUG.enablePerformanceLogging && Configurator.PERFORMANCE.enableSurfaceDeltaPackets) {
+            Pyroclasm.LOG.info(String.format("Lava surface packets = %1$,d bytes, about %2$,d bytes as vanilla block updates", this.sentBytes, this.vanillaBytes));
+            this.sentBytes = 0;
+            this.vanillaBytes = 0;
+        }
+    }
+}
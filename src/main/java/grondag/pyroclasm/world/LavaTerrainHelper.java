@@ -19,7 +19,7 @@ import net.minecraft.block.BlockState;
 import net.minecraft.block.Material;
 import net.minecraft.util.math.BlockPos;
 import net.minecraft.util.math.Direction;
-import net.minecraft.world.World;
+import net.minecraft.world.BlockView;
 
 public class LavaTerrainHelper {
 
@@ -122,7 +122,7 @@ public class LavaTerrainHelper {
      * Ideal height of flowing lava retained on base (non-flow) terrain at the given
      * location. Returned as fraction of 1 block.
      */
-    public static float computeIdealBaseFlowHeight(World world, long originPackedPos) {
+    public static float computeIdealBaseFlowHeight(BlockView world, long originPackedPos) {
         final float NOT_FOUND = -1;
         float nearestRiseDistance = NOT_FOUND;
         float nearestFallDistance = NOT_FOUND;
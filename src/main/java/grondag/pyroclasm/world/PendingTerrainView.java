@@ -0,0 +1,90 @@
+package grondag.pyroclasm.world;
+
+import javax.annotation.Nullable;
+
+import grondag.fermion.position.PackedBlockPos;
+import grondag.fermion.position.PackedChunkPos;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import net.minecraft.block.BlockState;
+import net.minecraft.block.Blocks;
+import net.minecraft.block.entity.BlockEntity;
+import net.minecraft.fluid.FluidState;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.world.BlockView;
+import net.minecraft.world.World;
+import net.minecraft.world.chunk.ChunkSection;
+import net.minecraft.world.chunk.WorldChunk;
+
+/**
+ * Read-only view of the world with pending block changes applied, for
+ * computing terrain states off the server thread. Reads chunk sections
+ * directly so that worker threads never go through the chunk manager. Chunks
+ * must be added by {@link #addChunk(World, long)} on the server thread
+ * beforehand, and neither the world nor the pending changes may change while
+ * the view is in use. Blocks in chunks that weren't added or aren't loaded
+ * read as air.
+ */
+class PendingTerrainView implements BlockView {
+    private final Long2ObjectOpenHashMap<WorldChunk> chunks = new Long2ObjectOpenHashMap<>();
+
+    private Long2ObjectMap<BlockState> pending;
+
+    /** Call on the server thread before use. */
+    void prepare(Long2ObjectMap<BlockState> pending) {
+        this.pending = pending;
+        this.chunks.clear();
+    }
+
+    /**
+     * Makes the given chunk and its neighbors readable, if loaded. Call on the
+     * server thread.
+     */
+    void addChunk(World world, long packedChunkPos) {
+        final int chunkX = PackedChunkPos.getChunkXPos(packedChunkPos);
+        final int chunkZ = PackedChunkPos.getChunkZPos(packedChunkPos);
+
+        for (int x = chunkX - 1; x <= chunkX + 1; x++) {
+            for (int z = chunkZ - 1; z <= chunkZ + 1; z++) {
+                final long key = PackedChunkPos.getPackedChunkPosFromChunkXZ(x, z);
+                if (!this.chunks.containsKey(key) && world.isChunkLoaded(x, z))
+                    this.chunks.put(key, world.getChunk(x, z));
+            }
+        }
+    }
+
+    BlockState getBlockState(long packedBlockPos) {
+        final BlockState pendingState = this.pending.get(packedBlockPos);
+        if (pendingState != null)
+            return pendingState;
+
+        final int y = PackedBlockPos.getY(packedBlockPos);
+        if (y < 0 || y > 255)
+            return Blocks.AIR.getDefaultState();
+
+        final WorldChunk chunk = this.chunks.get(PackedChunkPos.getPackedChunkPos(packedBlockPos));
+        if (chunk == null)
+            return Blocks.AIR.getDefaultState();
+
+        final ChunkSection section = chunk.getSectionArray()[y >> 4];
+        if (ChunkSection.isEmpty(section))
+            return Blocks.AIR.getDefaultState();
+
+        return section.getBlockState(PackedBlockPos.getX(packedBlockPos) & 15, y & 15, PackedBlockPos.getZ(packedBlockPos) & 15);
+    }
+
+    @Override
+    public BlockState getBlockState(BlockPos pos) {
+        return this.getBlockState(PackedBlockPos.pack(pos));
+    }
+
+    @Override
+    public FluidState getFluidState(BlockPos pos) {
+        return this.getBlockState(pos).getFluidState();
+    }
+
+    @Override
+    public @Nullable BlockEntity getBlockEntity(BlockPos pos) {
+        return null;
+    }
+}
@@ -0,0 +1,226 @@
+package grondag.pyroclasm.world;
+
+import grondag.fermion.position.PackedBlockPos;
+import grondag.fermion.position.PackedChunkPos;
+import grondag.pyroclasm.Configurator;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import net.minecraft.block.BlockState;
+import net.minecraft.server.world.ServerChunkManager;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkSectionPos;
+import net.minecraft.util.math.Direction;
+import net.minecraft.world.Heightmap;
+import net.minecraft.world.chunk.ChunkSection;
+import net.minecraft.world.chunk.WorldChunk;
+import net.minecraft.world.chunk.light.LightingProvider;
+
+/**
+ * Writes block states into the world grouped by chunk section, instead of one
+ * {@link ServerWorld#setBlockState(BlockPos, BlockState)} at a time. See
+ * {@link Configurator.Performance#enableSectionBatchedWrites}
+ * <p>
+ *
+ * States are written directly into each section, keeping heightmaps and block
+ * callbacks as vanilla would. Lighting is only checked where light emission or
+ * opacity changed, and section light status only once per section. Neighbors
+ * are then notified in one pass, once per position next to a changed block
+ * and never for positions written by the same batch. Changes are sent to
+ * clients through chunk holders, which combine them into one update per
+ * chunk, except changes in lava height taken by {@link LavaSurfaceDeltas}.
+ * <p>
+ *
+ * Blocks with block entities, and blocks in chunks that aren't loaded, are
+ * written the vanilla way.
+ * <p>
+ *
+ * Not thread-safe. Server thread only.
+ */
+public class SectionBatchWriter {
+    private static final Heightmap.Type[] HEIGHTMAPS = { Heightmap.Type.MOTION_BLOCKING, Heightmap.Type.MOTION_BLOCKING_NO_LEAVES,
+            Heightmap.Type.OCEAN_FLOOR, Heightmap.Type.WORLD_SURFACE };
+
+    private static final Direction[] DIRECTIONS = Direction.values();
+
+    private final LongArrayList positions = new LongArrayList();
+    private final ObjectArrayList<BlockState> states = new ObjectArrayList<>();
+
+    /** Indexes into {@link #positions} for each section of each chunk, by packed chunk position then section Y */
+    private final Long2ObjectOpenHashMap<IntArrayList[]> chunks = new Long2ObjectOpenHashMap<>();
+
+    /** Positions changed by this batch, to be skipped by neighbor notification */
+    private final LongOpenHashSet changed = new LongOpenHashSet();
+
+    /** Positions already notified of a neighbor change */
+    private final LongOpenHashSet notified = new LongOpenHashSet();
+
+    private final BlockPos.Mutable pos = new BlockPos.Mutable();
+    private final BlockPos.Mutable neighborPos = new BlockPos.Mutable();
+
+    /** Queues a block state for the next {@link #apply(ServerWorld)} */
+    public void add(long packedBlockPos, BlockState state) {
+        final int y = PackedBlockPos.getY(packedBlockPos);
+        if (y < 0 || y > 255)
+            return;
+
+        final int index = this.positions.size();
+        this.positions.add(packedBlockPos);
+        this.states.add(state);
+
+        final IntArrayList[] sections = this.chunks.computeIfAbsent(PackedChunkPos.getPackedChunkPos(packedBlockPos), k -> new IntArrayList[16]);
+        IntArrayList list = sections[y >> 4];
+        if (list == null) {
+            list = new IntArrayList();
+            sections[y >> 4] = list;
+        }
+        list.add(index);
+    }
+
+    /**
+     * Writes all queued states to the world and clears the batch. Changes in lava
+     * height are left to the given deltas to send to clients.
+     */
+    public void apply(ServerWorld world, LavaSurfaceDeltas surfaceDeltas) {
+        if (this.positions.isEmpty())
+            return;
+
+        final ServerChunkManager chunkManager = world.getChunkManager();
+        final LightingProvider lighting = chunkManager.getLightingProvider();
+
+        for (Long2ObjectMap.Entry<IntArrayList[]> e : this.chunks.long2ObjectEntrySet()) {
+            final long packedChunkPos = e.getLongKey();
+            final int chunkX = PackedChunkPos.getChunkXPos(packedChunkPos);
+            final int chunkZ = PackedChunkPos.getChunkZPos(packedChunkPos);
+            final IntArrayList[] sections = e.getValue();
+
+            if (!world.isChunkLoaded(chunkX, chunkZ)) {
+                for (IntArrayList list : sections) {
+                    if (list != null)
+                        this.applyVanilla(world, list);
+                }
+                continue;
+            }
+
+            final WorldChunk chunk = world.getChunk(chunkX, chunkZ);
+            final ChunkSection[] sectionArray = chunk.getSectionArray();
+
+            for (int sectionY = 0; sectionY < 16; sectionY++) {
+                final IntArrayList list = sections[sectionY];
+                if (list != null)
+                    this.applySection(world, chunk, sectionArray, sectionY, list, chunkManager, lighting, surfaceDeltas);
+            }
+
+            chunk.setShouldSave(true);
+        }
+
+        this.notifyNeighbors(world);
+
+        this.positions.clear();
+        this.states.clear();
+        this.chunks.clear();
+        this.changed.clear();
+        this.notified.clear();
+    }
+
+    private void applySection(ServerWorld world, WorldChunk chunk, ChunkSection[] sectionArray, int sectionY, IntArrayList list,
+            ServerChunkManager chunkManager, LightingProvider lighting, LavaSurfaceDeltas surfaceDeltas) {
+        ChunkSection section = sectionArray[sectionY];
+        final boolean wasEmpty = ChunkSection.isEmpty(section);
+
+        if (section == WorldChunk.EMPTY_SECTION) {
+            section = new ChunkSection(sectionY << 4);
+            sectionArray[sectionY] = section;
+        }
+
+        final BlockPos.Mutable pos = this.pos;
+        final int size = list.size();
+
+        for (int i = 0; i < size; i++) {
+            final int index = list.getInt(i);
+            final long packedBlockPos = this.positions.getLong(index);
+            final BlockState newState = this.states.get(index);
+            PackedBlockPos.unpackTo(packedBlockPos, pos);
+
+            final int x = pos.getX() & 15;
+            final int y = pos.getY();
+            final int z = pos.getZ() & 15;
+            final BlockState oldState = section.getBlockState(x, y & 15, z);
+
+            if (oldState == newState)
+                continue;
+
+            if (oldState.getBlock().hasBlockEntity() || newState.getBlock().hasBlockEntity()) {
+                world.setBlockState(pos, newState);
+                continue;
+            }
+
+            section.setBlockState(x, y & 15, z, newState);
+
+            for (Heightmap.Type type : HEIGHTMAPS) {
+                chunk.getHeightmap(type).trackUpdate(x, y, z, newState);
+            }
+
+            oldState.onBlockRemoved(world, pos, newState, false);
+            newState.onBlockAdded(world, pos, oldState, false);
+
+            if (oldState.getOpacity(world, pos) != newState.getOpacity(world, pos) || oldState.getLuminance() != newState.getLuminance())
+                lighting.checkBlock(pos);
+
+            world.onBlockChanged(pos, oldState, newState);
+            if (!surfaceDeltas.offer(packedBlockPos, oldState, newState))
+                chunkManager.markForUpdate(pos);
+            this.changed.add(packedBlockPos);
+        }
+
+        final boolean isEmpty = ChunkSection.isEmpty(section);
+        if (isEmpty != wasEmpty)
+            lighting.updateSectionStatus(ChunkSectionPos.from(chunk.getPos().x, sectionY, chunk.getPos().z), isEmpty);
+    }
+
+    private void applyVanilla(ServerWorld world, IntArrayList list) {
+        final BlockPos.Mutable pos = this.pos;
+        final int size = list.size();
+
+        for (int i = 0; i < size; i++) {
+            final int index = list.getInt(i);
+            PackedBlockPos.unpackTo(this.positions.getLong(index), pos);
+            world.setBlockState(pos, this.states.get(index));
+        }
+    }
+
+    /**
+     * Notifies each position next to a changed block once, and updates neighbor
+     * shapes as vanilla would after each change.
+     */
+    private void notifyNeighbors(ServerWorld world) {
+        final BlockPos.Mutable pos = this.pos;
+        final BlockPos.Mutable neighborPos = this.neighborPos;
+        final LongOpenHashSet changed = this.changed;
+        final LongOpenHashSet notified = this.notified;
+        final int size = this.positions.size();
+
+        for (int i = 0; i < size; i++) {
+            final long packedBlockPos = this.positions.getLong(i);
+            if (!changed.contains(packedBlockPos))
+                continue;
+
+            final BlockState state = this.states.get(i);
+            PackedBlockPos.unpackTo(packedBlockPos, pos);
+
+            for (Direction face : DIRECTIONS) {
+                neighborPos.set(pos).setOffset(face);
+                final long packedNeighbor = PackedBlockPos.pack(neighborPos.getX(), neighborPos.getY(), neighborPos.getZ());
+
+                if (!changed.contains(packedNeighbor) && notified.add(packedNeighbor))
+                    world.updateNeighbor(neighborPos, state.getBlock(), pos);
+            }
+
+            state.updateNeighborStates(world, pos, 2);
+        }
+    }
+}